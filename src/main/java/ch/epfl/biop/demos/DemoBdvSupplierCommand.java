@@ -87,6 +87,8 @@ public class DemoBdvSupplierCommand extends DynamicCommand {
 
             new ViewerTransformAdjuster(bdvh, sources).run();
 
+            DemoDatasetHelper.logFirstFullFrame(bdvh, sources);
+
         } catch (Exception e) {
             logger.error(e);
         }
@@ -3,16 +3,17 @@ package ch.epfl.biop.demos;
 import bdv.util.BdvHandle;
 import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.bdv.img.bioformats.command.DatasetFromBioFormatsCreateCommand;
-import ij.IJ;
+import ch.epfl.biop.demos.utils.DemoDatasetHelper;
+import ch.epfl.biop.demos.utils.DemoResources;
+import ch.epfl.biop.demos.utils.InstancedSource;
+import ch.epfl.biop.demos.utils.TransformedSourcesBuilder;
 import ij.ImagePlus;
 import ij.process.ColorProcessor;
 import mpicbg.spim.data.generic.AbstractSpimData;
-import net.imglib2.RealPoint;
 import net.imglib2.display.ColorConverter;
 import net.imglib2.display.LinearRange;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.ARGBType;
-import net.imglib2.type.numeric.integer.UnsignedShortType;
 import org.scijava.ItemVisibility;
 import org.scijava.command.CommandService;
 import org.scijava.log.LogService;
@@ -26,18 +27,17 @@ import sc.fiji.bdvpg.viewer.bdv.supplier.DefaultBdvSupplier;
 import sc.fiji.bdvpg.viewer.bdv.supplier.SerializableBdvOptions;
 import sc.fiji.bdvpg.scijava.service.SourceBdvDisplayService;
 import sc.fiji.bdvpg.scijava.service.SourceService;
-import sc.fiji.bdvpg.source.SourceHelper;
-import sc.fiji.bdvpg.source.transform.SourceAffineTransformer;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.function.IntFunction;
 import java.util.stream.Collectors;
 
 @SuppressWarnings({"CanBeFinal", "unused"})
@@ -69,6 +69,7 @@ public class DemoBigABBALogoCommand implements BdvPlaygroundActionCommand {
             "\n" +
             "    <h2>4. Creating a Grid of Logos</h2>\n" +
             "    <p>The demo places a brain slice image for each pixel location of the logo. Each \"pixel\" is transformed with scaling, rotation, and translation .</p>\n" +
+            "    <p>With <i>instanced rendering</i>, all the copies of a brain slice are gathered in a single source: the tiles of the brain slice are then loaded and cached once, whatever its number of copies.</p>\n" +
             "\n" +
             "    <h2>5. Displaying the Result</h2>\n" +
             "    <p>All of this is displayed using BDV. The demo sets up a 2D viewer and adjusts the viewer's transform to ensure BDV's view spans all the logo.</p>\n" +
@@ -80,6 +81,9 @@ public class DemoBigABBALogoCommand implements BdvPlaygroundActionCommand {
     @Parameter() // Its role is to make sure that the description is displayed
     boolean ok;
 
+    @Parameter(label = "Render the instances of each brain slice as a single source")
+    boolean instanced = false;
+
     @Parameter
     CommandService cs;
 
@@ -96,9 +100,11 @@ public class DemoBigABBALogoCommand implements BdvPlaygroundActionCommand {
     public void run() {
         try {
             // Downloads and cache a sample  vsi file (1.3Gb) from https://zenodo.org/records/6553641
-            File wsiBrainSlices3 = new File(ch.epfl.biop.DatasetHelper.dowloadBrainVSIDataset(3), "Slide_03.vsi");
-            File wsiBrainSlices4 = new File(ch.epfl.biop.DatasetHelper.dowloadBrainVSIDataset(4), "Slide_04.vsi");
-            File wsiBrainSlices5 = new File(ch.epfl.biop.DatasetHelper.dowloadBrainVSIDataset(5), "Slide_05.vsi");
+            // The three slides are downloaded at once
+            for (int slide = 3; slide <= 5; slide++) DemoDatasetHelper.prefetchBrainVSIDataset(slide);
+            File wsiBrainSlices3 = new File(DemoDatasetHelper.getBrainVSIDataset(3), "Slide_03.vsi");
+            File wsiBrainSlices4 = new File(DemoDatasetHelper.getBrainVSIDataset(4), "Slide_04.vsi");
+            File wsiBrainSlices5 = new File(DemoDatasetHelper.getBrainVSIDataset(5), "Slide_05.vsi");
 
             // Retrieve the dataset, that's a SpimData object, it holds metadata and the 'recipe' to load pixel data
             AbstractSpimData<?> dataset = (AbstractSpimData<?>) cs.run(DatasetFromBioFormatsCreateCommand.class,
@@ -121,59 +127,86 @@ public class DemoBigABBALogoCommand implements BdvPlaygroundActionCommand {
 
             int nSources = sources.size();
 
-            List<SourceAndConverter<UnsignedShortType>> allSources = new ArrayList<>();
-
-            int iSource = 0;
-
-            ImagePlus imp = IJ.openImage(getResourceAsFile("/graphics/ABBAFrame.jpg").getAbsolutePath());
+            ImagePlus imp = DemoResources.getImage("/graphics/ABBAFrame.jpg");
 
             imp = imp.resize(40,40,"");
 
             ColorProcessor p = (ColorProcessor) imp.getProcessor();
 
-            for (int x = 0; x<imp.getWidth(); x++) {
-                for (int y = 0; y<imp.getHeight(); y++) {
-                    SourceAndConverter<?> source = sources.get(iSource % nSources);
-                    AffineTransform3D location = new AffineTransform3D();
-                    source.getSpimSource().getSourceTransform(0,0, location);
-                    RealPoint center = SourceHelper.getSourceCenterPoint(source, 0);
-                    long nPixX = source.getSpimSource().getSource(0, 0).dimension(0);
-                    long nPixY = source.getSpimSource().getSource(0, 0).dimension(1);
-                    long nPixZ = source.getSpimSource().getSource(0, 0).dimension(2);
-                    AffineTransform3D transform = new AffineTransform3D();
-                    transform.preConcatenate(location.inverse());
-                    double cy = y - imp.getHeight() / 2.0;
-                    double cx = x - imp.getHeight() / 2.0;
-                    double scaleFactor = 1.5 * (Math.cos(Math.sqrt(cx * cx + cy * cy) / 35.0));
-                    scaleFactor = scaleFactor*scaleFactor;
-                    double sx = (0.8 / (double) nPixX) * scaleFactor;
-                    double sy = ((1 / (double) nPixY) * 1.5) * scaleFactor;
-                    transform.scale(sx, sy, 1 / (double) nPixZ);
-                    transform.translate(-sx / 2.0, -sy / 2.0, 0);
-                    transform.rotate(2, Math.atan2(cy, cx) + Math.PI / 2.0);
-                    transform.translate(x, y, 0);
-                    SourceAndConverter<?> trSource = new SourceAffineTransformer<>(source, transform).get();
-                    ((LinearRange) trSource.asVolatile().getConverter()).setMin(0);
-                    ((LinearRange) trSource.asVolatile().getConverter()).setMax(1000);
-                    ((LinearRange) trSource.getConverter()).setMin(0);
-                    ((LinearRange) trSource.getConverter()).setMax(1000);
-
-                    ARGBType color = new ARGBType(
-                            ARGBType.rgba(
-                                    p.getColor(x, y).getRed(),
-                                    p.getColor(x, y).getGreen(),
-                                    p.getColor(x, y).getBlue(), 255));
-                    ((ColorConverter) trSource.asVolatile().getConverter()).setColor(color);
-                    ((ColorConverter) trSource.getConverter()).setColor(color);
-                    allSources.add((SourceAndConverter<UnsignedShortType>) trSource);
-                    iSource++;
+            int width = imp.getWidth();
+            int height = imp.getHeight();
+
+            // One source per pixel of the logo, index = x * height + y
+            IntFunction<SourceAndConverter<?>> baseOf = index -> sources.get(index % nSources);
+
+            TransformedSourcesBuilder.TransformFactory placement = (index, base) -> {
+                int x = index / height;
+                int y = index % height;
+                long nPixX = base.dimension(0);
+                long nPixY = base.dimension(1);
+                long nPixZ = base.dimension(2);
+                AffineTransform3D transform = new AffineTransform3D();
+                transform.preConcatenate(base.getLocation().inverse());
+                double cy = y - height / 2.0;
+                double cx = x - height / 2.0;
+                double scaleFactor = 1.5 * (Math.cos(Math.sqrt(cx * cx + cy * cy) / 35.0));
+                scaleFactor = scaleFactor*scaleFactor;
+                double sx = (0.8 / (double) nPixX) * scaleFactor;
+                double sy = ((1 / (double) nPixY) * 1.5) * scaleFactor;
+                transform.scale(sx, sy, 1 / (double) nPixZ);
+                transform.translate(-sx / 2.0, -sy / 2.0, 0);
+                transform.rotate(2, Math.atan2(cy, cx) + Math.PI / 2.0);
+                transform.translate(x, y, 0);
+                return transform;
+            };
+
+            TransformedSourcesBuilder builder = new TransformedSourcesBuilder();
+
+            List<SourceAndConverter<?>> allSources;
+
+            if (instanced) {
+                // One source per base source, holding all its instances
+                Map<SourceAndConverter<?>, List<InstancedSource.Instance>> instances = new LinkedHashMap<>();
+                for (int index = 0; index < width * height; index++) {
+                    TransformedSourcesBuilder.BaseSource base = builder.getBase(baseOf.apply(index));
+                    int rgb = p.get(index / height, index % height);
+                    instances.computeIfAbsent(base.source, k -> new ArrayList<>()).add(
+                            new InstancedSource.Instance(placement.get(index, base),
+                                    ARGBType.rgba((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff, 255), 0, 1000));
+                }
+                allSources = new ArrayList<>();
+                for (Map.Entry<SourceAndConverter<?>, List<InstancedSource.Instance>> entry : instances.entrySet()) {
+                    SourceAndConverter<?> base = entry.getKey();
+                    allSources.add(InstancedSource.createSourceAndConverter(
+                            base.getSpimSource().getName()+" x "+entry.getValue().size(), base, entry.getValue()));
                 }
+            } else {
+                allSources = builder.build(width * height, baseOf, placement,
+                        (index, trSource) -> {
+                            int x = index / height;
+                            int y = index % height;
+                            ((LinearRange) trSource.asVolatile().getConverter()).setMin(0);
+                            ((LinearRange) trSource.asVolatile().getConverter()).setMax(1000);
+                            ((LinearRange) trSource.getConverter()).setMin(0);
+                            ((LinearRange) trSource.getConverter()).setMax(1000);
+
+                            int rgb = p.get(x, y);
+                            ARGBType color = new ARGBType(
+                                    ARGBType.rgba(
+                                            (rgb >> 16) & 0xff,
+                                            (rgb >> 8) & 0xff,
+                                            rgb & 0xff, 255));
+                            ((ColorConverter) trSource.asVolatile().getConverter()).setColor(color);
+                            ((ColorConverter) trSource.getConverter()).setColor(color);
+                        });
             }
+
             bdv.util.Prefs.showMultibox(false);
             SerializableBdvOptions opts = new SerializableBdvOptions();
             opts.is2D = true;
             BdvHandle bdvh = new DefaultBdvSupplier(opts).get();
 
+            // All sources are added to the viewer at once
             ds.show(bdvh, allSources.toArray(new SourceAndConverter[0]));
             new ViewerTransformAdjuster(bdvh, allSources.toArray(new SourceAndConverter[0])).run();
 
@@ -183,31 +216,6 @@ public class DemoBigABBALogoCommand implements BdvPlaygroundActionCommand {
         }
     }
 
-    public static File getResourceAsFile(String resourcePath) throws IOException {
-        try (InputStream in = DemoBigABBALogoCommand.class.getResource(resourcePath).openStream()){
-
-            if (in == null) {
-                throw new IOException("Could not get BIOP logo from jar file");
-            }
-
-            File tempFile = File.createTempFile(String.valueOf(in.hashCode()), ".tmp");
-            tempFile.deleteOnExit();
-
-            try (FileOutputStream out = new FileOutputStream(tempFile)) {
-                //copy stream
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
-                }
-            }
-            return tempFile;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-
     protected URL getResource(final String name) {
         return DemoBigABBALogoCommand.class.getClassLoader().getResource(name);
     }
@@ -1,20 +1,18 @@
 package ch.epfl.biop.demos;
 
-import bdv.util.BdvFunctions;
 import bdv.util.BdvHandle;
-import bdv.util.BdvOptions;
 import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.bdv.img.bioformats.command.DatasetFromBioFormatsCreateCommand;
-import ij.IJ;
+import ch.epfl.biop.demos.utils.DemoDatasetHelper;
+import ch.epfl.biop.demos.utils.DemoResources;
+import ch.epfl.biop.demos.utils.TransformedSourcesBuilder;
 import ij.ImagePlus;
 import ij.process.ColorProcessor;
 import mpicbg.spim.data.generic.AbstractSpimData;
-import net.imglib2.RealPoint;
 import net.imglib2.display.ColorConverter;
 import net.imglib2.display.LinearRange;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.ARGBType;
-import net.imglib2.type.numeric.integer.UnsignedShortType;
 import org.scijava.command.CommandService;
 import org.scijava.log.LogService;
 import org.scijava.plugin.Menu;
@@ -27,14 +25,9 @@ import sc.fiji.bdvpg.viewer.bdv.supplier.DefaultBdvSupplier;
 import sc.fiji.bdvpg.viewer.bdv.supplier.SerializableBdvOptions;
 import sc.fiji.bdvpg.scijava.service.SourceBdvDisplayService;
 import sc.fiji.bdvpg.scijava.service.SourceService;
-import sc.fiji.bdvpg.source.SourceHelper;
-import sc.fiji.bdvpg.source.transform.SourceAffineTransformer;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
@@ -67,9 +60,11 @@ public class DemoBigABBALogoSlowCommand implements BdvPlaygroundActionCommand {
     public void run() {
         try {
             // Downloads and cache a sample  vsi file (1.3Gb) from https://zenodo.org/records/6553641
-            File wsiBrainSlices3 = new File(ch.epfl.biop.DatasetHelper.dowloadBrainVSIDataset(3), "Slide_03.vsi");
-            File wsiBrainSlices4 = new File(ch.epfl.biop.DatasetHelper.dowloadBrainVSIDataset(4), "Slide_04.vsi");
-            File wsiBrainSlices5 = new File(ch.epfl.biop.DatasetHelper.dowloadBrainVSIDataset(5), "Slide_05.vsi");
+            // The three slides are downloaded at once
+            for (int slide = 3; slide <= 5; slide++) DemoDatasetHelper.prefetchBrainVSIDataset(slide);
+            File wsiBrainSlices3 = new File(DemoDatasetHelper.getBrainVSIDataset(3), "Slide_03.vsi");
+            File wsiBrainSlices4 = new File(DemoDatasetHelper.getBrainVSIDataset(4), "Slide_04.vsi");
+            File wsiBrainSlices5 = new File(DemoDatasetHelper.getBrainVSIDataset(5), "Slide_05.vsi");
 
             // Retrieve the dataset, that's a SpimData object, it holds metadata and the 'recipe' to load pixel data
             AbstractSpimData<?> dataset = (AbstractSpimData<?>) cs.run(DatasetFromBioFormatsCreateCommand.class,
@@ -92,61 +87,62 @@ public class DemoBigABBALogoSlowCommand implements BdvPlaygroundActionCommand {
 
             int nSources = sources.size();
 
-            List<SourceAndConverter<UnsignedShortType>> allSources = new ArrayList<>();
-
-            int iSource = 0;
-
-            ImagePlus imp = IJ.openImage(getResourceAsFile("/graphics/ABBAFrame.jpg").getAbsolutePath());
+            ImagePlus imp = DemoResources.getImage("/graphics/ABBAFrame.jpg");
 
             imp = imp.resize(70,70,"");
 
             ColorProcessor p = (ColorProcessor) imp.getProcessor();
 
-            for (int x = 0; x<imp.getWidth(); x++) {
-                for (int y = 0; y<imp.getHeight(); y++) {
-                    SourceAndConverter<?> source = sources.get(iSource % nSources);
-                    AffineTransform3D location = new AffineTransform3D();
-                    source.getSpimSource().getSourceTransform(0,0, location);
-                    RealPoint center = SourceHelper.getSourceCenterPoint(source, 0);
-                    long nPixX = source.getSpimSource().getSource(0, 0).dimension(0);
-                    long nPixY = source.getSpimSource().getSource(0, 0).dimension(1);
-                    long nPixZ = source.getSpimSource().getSource(0, 0).dimension(2);
-                    AffineTransform3D transform = new AffineTransform3D();
-                    transform.preConcatenate(location.inverse());
-                    double cy = y - imp.getHeight() / 2.0;
-                    double cx = x - imp.getHeight() / 2.0;
-                    double scaleFactor = 1.5 * (Math.cos(Math.sqrt(cx * cx + cy * cy) / 35.0));
-                    scaleFactor = scaleFactor*scaleFactor;
-                    double sx = (0.8 / (double) nPixX) * scaleFactor;
-                    double sy = ((1 / (double) nPixY) * 1.5) * scaleFactor;
-                    transform.scale(sx, sy, 1 / (double) nPixZ);
-                    transform.translate(-sx / 2.0, -sy / 2.0, 0);
-                    transform.rotate(2, Math.atan2(cy, cx) + Math.PI / 2.0);
-                    transform.translate(x, y, 0);
-                    SourceAndConverter<?> trSource = new SourceAffineTransformer<>(source, transform).get();
-                    ((LinearRange) trSource.asVolatile().getConverter()).setMin(0);
-                    ((LinearRange) trSource.asVolatile().getConverter()).setMax(1000);
-                    ((LinearRange) trSource.getConverter()).setMin(0);
-                    ((LinearRange) trSource.getConverter()).setMax(1000);
-
-                    ARGBType color = new ARGBType(
-                            ARGBType.rgba(
-                                    p.getColor(x, y).getRed(),
-                                    p.getColor(x, y).getGreen(),
-                                    p.getColor(x, y).getBlue(), 255));
-                    ((ColorConverter) trSource.asVolatile().getConverter()).setColor(color);
-                    ((ColorConverter) trSource.getConverter()).setColor(color);
-                    allSources.add((SourceAndConverter<UnsignedShortType>) trSource);
-                    iSource++;
-                }
-            }
+            int width = imp.getWidth();
+            int height = imp.getHeight();
+
+            // One source per pixel of the logo, index = x * height + y
+            List<SourceAndConverter<?>> allSources = new TransformedSourcesBuilder().build(width * height,
+                    index -> sources.get(index % nSources),
+                    (index, base) -> {
+                        int x = index / height;
+                        int y = index % height;
+                        long nPixX = base.dimension(0);
+                        long nPixY = base.dimension(1);
+                        long nPixZ = base.dimension(2);
+                        AffineTransform3D transform = new AffineTransform3D();
+                        transform.preConcatenate(base.getLocation().inverse());
+                        double cy = y - height / 2.0;
+                        double cx = x - height / 2.0;
+                        double scaleFactor = 1.5 * (Math.cos(Math.sqrt(cx * cx + cy * cy) / 35.0));
+                        scaleFactor = scaleFactor*scaleFactor;
+                        double sx = (0.8 / (double) nPixX) * scaleFactor;
+                        double sy = ((1 / (double) nPixY) * 1.5) * scaleFactor;
+                        transform.scale(sx, sy, 1 / (double) nPixZ);
+                        transform.translate(-sx / 2.0, -sy / 2.0, 0);
+                        transform.rotate(2, Math.atan2(cy, cx) + Math.PI / 2.0);
+                        transform.translate(x, y, 0);
+                        return transform;
+                    },
+                    (index, trSource) -> {
+                        int x = index / height;
+                        int y = index % height;
+                        ((LinearRange) trSource.asVolatile().getConverter()).setMin(0);
+                        ((LinearRange) trSource.asVolatile().getConverter()).setMax(1000);
+                        ((LinearRange) trSource.getConverter()).setMin(0);
+                        ((LinearRange) trSource.getConverter()).setMax(1000);
+
+                        int rgb = p.get(x, y);
+                        ARGBType color = new ARGBType(
+                                ARGBType.rgba(
+                                        (rgb >> 16) & 0xff,
+                                        (rgb >> 8) & 0xff,
+                                        rgb & 0xff, 255));
+                        ((ColorConverter) trSource.asVolatile().getConverter()).setColor(color);
+                        ((ColorConverter) trSource.getConverter()).setColor(color);
+                    });
             bdv.util.Prefs.showMultibox(false);
             //BdvStackSource<UnsignedShortType> bss = BdvFunctions.show(allSources.get(0), 1, BdvOptions.options().is2D());
             SerializableBdvOptions opts = new SerializableBdvOptions();
             opts.is2D = true;
             BdvHandle bdvh = new DefaultBdvSupplier(opts).get();
-            //ds.show(bdvh, allSources.toArray(new SourceAndConverter[0]));
-            BdvFunctions.show(allSources, 1, BdvOptions.options().addTo(bdvh));
+            // All sources are added to the viewer at once
+            ds.show(bdvh, allSources.toArray(new SourceAndConverter[0]));
             new ViewerTransformAdjuster(bdvh, allSources.toArray(new SourceAndConverter[0])).run();
 
         } catch (InterruptedException | ExecutionException | IOException e) {
@@ -155,29 +151,4 @@ public class DemoBigABBALogoSlowCommand implements BdvPlaygroundActionCommand {
         }
     }
 
-    public static File getResourceAsFile(String resourcePath) throws IOException {
-        try (InputStream in = DemoBigABBALogoSlowCommand.class.getResource(resourcePath).openStream()){
-
-            if (in == null) {
-                throw new IOException("Could not get BIOP logo from jar file");
-            }
-
-            File tempFile = File.createTempFile(String.valueOf(in.hashCode()), ".tmp");
-            tempFile.deleteOnExit();
-
-            try (FileOutputStream out = new FileOutputStream(tempFile)) {
-                //copy stream
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
-                }
-            }
-            return tempFile;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-
 }
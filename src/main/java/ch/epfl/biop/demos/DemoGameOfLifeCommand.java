@@ -3,13 +3,19 @@ package ch.epfl.biop.demos;
 import bdv.cache.SharedQueue;
 import bdv.util.BdvHandle;
 import bdv.viewer.SourceAndConverter;
+import bdv.viewer.ViewerPanel;
+import ch.epfl.biop.demos.utils.GameOfLifeDiskCache;
+import ch.epfl.biop.demos.utils.GameOfLifeHashlifeSource;
+import ch.epfl.biop.demos.utils.GameOfLifePrefetcher;
 import ch.epfl.biop.demos.utils.GameOfLifeSourcev2;
+import ch.epfl.biop.demos.utils.GameOfLifeSourcev3;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
 import net.imglib2.FinalInterval;
 import net.imglib2.display.LinearRange;
 import net.imglib2.position.FunctionRandomAccessible;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.view.Views;
 import org.scijava.ItemVisibility;
@@ -21,10 +27,18 @@ import sc.fiji.bdvpg.scijava.BdvPgMenus;
 import sc.fiji.bdvpg.service.SourceServices;
 
 import javax.swing.JButton;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.Timer;
+import javax.swing.event.AncestorEvent;
+import javax.swing.event.AncestorListener;
 import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @SuppressWarnings({"CanBeFinal", "unused"})
 @Plugin(type = BdvPlaygroundActionCommand.class,
@@ -65,9 +79,15 @@ public class DemoGameOfLifeCommand implements BdvPlaygroundActionCommand {
     @Parameter // Its role is to make sure that the description is displayed
     boolean ok;
 
-    @Parameter(choices = {"v0", "v1", "v2"})
+    @Parameter(choices = {"v0", "v1", "v2", "v3", "hashlife"})
     String implementation;
 
+    @Parameter(label = "Hashlife only: jump 2^n generations per timepoint, n =", min = "0")
+    int hashlife_step_log2 = 0;
+
+    @Parameter(label = "v2 only: cache generations on disk (image seed only)")
+    boolean cache_on_disk = false;
+
     @Parameter(choices = {"From Image", "Random"})
     String seed_choice;
 
@@ -111,8 +131,21 @@ public class DemoGameOfLifeCommand implements BdvPlaygroundActionCommand {
                 Runtime.getRuntime().availableProcessors()-1
         );
 
-        SourceAndConverter<UnsignedShortType> gol = GameOfLifeSourcev2.getSourceAndConverter(queue,
-                Views.interval(seed, FinalInterval.createMinMax(0,0,0,maxX,maxY,1)), 500);
+        SourceAndConverter<?> gol;
+        if (implementation.equals("hashlife")) {
+            // Quadtree with memoized evolution, one timepoint = 2^hashlife_step_log2 generations
+            gol = GameOfLifeHashlifeSource.getSourceAndConverter(queue,
+                    Views.interval(seed, FinalInterval.createMinMax(0,0,0,maxX,maxY,1)), hashlife_step_log2, 500);
+        } else if (implementation.equals("v3")) {
+            // Bit-packed board, same output as v2
+            gol = GameOfLifeSourcev3.getSourceAndConverter(queue,
+                    Views.interval(seed, FinalInterval.createMinMax(0,0,0,maxX,maxY,1)), 500);
+        } else {
+            gol = GameOfLifeSourcev2.getSourceAndConverter(queue,
+                    Views.interval(seed, FinalInterval.createMinMax(0,0,0,maxX,maxY,1)), 500,
+                    // A random seed is never seen again: its tiles would only fill the disk
+                    cache_on_disk && seed_choice.equals("From Image") ? GameOfLifeDiskCache.DEFAULT_DIRECTORY : null);
+        }
 
         ((LinearRange) gol.getConverter()).setMax(17);
         ((LinearRange) gol.asVolatile().getConverter()).setMax(17);
@@ -121,13 +154,81 @@ public class DemoGameOfLifeCommand implements BdvPlaygroundActionCommand {
                 .getBdvDisplayService()
                 .show(bdvh, gol);
 
-        bdvh.getCardPanel().addCard("Control Computation", makePauseResumePanel(queue), true);
+        bdvh.getCardPanel().addCard("Control Computation", makePauseResumePanel(queue,
+                gol.getSpimSource() instanceof GameOfLifeSourcev2 ? (GameOfLifeSourcev2) gol.getSpimSource() : null), true);
+
+        // Computes the generations below the displayed one in dependency order
+        GameOfLifePrefetcher prefetcher = gol.getSpimSource() instanceof GameOfLifeSourcev2 ?
+                new GameOfLifePrefetcher((GameOfLifeSourcev2) gol.getSpimSource(), Runtime.getRuntime().availableProcessors()-1) : null;
+        if (prefetcher != null) {
+            ViewerPanel viewer = bdvh.getViewerPanel();
+            viewer.transformListeners().add(transform -> prefetchDisplayedRegion(viewer, prefetcher));
+            prefetchDisplayedRegion(viewer, prefetcher);
+            bdvh.getCardPanel().addCard("Prefetch", makePrefetchPanel(prefetcher), true);
+        }
 
         bdvh.getSplitPanel().setCollapsed(false);
 
+        bdvh.getViewerPanel().addAncestorListener(new AncestorListener() {
+            @Override
+            public void ancestorAdded(AncestorEvent event) {}
+            @Override
+            public void ancestorMoved(AncestorEvent event) {}
+            @Override
+            public void ancestorRemoved(AncestorEvent event) {
+                timers.forEach(Timer::stop);
+                if (prefetcher != null) prefetcher.shutdown();
+            }
+        });
+
+    }
+
+    static void prefetchDisplayedRegion(ViewerPanel viewer, GameOfLifePrefetcher prefetcher) {
+        AffineTransform3D transform = viewer.state().getViewerTransform();
+        double w = viewer.getDisplay().getWidth();
+        double h = viewer.getDisplay().getHeight();
+        double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        double[] corner = new double[3];
+        for (double[] screenCorner : new double[][]{{0,0,0},{w,0,0},{0,h,0},{w,h,0}}) {
+            transform.applyInverse(corner, screenCorner);
+            for (int d = 0; d < 3; d++) {
+                min[d] = Math.min(min[d], corner[d]);
+                max[d] = Math.max(max[d], corner[d]);
+            }
+        }
+        // The generation is the z axis
+        prefetcher.prefetch((long) Math.floor(min[0]), (long) Math.floor(min[1]),
+                (long) Math.ceil(max[0]), (long) Math.ceil(max[1]), Math.round(max[2]));
+    }
+
+    JPanel makePrefetchPanel(GameOfLifePrefetcher prefetcher) {
+        JPanel panel = new JPanel();
+        panel.setLayout(new FlowLayout());
+        JLabel label = new JLabel();
+        panel.add(label);
+        Timer timer = new Timer(500, e ->
+                label.setText("Queue depth: "+prefetcher.getQueueDepth()+
+                        " tiles - Critical path: "+prefetcher.getCriticalPathLength()+" generations"));
+        timer.start();
+        timers.add(timer);
+        return panel;
     }
 
-    JPanel makePauseResumePanel(SharedQueue queue) {
+    // Timers of the cards, stopped when the viewer is closed
+    final List<Timer> timers = new ArrayList<>();
+
+    // Runs the queue pause and resume calls in order, out of the event dispatch thread
+    final ExecutorService controlExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Game of life pause/resume");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param source if not null, its loaders are paused too, and its statistics are displayed
+     */
+    JPanel makePauseResumePanel(SharedQueue queue, GameOfLifeSourcev2 source) {
         // Create a JPanel to hold the buttons
         JPanel panel = new JPanel();
         panel.setLayout(new FlowLayout());
@@ -135,33 +236,54 @@ public class DemoGameOfLifeCommand implements BdvPlaygroundActionCommand {
         // Create the "Pause" button
         JButton pauseButton = new JButton("Pause");
         pauseButton.addActionListener(e -> {
-            System.out.println("Pause button clicked");
-            // Add any additional actions for pausing here
-            try {
-                queue.pause();
-            } catch (InterruptedException ex) {
-                throw new RuntimeException(ex);
-            }
+            // Loaders already running stop at their next row
+            if (source != null) source.getPauseToken().pause();
+            controlExecutor.submit(() -> {
+                try {
+                    queue.pause();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            });
         });
 
         // Create the "Resume" button
         JButton resumeButton = new JButton("Resume");
         resumeButton.addActionListener(e -> {
-            System.out.println("Resume button clicked");
-            // Add any additional actions for resuming here
-            new Thread(() -> {
+            // Not through the executor, a pending pause may be waiting for the paused loaders
+            if (source != null) source.getPauseToken().resume();
+            controlExecutor.submit(() -> {
                 try {
                     queue.resume();
                 } catch (InterruptedException ex) {
-                    throw new RuntimeException(ex);
+                    Thread.currentThread().interrupt();
                 }
-            }).start();
+            });
         });
 
         // Add buttons to the panel
         panel.add(pauseButton);
         panel.add(resumeButton);
 
+        if (source != null) {
+            JLabel statistics = new JLabel();
+            panel.add(statistics);
+            long[] lastCount = {source.getTilesComputed(), System.nanoTime()};
+            Timer timer = new Timer(1000, e -> {
+                long count = source.getTilesComputed();
+                long now = System.nanoTime();
+                double tilesPerSecond = (count - lastCount[0]) / ((now - lastCount[1]) / 1e9);
+                lastCount[0] = count;
+                lastCount[1] = now;
+                statistics.setText(String.format("<html>Tiles computed: %.1f /s<br>Tiles pending: %d<br>" +
+                                "Cache hit ratio: %.1f %%<br>Cached generations: %.1f MB</html>",
+                        tilesPerSecond, source.getTilesPending(),
+                        100 * source.getCacheHitRatio(), source.getCachedBytes() / (1024.0 * 1024.0)));
+            });
+            timer.start();
+            timers.add(timer);
+        }
+
         return panel;
     }
 
@@ -5,6 +5,7 @@ import bdv.util.BdvHandle;
 import bdv.util.EmptySource;
 import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.bdv.img.bioformats.command.DatasetFromBioFormatsCreateCommand;
+import ch.epfl.biop.demos.utils.DatasetFetcher;
 import ch.epfl.biop.demos.utils.DemoDatasetHelper;
 import ch.epfl.biop.source.deconvolve.Deconvolver;
 import mpicbg.spim.data.generic.AbstractSpimData;
@@ -56,11 +57,15 @@ public class DemoLLS7ProcessingCommand implements BdvPlaygroundActionCommand {
     public void run() {
         try {
 
+            // Both files are downloaded at once
+            DemoDatasetHelper.prefetch(DemoDatasetHelper.DemoDataset.LATTICE_HELA_SKEWED,
+                    DemoDatasetHelper.DemoDataset.LATTICE_PSF_200NM);
+
             // Getting data
             SourceAndConverter<?>[] lls7Channels = DemoDatasetHelper.getData(DemoDatasetHelper.DemoDataset.LATTICE_HELA_SKEWED, ctx);
 
             // Getting PSF
-            File psfFile = ch.epfl.biop.DatasetHelper.getDataset("https://zenodo.org/records/14505724/files/psf-200nm.tif");
+            File psfFile = DatasetFetcher.getDefault().fetch(DemoDatasetHelper.DemoDataset.LATTICE_PSF_200NM.getUrl());
             AbstractSpimData<?> datasetEC = (AbstractSpimData<?>) cs.run(DatasetFromBioFormatsCreateCommand.class,
                     true,
                     "datasetname", "PSF_LLS7_200nm",
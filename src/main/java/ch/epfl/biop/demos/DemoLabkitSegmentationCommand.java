@@ -29,6 +29,7 @@ import bdv.viewer.SourceAndConverter;
 import ch.epfl.biop.DatasetHelper;
 import ch.epfl.biop.bdv.img.bioformats.command.DatasetFromBioFormatsCreateCommand;
 import ch.epfl.biop.command.process.labkit.SourcesLabkitClassifyCommand;
+import ch.epfl.biop.demos.utils.DemoResources;
 import org.scijava.command.CommandService;
 import org.scijava.plugin.Menu;
 import org.scijava.plugin.Parameter;
@@ -40,6 +41,7 @@ import sc.fiji.bdvpg.scijava.service.SourceService;
 import sc.fiji.bdvpg.viewer.bdv.navigate.ViewerTransformAdjuster;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.ExecutionException;
 
 /**
@@ -91,9 +93,7 @@ public class DemoLabkitSegmentationCommand implements BdvPlaygroundActionCommand
 
             // Apply a pre-trained Labkit classifier to the sources.
             // This creates a new source with lazy-computed segmentation labels.
-            File classifierFile = new File(
-                    DemoLabkitSegmentationCommand.class.getResource("/lls7-nuc-bg.classifier").getPath()
-            );
+            File classifierFile = DemoResources.getFile("/lls7-nuc-bg.classifier");
 
             SourceAndConverter<?> classifiedSource = (SourceAndConverter<?>) cs.run(
                     SourcesLabkitClassifyCommand.class, true,
@@ -119,7 +119,7 @@ public class DemoLabkitSegmentationCommand implements BdvPlaygroundActionCommand
             BdvHandle bdvHandle = displayService.getActiveBdv();
             new ViewerTransformAdjuster(bdvHandle, classifiedSource).run();
 
-        } catch (ExecutionException | InterruptedException e) {
+        } catch (ExecutionException | InterruptedException | IOException e) {
             throw new RuntimeException(e);
         }
     }
@@ -4,16 +4,22 @@ import bdv.util.BdvFunctions;
 import bdv.util.BdvHandle;
 import bdv.util.BdvOptions;
 import bdv.util.BdvOverlay;
+import bdv.util.BdvStackSource;
 import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.demos.utils.AnimationScheduler;
+import ch.epfl.biop.demos.utils.BatchedOverlayRenderer;
 import ch.epfl.biop.demos.utils.BdvHelper;
-import net.imglib2.RealPoint;
-import net.imglib2.RealRandomAccessible;
+import ch.epfl.biop.demos.utils.DensityHistogramSource;
+import ch.epfl.biop.demos.utils.ParticleIntegrator;
+import ch.epfl.biop.demos.utils.ParticleSwarm;
+import net.imglib2.RealLocalizable;
 import net.imglib2.converter.Converter;
 import net.imglib2.display.ColorTable;
 import net.imglib2.position.FunctionRealRandomAccessible;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
 import org.scijava.ItemVisibility;
 import org.scijava.convert.ConvertService;
 import org.scijava.plugin.Menu;
@@ -24,16 +30,21 @@ import sc.fiji.bdvpg.scijava.BdvPgMenus;
 import sc.fiji.bdvpg.service.SourceServices;
 import sc.fiji.bdvpg.source.display.ConverterChanger;
 
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.Timer;
 import javax.swing.event.AncestorEvent;
 import javax.swing.event.AncestorListener;
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.FlowLayout;
 import java.awt.Font;
 import java.awt.Graphics2D;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 //dx/dt = sigma(y-x)
 //dy/dt = x(rho-z)-y
@@ -77,12 +88,15 @@ public class DemoLorenzAttractorCommand implements BdvPlaygroundActionCommand {
             "    <p>Particles are introduced into the system, each following a path determined by the Lorenz equations. The particles leave trails that visualize their chaotic paths through the 3D space.</p>\n" +
             "\n" +
             "    <h3>5. Particle and Trail Classes</h3>\n" +
-            "    <p>The <code>Particle</code> class represents a particle in the system, with methods to update its position using the Runge-Kutta numerical method. The <code>Trail</code> class keeps track of the path taken by each particle, allowing for visualization of the chaotic trajectories.</p>\n" +
+            "    <p>The <code>Particle</code> class represents a named particle in the system. The positions of all particles are stored in a <code>ParticleIntegrator</code>, which updates them together using the Runge-Kutta numerical method. The <code>Trail</code> class keeps track of the path taken by each particle, allowing for visualization of the chaotic trajectories.</p>\n" +
             "\n" +
             "    <h3>6. Animation Loop</h3>\n" +
-            "    <p>An animation loop updates the positions of the particles and repaints the viewer to create a dynamic visualization of the Lorenz attractor. The loop continues until the viewer is closed.</p>\n" +
+            "    <p>A fixed time step simulation updates the positions of the particles, while the viewer is repainted independently, at most once per screen refresh, to create a dynamic visualization of the Lorenz attractor. The animation continues until the viewer is closed.</p>\n" +
             "\n" +
-            "    <h3>7. Error Handling and Viewer Management</h3>\n" +
+            "    <h3>7. Particle Swarm Mode</h3>\n" +
+            "    <p>Optionally, a swarm of up to millions of particles is stepped in parallel on all processors. Their positions are accumulated in a 3D histogram, displayed as a source, where the density of the attractor builds up over time. The throughput is reported in particle steps per second.</p>\n" +
+            "\n" +
+            "    <h3>8. Error Handling and Viewer Management</h3>\n" +
             "    <p>The demo includes mechanisms to handle the closing of the viewer and to stop the animation loop when the viewer is no longer active.</p>\n" +
             "\n" +
             "    <p>This demo provides a visualization of the chaotic behavior of the Lorenz attractor, showcasing the capabilities of ImgLib2 and BDV in creating dynamic and interactive scientific visualizations.</p>\n" +
@@ -101,27 +115,29 @@ public class DemoLorenzAttractorCommand implements BdvPlaygroundActionCommand {
     @Parameter
     double beta = 8.0 / 3.0;
 
+    @Parameter(label = "Number of particles without trail")
+    int n_cloud_particles = 10000;
+
+    @Parameter(label = "Particle swarm mode (parallel, density histogram)")
+    boolean swarm_mode = false;
+
+    @Parameter(label = "Number of particles in the swarm")
+    int n_swarm_particles = 1000000;
+
     @Parameter
     ConvertService cs;
 
     @Override
     public void run() {
-        final FunctionRealRandomAccessible<RealPoint> lorenzGradient =
-                new FunctionRealRandomAccessible<>(3, (position, value) -> {
-                    double x = position.getDoublePosition(0);
-                    double y = position.getDoublePosition(1);
-                    double z = position.getDoublePosition(2);
-                    value.setPosition(sigma * (y-x),0); // dx/dt = sigma(y-x)
-                    value.setPosition(x*(rho-z)-y,1); // dy/dt = x(rho-z)-y
-                    value.setPosition(x*y-beta*z,2); // dz/dt = xy-beta.z
-                }, () -> new RealPoint(3) );
-
         FunctionRealRandomAccessible<DoubleType> lorenzSpeed
                 = new FunctionRealRandomAccessible<>(3, (position, value) -> {
-                    RealPoint gradient = new RealPoint(lorenzGradient.getAt(position));
-            double gx = gradient.getDoublePosition(0);
-            double gy = gradient.getDoublePosition(1);
-            double gz = gradient.getDoublePosition(2);
+            // Norm of the Lorenz gradient
+            double x = position.getDoublePosition(0);
+            double y = position.getDoublePosition(1);
+            double z = position.getDoublePosition(2);
+            double gx = sigma * (y-x);
+            double gy = x*(rho-z)-y;
+            double gz = x*y-beta*z;
             value.set(Math.sqrt(gx*gx+gy*gy+gz*gz));
         }, DoubleType::new);
 
@@ -143,29 +159,48 @@ public class DemoLorenzAttractorCommand implements BdvPlaygroundActionCommand {
 
         SourceServices.getBdvDisplayService().show(bdvh, coloredEnergy);
 
+        ParticleIntegrator.VectorField lorenzGradient = (p, v, from, to) -> {
+            double[] x = p[0], y = p[1], z = p[2];
+            double[] dx = v[0], dy = v[1], dz = v[2];
+            for (int i = from; i < to; i++) {
+                dx[i] = sigma * (y[i]-x[i]); // dx/dt = sigma(y-x)
+                dy[i] = x[i]*(rho-z[i])-y[i]; // dy/dt = x(rho-z)-y
+                dz[i] = x[i]*y[i]-beta*z[i]; // dz/dt = xy-beta.z
+            }
+        };
+
+        ParticleIntegrator integrator = new ParticleIntegrator(3, lorenzGradient, 2 + n_cloud_particles);
+
         List<Particle> particles = new ArrayList<>();
-        particles.add(new Particle(1,1,1,"Particle 0", new Color(166, 29, 180,255)));
-        particles.add(new Particle(1.01,1,1,"Particle 1", new Color(28, 106, 21,255)));
+        particles.add(new Particle(integrator, 1,1,1,"Particle 0", new Color(166, 29, 180,255)));
+        particles.add(new Particle(integrator, 1.01,1,1,"Particle 1", new Color(28, 106, 21,255)));
+
+        // Particles without trail, spread around the first ones
+        Random random = new Random(0);
+        for (int i = 0; i < n_cloud_particles; i++) {
+            integrator.add(1 + random.nextGaussian(), 1 + random.nextGaussian(), 1 + random.nextGaussian());
+        }
 
         ParticleOverlay overlay = new ParticleOverlay();
         for (Particle particle : particles) {
             overlay.addParticle(particle);
         }
+        overlay.setCloud(integrator, particles.size(), integrator.size());
 
         BdvFunctions.showOverlay(overlay, "Points", BdvOptions.options().addTo(bdvh));
 
-        AtomicBoolean viewerClosed = new AtomicBoolean(false);
+        AnimationScheduler animation = new AnimationScheduler("Lorenz", 0.015, () -> {
+            integrator.rk4Step(0.01);
+            for (Particle particle : particles)  particle.stepDone();
+        }, () -> bdvh.getViewerPanel().repaint());
 
-        final Thread animate = new Thread(() -> {
-            while (!viewerClosed.get()) {
-                for (Particle particle : particles)  particle.step(0.01, lorenzGradient);
-                try { Thread.sleep(15); } catch (InterruptedException e) { System.err.println("Animator interrupted: "+e.getMessage()); }
-                bdvh.getViewerPanel().repaint();
-            }
-            System.out.println("Lorenz Animator stopped");
-        });
+        JPanel statistics = new JPanel();
+        statistics.add(animation.createStatisticsLabel());
+        bdvh.getCardPanel().addCard("Animation", statistics, true);
 
-        animate.start();
+        animation.start();
+
+        AnimationScheduler swarmAnimation = swarm_mode ? startSwarm(bdvh, lorenzGradient) : null;
 
         bdvh.getViewerPanel().addAncestorListener(new AncestorListener() {
             @Override
@@ -174,58 +209,154 @@ public class DemoLorenzAttractorCommand implements BdvPlaygroundActionCommand {
             public void ancestorMoved(AncestorEvent event) {}
             @Override
             public void ancestorRemoved(AncestorEvent event) {
-                viewerClosed.set(true);
+                animation.stop();
+                if (swarmAnimation != null) swarmAnimation.stop();
             }
         });
 
     }
 
+    /**
+     * Steps a swarm of particles in parallel, and displays the density of their positions
+     * @return the animation stepping the swarm, to stop when the viewer is closed
+     */
+    AnimationScheduler startSwarm(BdvHandle bdvh, ParticleIntegrator.VectorField lorenzGradient) {
+        // Seeds spread around the attractor
+        ParticleIntegrator swarmIntegrator = new ParticleIntegrator(3, lorenzGradient, n_swarm_particles);
+        Random random = new Random(1);
+        for (int i = 0; i < n_swarm_particles; i++) {
+            swarmIntegrator.add(-20 + 40 * random.nextDouble(), -20 + 40 * random.nextDouble(), 50 * random.nextDouble());
+        }
+
+        DensityHistogramSource histogram = new DensityHistogramSource("Swarm Density",
+                new double[]{-30, -30, -5}, new double[]{30, 30, 65}, 0.5);
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        // Lets the particles reach the attractor before accumulating their positions
+        ParticleSwarm swarm = new ParticleSwarm(swarmIntegrator, histogram, pool, 4096, 200);
+
+        BdvStackSource<FloatType> histogramSource = BdvFunctions.show(histogram, BdvOptions.options().addTo(bdvh));
+        histogramSource.setDisplayRange(0, 100);
+
+        // The histogram is read when the source is rendered
+        AnimationScheduler swarmAnimation = new AnimationScheduler("Lorenz swarm", 0.01,
+                () -> swarm.step(0.01), () -> bdvh.getViewerPanel().requestRepaint());
+        swarmAnimation.start();
+
+        JPanel panel = new JPanel();
+        panel.setLayout(new FlowLayout());
+        JLabel statistics = new JLabel();
+        panel.add(statistics);
+        long[] lastCount = {swarm.getParticleSteps(), System.nanoTime()};
+        Timer timer = new Timer(1000, e -> {
+            if (swarmAnimation.isStopped()) {
+                ((Timer) e.getSource()).stop();
+                pool.shutdown();
+                return;
+            }
+            long count = swarm.getParticleSteps();
+            long now = System.nanoTime();
+            double stepsPerSecond = (count - lastCount[0]) / ((now - lastCount[1]) / 1e9);
+            lastCount[0] = count;
+            lastCount[1] = now;
+            statistics.setText(String.format("<html>Particles: %d%s<br>Particle steps: %.3g /s<br>Accumulated positions: %d</html>",
+                    swarm.size(), swarm.isBurningIn() ? " (burn-in)" : "", stepsPerSecond, histogram.getTotal()));
+        });
+        timer.start();
+        bdvh.getCardPanel().addCard("Particle Swarm", panel, true);
+        return swarmAnimation;
+    }
+
+    /**
+     * Last positions of a particle, in a ring buffer written by a single thread
+     * <p>
+     * Coordinates are packed in an array, as raw double bits, and the number of points written so
+     * far is a volatile sequence counter, incremented after each point is written. Readers take the
+     * counter as a snapshot and read the points in place: a point is still valid if the writer has
+     * not wrapped around to its slot in the meantime, which readers check after reading it. The
+     * coordinates are accessed with volatile semantics so that this check cannot be reordered
+     * before the reads of the coordinates.
+     */
     public static class Trail {
         final int length;
-        int r,g,b,a;
+        final Color[] colors;
+
+        final AtomicLongArray coordinates;
+
+        volatile long written = 0;
 
         public Trail(int length, Color color) {
             this.length = length;
-            r = color.getRed();
-            g = color.getGreen();
-            b = color.getBlue();
-            a = color.getAlpha();
+            this.coordinates = new AtomicLongArray(3 * length);
+            this.colors = new Color[length];
+            int r = color.getRed(), g = color.getGreen(), b = color.getBlue(), a = color.getAlpha();
+            for (int index = 0; index < length; index++) {
+                colors[index] = new Color(r,g,b,255-(a * index / length));
+            }
         }
 
         public Color getColor(int index) {
-            return new Color(r,g,b,255-(a * index / length));
+            return colors[index];
         }
 
-        LinkedList<RealPoint> points = new LinkedList<>();
-
-        synchronized public void addPoint(RealPoint point) {
-            points.addFirst(new RealPoint(point));
-            if (points.size()>length) {
-                points.removeLast();
+        /**
+         * Single writer
+         */
+        public void addPoint(RealLocalizable point) {
+            long sequence = written;
+            int offset = 3 * (int) (sequence % length);
+            for (int d = 0; d < 3; d++) {
+                coordinates.set(offset + d, Double.doubleToRawLongBits(point.getDoublePosition(d)));
             }
+            written = sequence + 1; // Publishes the point
         }
 
-        synchronized public LinkedList<RealPoint> getPoints() {
-            return new LinkedList<>(points);
+        /**
+         * @return a snapshot to read the points from, with {@link #size(long)} and {@link #get(long, int, double[])}
+         */
+        public long snapshot() {
+            return written;
+        }
+
+        /**
+         * @return the number of points of the snapshot
+         */
+        public int size(long snapshot) {
+            return (int) Math.min(snapshot, length);
+        }
+
+        /**
+         * Reads a point of the snapshot, index 0 is the most recent one
+         * @return false if the point has been overwritten since the snapshot, as well as all the older ones
+         */
+        public boolean get(long snapshot, int index, double[] position) {
+            long sequence = snapshot - 1 - index;
+            int offset = 3 * (int) (sequence % length);
+            for (int d = 0; d < 3; d++) {
+                position[d] = Double.longBitsToDouble(coordinates.get(offset + d));
+            }
+            // The slot is reused by the point sequence + length, which may be being written
+            return written - sequence < length;
         }
     }
 
-    public static class Particle extends RealPoint {
+    /**
+     * Named particle with a trail, its position is stored in a {@link ParticleIntegrator}
+     */
+    public static class Particle implements RealLocalizable {
 
-        final int nDimensions;
+        final ParticleIntegrator integrator;
+        final int index;
         final String name;
         final Trail trail;
         int trailStep = 1;
         int step = 0;
         final Color color;
 
-        public Particle(double x, double y, double z, String name, Color color) {
-            super(3);
+        public Particle(ParticleIntegrator integrator, double x, double y, double z, String name, Color color) {
+            this.integrator = integrator;
+            this.index = integrator.add(x, y, z);
             this.name = name;
-            nDimensions = 3;
-            setPosition(x,0);
-            setPosition(y,1);
-            setPosition(z,2);
             this.color = color;
             trail = new Trail(900, color);
         }
@@ -242,33 +373,10 @@ public class DemoLorenzAttractorCommand implements BdvPlaygroundActionCommand {
             return trail;
         }
 
-        // Runge Kutta 4
-        public void step(double dt, RealRandomAccessible<RealPoint> gradient) {
-
-            RealPoint p1 = new RealPoint(this);
-            RealPoint k1 = new RealPoint(gradient.getAt(p1));
-
-            RealPoint p2 = new RealPoint(nDimensions);
-            for (int d = 0; d < nDimensions; d++) {
-                p2.setPosition(getDoublePosition(d) + k1.getDoublePosition(d) * dt/2.0, d);
-            }
-            RealPoint k2 = new RealPoint(gradient.getAt(p2));
-
-            RealPoint p3 = new RealPoint(nDimensions);
-            for (int d = 0; d < nDimensions; d++) {
-                p3.setPosition(getDoublePosition(d) + k2.getDoublePosition(d) * dt/2.0, d);
-            }
-            RealPoint k3 = new RealPoint(gradient.getAt(p3));
-
-            RealPoint p4 = new RealPoint(nDimensions);
-            for (int d = 0; d < nDimensions; d++) {
-                p4.setPosition(getDoublePosition(d) + k3.getDoublePosition(d) * dt, d);
-            }
-            RealPoint k4 = new RealPoint(gradient.getAt(p4));
-
-            for (int d = 0; d < nDimensions; d++) {
-                this.setPosition(getDoublePosition(d) + (k1.getDoublePosition(d) + 2.0 * k2.getDoublePosition(d) + 2.0 * k3.getDoublePosition(d) + k4.getDoublePosition(d)) * dt/6.0, d);
-            }
+        /**
+         * To call after each step of the integrator, records the trail
+         */
+        public void stepDone() {
             step = step + 1;
             if ((step % trailStep) == 0) {
                 step = 0;
@@ -276,6 +384,31 @@ public class DemoLorenzAttractorCommand implements BdvPlaygroundActionCommand {
             }
         }
 
+        @Override
+        public int numDimensions() {
+            return 3;
+        }
+
+        @Override
+        public void localize(float[] position) {
+            for (int d = 0; d < 3; d++) position[d] = getFloatPosition(d);
+        }
+
+        @Override
+        public void localize(double[] position) {
+            integrator.localize(index, position);
+        }
+
+        @Override
+        public float getFloatPosition(int d) {
+            return (float) getDoublePosition(d);
+        }
+
+        @Override
+        public double getDoublePosition(int d) {
+            return integrator.getPosition(index, d);
+        }
+
     }
 
     public static class ParticleOverlay extends BdvOverlay {
@@ -284,10 +417,23 @@ public class DemoLorenzAttractorCommand implements BdvPlaygroundActionCommand {
 
         final int radius = 10;
 
+        ParticleIntegrator cloud;
+
+        int cloudFrom, cloudTo;
+
         public synchronized void addParticle(Particle particle) {
             particles.add(particle);
         }
 
+        /**
+         * Particles of the integrator in [from, to) are drawn as dots
+         */
+        public synchronized void setCloud(ParticleIntegrator integrator, int from, int to) {
+            this.cloud = integrator;
+            this.cloudFrom = from;
+            this.cloudTo = to;
+        }
+
         Font defaultFont = new Font("TimesRoman", Font.BOLD, 18);
 
         final static float[] dash1 = {10.0f};
@@ -301,64 +447,36 @@ public class DemoLorenzAttractorCommand implements BdvPlaygroundActionCommand {
         final static BasicStroke normal =
                 new BasicStroke(4.0f);
 
+        final BatchedOverlayRenderer renderer = new BatchedOverlayRenderer(normal, dashed);
+
         @Override
-        protected void draw(Graphics2D g) {
+        protected synchronized void draw(Graphics2D g) {
             g.setFont(defaultFont);
-            g.setStroke(dashed);
             AffineTransform3D t = new AffineTransform3D();
             this.getCurrentTransform3D(t);
+            renderer.begin(g, t);
             double[] lPos = new double[3];
-            double[] gPos = new double[3];
+            if (cloud != null) {
+                double[][] positions = cloud.getPositions();
+                for (int i = cloudFrom; i < cloudTo; i++) {
+                    renderer.addDot(positions[0][i], positions[1][i], positions[2][i]);
+                }
+                renderer.fill(Color.WHITE);
+            }
             for (Particle particle : particles) {
-                g.setColor(particle.getColor());
                 particle.localize( lPos );
-                t.apply( lPos, gPos );
-                final int radius = this.radius;//(int)(Math.max(maxRadius-Math.abs(gPos[2]),minRadius));
-                final int x = ( int ) ( gPos[ 0 ] - radius );
-                final int y = ( int ) ( gPos[ 1 ] - radius );
-                g.fillOval( x, y, 2*radius, 2*radius );
-                int previousX = x+radius;
-                int previousY = y+radius;
-                double previousZ = gPos[2];
-                List<RealPoint> trail = particle.getTrail().getPoints();
-                int index = 0;
-                if (gPos[2]>0) {
-                    g.setStroke(normal);
-                } else {
-                    g.setStroke(dashed);
-                }
-                for (RealPoint rp : trail) {
-                    g.setColor(particle.getTrail().getColor(index));
-                    rp.localize( lPos );
-                    t.apply( lPos, gPos );
-                    final int xTrail = ( int ) ( gPos[ 0 ] );
-                    final int yTrail = ( int ) ( gPos[ 1 ] );
-                    if (gPos[2]*previousZ<=0) {
-                        if (gPos[2]==previousZ) gPos[2]+=0.01; // Hmmm
-
-                        double ratio = previousZ / (previousZ-gPos[2]);
-
-                        g.drawLine(previousX, previousY,
-                                (int)(previousX + ratio*(xTrail-previousX)),
-                                (int)(previousY + ratio*(yTrail-previousY)));
-
-                        // Need to switch
-                        if (gPos[2]>0) {
-                            g.setStroke(normal);
-                        } else {
-                            g.setStroke(dashed);
-                        }
-                        g.drawLine(
-                                (int)(previousX + ratio*(xTrail-previousX)),
-                                (int)(previousY + ratio*(yTrail-previousY)),xTrail, yTrail);
-                    } else {
-                        g.drawLine(previousX, previousY, xTrail, yTrail);
-                    }
-                    previousX = xTrail;
-                    previousY = yTrail;
-                    previousZ = gPos[2];
-                    index++;
+                renderer.addDisc(lPos[0], lPos[1], lPos[2], radius);
+                renderer.fill(particle.getColor());
+                // The trail starts at the particle
+                renderer.lineTo(lPos[0], lPos[1], lPos[2]);
+                Trail trail = particle.getTrail();
+                long snapshot = trail.snapshot();
+                int size = trail.size(snapshot);
+                for (int index = 0; index < size; index++) {
+                    if (!trail.get(snapshot, index, lPos)) break;
+                    renderer.lineTo(lPos[0], lPos[1], lPos[2]);
                 }
+                renderer.endPolyline(trail.colors);
             }
         }
     }
@@ -1,7 +1,9 @@
 package ch.epfl.biop.demos;
 import bdv.util.BdvHandle;
 import bdv.viewer.SourceAndConverter;
-import org.embl.mobie.io.imagedata.N5ImageData;
+import ch.epfl.biop.demos.utils.ChunkPrefetcher;
+import ch.epfl.biop.demos.utils.SafeDataset;
+import ch.epfl.biop.demos.utils.StreamingOptions;
 import org.scijava.Context;
 import org.scijava.command.CommandService;
 import org.scijava.command.DynamicCommand;
@@ -15,6 +17,15 @@ import sc.fiji.bdvpg.viewer.bdv.navigate.ViewerTransformAdjuster;
 import sc.fiji.bdvpg.scijava.service.SourceBdvDisplayService;
 import sc.fiji.bdvpg.scijava.service.SourceService;
 
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.Timer;
+import javax.swing.event.AncestorEvent;
+import javax.swing.event.AncestorListener;
+import java.awt.FlowLayout;
+import java.util.ArrayList;
+import java.util.List;
+
 @SuppressWarnings({"CanBeFinal", "unused"})
 @Plugin(type = BdvPlaygroundActionCommand.class,
         menu = {
@@ -32,6 +43,21 @@ public class DemoOpenN5Command extends DynamicCommand {
     @Parameter
     String url;
 
+    @Parameter(label = "Fetcher threads")
+    int fetcher_threads = 8;
+
+    @Parameter(label = "Prefetch around the view")
+    boolean prefetch = true;
+
+    @Parameter(label = "Max prefetch requests in flight")
+    int max_in_flight_requests = 8;
+
+    @Parameter(label = "Prefetch budget (MB)")
+    int prefetch_budget_mb = 256;
+
+    @Parameter(label = "Prefetch the next timepoint")
+    boolean prefetch_next_timepoint = true;
+
     @Parameter
     SourceBdvDisplayService displayService;
 
@@ -47,14 +73,37 @@ public class DemoOpenN5Command extends DynamicCommand {
     @Override
     public void run() {
         try {
-            N5ImageData< ? > n5ImageData = new N5ImageData<>(url);
-            SourceAndConverter<?>[] sources = n5ImageData.getSourcesAndConverters().toArray(new SourceAndConverter[0]);
+            StreamingOptions options = new StreamingOptions();
+            options.fetcherThreads = fetcher_threads;
+            options.prefetch = prefetch;
+            options.maxInFlightRequests = max_in_flight_requests;
+            options.cacheSizeBytes = ((long) prefetch_budget_mb) << 20;
+            options.prefetchNextTimepoint = prefetch_next_timepoint;
+
+            SourceAndConverter<?>[] sources = SafeDataset.open(url, options);
 
             BdvHandle bdvh = displayService.getNewBdv();
 
             // I don't use BdvFunctions in order to keep the correct colors
             displayService.show(bdvh, sources);
 
+            if (options.prefetch) {
+                ChunkPrefetcher prefetcher = new ChunkPrefetcher(sources, options);
+                prefetcher.attach(bdvh.getViewerPanel());
+                bdvh.getCardPanel().addCard("Prefetch", makePrefetchPanel(prefetcher), true);
+                bdvh.getViewerPanel().addAncestorListener(new AncestorListener() {
+                    @Override
+                    public void ancestorAdded(AncestorEvent event) {}
+                    @Override
+                    public void ancestorMoved(AncestorEvent event) {}
+                    @Override
+                    public void ancestorRemoved(AncestorEvent event) {
+                        timers.forEach(Timer::stop);
+                        prefetcher.stop();
+                    }
+                });
+            }
+
             new ViewerTransformAdjuster(bdvh, sources).run();
 
         } catch (Exception e) {
@@ -62,4 +111,20 @@ public class DemoOpenN5Command extends DynamicCommand {
         }
 
     }
+
+    JPanel makePrefetchPanel(ChunkPrefetcher prefetcher) {
+        JPanel panel = new JPanel();
+        panel.setLayout(new FlowLayout());
+        JLabel label = new JLabel();
+        panel.add(label);
+        Timer timer = new Timer(500, e ->
+                label.setText("Prefetched: "+prefetcher.getPrefetchedChunks()+
+                        " chunks - Queue depth: "+prefetcher.getQueueDepth()+" chunks"));
+        timer.start();
+        timers.add(timer);
+        return panel;
+    }
+
+    // Stopped when the viewer is closed
+    final List<Timer> timers = new ArrayList<>();
 }
@@ -5,11 +5,13 @@ import bdv.util.BdvHandle;
 import bdv.util.BdvOptions;
 import bdv.util.BdvOverlay;
 import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.demos.utils.AnimationScheduler;
+import ch.epfl.biop.demos.utils.BatchedOverlayRenderer;
 import ch.epfl.biop.demos.utils.BdvHelper;
+import ch.epfl.biop.demos.utils.ParticleIntegrator;
 import ch.epfl.biop.demos.utils.ShiftConverterSetupSliderCommand;
 import net.imagej.ImageJ;
-import net.imglib2.RealPoint;
-import net.imglib2.RealRandomAccessible;
+import net.imglib2.RealLocalizable;
 import net.imglib2.converter.Converter;
 import net.imglib2.display.ColorTable;
 import net.imglib2.position.FunctionRealRandomAccessible;
@@ -28,6 +30,9 @@ import sc.fiji.bdvpg.scijava.ScijavaSwingUI;
 import sc.fiji.bdvpg.service.SourceServices;
 import sc.fiji.bdvpg.source.display.ConverterChanger;
 
+import javax.swing.JPanel;
+import javax.swing.event.AncestorEvent;
+import javax.swing.event.AncestorListener;
 import java.awt.*;
 import java.util.ArrayList;
 import java.util.List;
@@ -130,17 +135,18 @@ public class DemoPendulumCommand implements BdvPlaygroundActionCommand {
                         ),
                 true);
 
-        FunctionRealRandomAccessible<RealPoint> pendulumPhaseSpace =
-                new FunctionRealRandomAccessible<>(2, (position, value) -> {
-                    double theta = position.getDoublePosition(0);
-                    double w = position.getDoublePosition(1);
-                    value.setPosition(w,0); // dtheta/dt = w
-                    value.setPosition(-Math.sin(theta),1); // dw/dt = -sin(theta)
-                }, () -> new RealPoint(3) );
+        ParticleIntegrator pendulums = new ParticleIntegrator(2, (p, v, from, to) -> {
+            double[] theta = p[0], w = p[1];
+            double[] dTheta = v[0], dw = v[1];
+            for (int i = from; i < to; i++) {
+                dTheta[i] = w[i]; // dtheta/dt = w
+                dw[i] = -Math.sin(theta[i]); // dw/dt = -sin(theta)
+            }
+        }, 3);
 
-        Pendulum pendulumEulerExplicit = new Pendulum(1.0, 0, "Explicit Euler");
-        Pendulum pendulumEulerImplicit = new Pendulum(-1.0, 0, "Implicit Euler");
-        Pendulum pendulumEulerRk4 = new Pendulum(0.0, Math.sqrt(2.0*Math.cos(1.0)), "Runge-Kutta 4");
+        Pendulum pendulumEulerExplicit = new Pendulum(pendulums, 1.0, 0, "Explicit Euler");
+        Pendulum pendulumEulerImplicit = new Pendulum(pendulums, -1.0, 0, "Implicit Euler");
+        Pendulum pendulumEulerRk4 = new Pendulum(pendulums, 0.0, Math.sqrt(2.0*Math.cos(1.0)), "Runge-Kutta 4");
 
         PointsOverlay overlay = new PointsOverlay();
         overlay.addPendulum(pendulumEulerExplicit);
@@ -149,23 +155,30 @@ public class DemoPendulumCommand implements BdvPlaygroundActionCommand {
 
         BdvFunctions.showOverlay(overlay, "Points", BdvOptions.options().is2D().addTo(bdvh));
 
-        try {
-            Thread.sleep(5000);
-        } catch (InterruptedException e) {
-            logService.error(e);
-        }
-
-        for (int i = 0;i<20000;i++) {
-            pendulumEulerExplicit.explicitEulerStep(0.06, pendulumPhaseSpace);
-            pendulumEulerImplicit.implicitEulerStep(0.06, pendulumPhaseSpace);
-            pendulumEulerRk4.rk4Step(0.06, pendulumPhaseSpace);
-            try {
-                Thread.sleep(15);
-            } catch (InterruptedException e) {
-                logService.error(e);
+        AnimationScheduler animation = new AnimationScheduler("Pendulum", 0.015, () -> {
+            // Each pendulum is integrated with its own scheme
+            pendulums.explicitEulerStep(0.06, pendulumEulerExplicit.index, pendulumEulerExplicit.index + 1);
+            pendulums.implicitEulerStep(0.06, pendulumEulerImplicit.index, pendulumEulerImplicit.index + 1);
+            pendulums.rk4Step(0.06, pendulumEulerRk4.index, pendulumEulerRk4.index + 1);
+        }, () -> bdvh.getViewerPanel().repaint());
+
+        JPanel statistics = new JPanel();
+        statistics.add(animation.createStatisticsLabel());
+        bdvh.getCardPanel().addCard("Animation", statistics, true);
+
+        // Leaves some time to look at the initial positions
+        animation.start(5000);
+
+        bdvh.getViewerPanel().addAncestorListener(new AncestorListener() {
+            @Override
+            public void ancestorAdded(AncestorEvent event) {}
+            @Override
+            public void ancestorMoved(AncestorEvent event) {}
+            @Override
+            public void ancestorRemoved(AncestorEvent event) {
+                animation.stop();
             }
-            bdvh.getViewerPanel().repaint();
-        }
+        });
 
     }
 
@@ -177,75 +190,48 @@ public class DemoPendulumCommand implements BdvPlaygroundActionCommand {
         ij.command().run(DemoPendulumCommand.class, true);
     }
 
-    public static class Pendulum extends RealPoint {
+    /**
+     * Named pendulum, its position in the phase space is stored in a {@link ParticleIntegrator}
+     */
+    public static class Pendulum implements RealLocalizable {
 
-        final int nDimensions;
+        final ParticleIntegrator integrator;
+        final int index;
         final String name;
 
-        public Pendulum(double theta, double w, String name) {
-            super(2);
+        public Pendulum(ParticleIntegrator integrator, double theta, double w, String name) {
+            this.integrator = integrator;
+            this.index = integrator.add(theta, w);
             this.name = name;
-            nDimensions = 2;
-            setPosition(theta,0);
-            setPosition(w,1);
         }
 
         public String toString() {
             return name;
         }
 
-        // Explicit Euler integration scheme
-        // Gaining energy - unstable
-        public void explicitEulerStep(double dt, RealRandomAccessible<RealPoint> gradient) {
-            RealPoint dir = gradient.getAt(Pendulum.this);
-            for (int d = 0; d<nDimensions; d++) {
-                Pendulum.this.setPosition(getDoublePosition(d)+dir.getDoublePosition(d)*dt, d);
-            }
+        @Override
+        public int numDimensions() {
+            return 2;
         }
 
-        // Implicit Euler integration scheme
-        // Losing energy : stable
-        public void implicitEulerStep(double dt, RealRandomAccessible<RealPoint> gradient) {
-            RealPoint gradientPosition = new RealPoint(this);
-            RealPoint currentGradient = gradient.getAt(gradientPosition);
-            for (int i=0;i<3;i++) {
-                for (int d = 0; d < nDimensions; d++) {
-                    gradientPosition.setPosition(getDoublePosition(d) + currentGradient.getDoublePosition(d) * dt, d);
-                }
-                currentGradient = gradient.getAt(gradientPosition);
-            }
-            for (int d = 0; d < Pendulum.this.numDimensions(); d++) {
-                this.setPosition(getDoublePosition(d) + currentGradient.getDoublePosition(d) * dt, d);
-            }
+        @Override
+        public void localize(float[] position) {
+            for (int d = 0; d < 2; d++) position[d] = getFloatPosition(d);
         }
 
-        // Runge Kutta
-        public void rk4Step(double dt, RealRandomAccessible<RealPoint> gradient) {
-
-            RealPoint p1 = new RealPoint(this);
-            RealPoint k1 = new RealPoint(gradient.getAt(p1));
-
-            RealPoint p2 = new RealPoint(nDimensions);
-            for (int d = 0; d < nDimensions; d++) {
-                p2.setPosition(getDoublePosition(d) + k1.getDoublePosition(d) * dt/2.0, d);
-            }
-            RealPoint k2 = new RealPoint(gradient.getAt(p2));
-
-            RealPoint p3 = new RealPoint(nDimensions);
-            for (int d = 0; d < nDimensions; d++) {
-                p3.setPosition(getDoublePosition(d) + k2.getDoublePosition(d) * dt/2.0, d);
-            }
-            RealPoint k3 = new RealPoint(gradient.getAt(p3));
+        @Override
+        public void localize(double[] position) {
+            integrator.localize(index, position);
+        }
 
-            RealPoint p4 = new RealPoint(nDimensions);
-            for (int d = 0; d < nDimensions; d++) {
-                p4.setPosition(getDoublePosition(d) + k3.getDoublePosition(d) * dt, d);
-            }
-            RealPoint k4 = new RealPoint(gradient.getAt(p4));
+        @Override
+        public float getFloatPosition(int d) {
+            return (float) getDoublePosition(d);
+        }
 
-            for (int d = 0; d < nDimensions; d++) {
-                this.setPosition(getDoublePosition(d) + (k1.getDoublePosition(d) + 2.0 * k2.getDoublePosition(d) + 2.0 * k3.getDoublePosition(d) + k4.getDoublePosition(d)) * dt/6.0, d);
-            }
+        @Override
+        public double getDoublePosition(int d) {
+            return integrator.getPosition(index, d);
         }
 
     }
@@ -268,21 +254,27 @@ public class DemoPendulumCommand implements BdvPlaygroundActionCommand {
 
         final Font defaultFont = new Font("TimesRoman", Font.BOLD, 18);
 
+        final BatchedOverlayRenderer renderer = new BatchedOverlayRenderer(new BasicStroke(), new BasicStroke());
+
         @Override
         protected void draw(Graphics2D g) {
-            g.setColor(c);
             g.setFont(defaultFont);
             AffineTransform3D t = new AffineTransform3D();
             this.getCurrentTransform3D(t);
+            renderer.begin(g, t);
             double[] lPos = new double[3];
-            double[] gPos = new double[3];
+            float[] gPos = new float[3];
             for (Pendulum pendulum : pendulums) {
                 pendulum.localize( lPos );
-                t.apply( lPos, gPos );
-                final int x = ( int ) ( gPos[ 0 ] - radius );
-                final int y = ( int ) ( gPos[ 1 ] - radius );
-                g.fillOval( x, y, 2*radius, 2*radius );
-                g.drawString(pendulum.toString(), (int) (gPos[ 0 ]), (int) (gPos[ 1 ]) - 20);
+                renderer.addDisc(lPos[0], lPos[1], lPos[2], radius);
+            }
+            renderer.fill(c);
+            for (Pendulum pendulum : pendulums) {
+                pendulum.localize( lPos );
+                renderer.transform(lPos[0], lPos[1], lPos[2], gPos);
+                if (renderer.isVisible(gPos[0], gPos[1])) {
+                    g.drawString(pendulum.toString(), (int) (gPos[ 0 ]), (int) (gPos[ 1 ]) - 20);
+                }
             }
         }
     }
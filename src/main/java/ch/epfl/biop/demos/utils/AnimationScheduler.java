@@ -0,0 +1,162 @@
+package ch.epfl.biop.demos.utils;
+
+import javax.swing.JLabel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a simulation with a fixed time step, and repaints its display independently
+ * <p>
+ * The simulation runs on its own thread: at each tick, it performs as many steps as the elapsed
+ * wall clock time requires, so its speed does not depend on the scheduling jitter. When it cannot
+ * keep up, the late steps are dropped after {@link #MAX_CATCH_UP_STEPS}.
+ * <p>
+ * Repaints are requested at most once per frame period, and not at all while the previous
+ * frame has not been painted yet: a slow display lowers the frame rate instead of accumulating
+ * repaint requests. A frame is considered painted when the event dispatch thread has processed
+ * the events queued after the repaint request.
+ */
+public class AnimationScheduler {
+
+    public static final int MAX_CATCH_UP_STEPS = 10;
+
+    // Frame period, about one screen refresh
+    public static final long FRAME_PERIOD_NANOS = 16_666_667L;
+
+    final ScheduledExecutorService executor;
+
+    final long stepNanos;
+
+    final Runnable step;
+
+    final Runnable repaint;
+
+    final AtomicBoolean framePending = new AtomicBoolean(false);
+
+    final AtomicLong steps = new AtomicLong();
+
+    final AtomicLong frames = new AtomicLong();
+
+    long lastTick, accumulated;
+
+    // Rates over the last second
+    long lastMeasure, lastSteps, lastFrames;
+
+    volatile double stepsPerSecond, framesPerSecond;
+
+    /**
+     * @param stepPeriodSeconds wall clock time between two simulation steps
+     * @param step simulation step, never called concurrently
+     * @param repaint called on the event dispatch thread
+     */
+    public AnimationScheduler(String name, double stepPeriodSeconds, Runnable step, Runnable repaint) {
+        this.stepNanos = Math.max(1, (long) (stepPeriodSeconds * 1e9));
+        this.step = step;
+        this.repaint = repaint;
+        this.executor = Executors.newScheduledThreadPool(2, r -> {
+            Thread thread = new Thread(r, name+" animation");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        start(0);
+    }
+
+    public void start(long initialDelayMillis) {
+        executor.schedule(() -> {
+            lastTick = System.nanoTime();
+            lastMeasure = lastTick;
+            executor.scheduleAtFixedRate(this::tick, 0, stepNanos, TimeUnit.NANOSECONDS);
+            executor.scheduleAtFixedRate(this::frame, 0, FRAME_PERIOD_NANOS, TimeUnit.NANOSECONDS);
+        }, initialDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the simulation and the repaints, for instance when the viewer is closed
+     */
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    public boolean isStopped() {
+        return executor.isShutdown();
+    }
+
+    private void tick() {
+        try {
+            long now = System.nanoTime();
+            accumulated += now - lastTick;
+            lastTick = now;
+            int n = 0;
+            while ((accumulated >= stepNanos) && (n < MAX_CATCH_UP_STEPS)) {
+                step.run();
+                accumulated -= stepNanos;
+                n++;
+            }
+            if (accumulated >= stepNanos) accumulated = 0; // Too late, gives up these steps
+            steps.addAndGet(n);
+            if (now - lastMeasure >= 1_000_000_000L) {
+                double seconds = (now - lastMeasure) / 1e9;
+                long s = steps.get(), f = frames.get();
+                stepsPerSecond = (s - lastSteps) / seconds;
+                framesPerSecond = (f - lastFrames) / seconds;
+                lastSteps = s;
+                lastFrames = f;
+                lastMeasure = now;
+            }
+        } catch (Throwable e) {
+            // An exception would silently cancel the periodic task
+            System.err.println("Animation step failed: "+e.getMessage());
+            stop();
+        }
+    }
+
+    private void frame() {
+        if (!framePending.compareAndSet(false, true)) return; // Previous frame still being painted
+        SwingUtilities.invokeLater(() -> {
+            repaint.run();
+            // Queued after the paint events of the repaint
+            SwingUtilities.invokeLater(() -> {
+                frames.incrementAndGet();
+                framePending.set(false);
+            });
+        });
+    }
+
+    public long getSteps() {
+        return steps.get();
+    }
+
+    public double getStepsPerSecond() {
+        return stepsPerSecond;
+    }
+
+    public double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    /**
+     * @return a label displaying the simulation and display rates, updated every second
+     */
+    public JLabel createStatisticsLabel() {
+        JLabel label = new JLabel();
+        Timer timer = new Timer(1000, e -> {
+            if (isStopped()) {
+                ((Timer) e.getSource()).stop();
+                return;
+            }
+            label.setText(String.format("Simulation: %.0f steps/s - Display: %.1f frames/s",
+                    getStepsPerSecond(), getFramesPerSecond()));
+        });
+        timer.start();
+        return label;
+    }
+
+}
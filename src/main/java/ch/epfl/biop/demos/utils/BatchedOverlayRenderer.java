@@ -0,0 +1,228 @@
+package ch.epfl.biop.demos.utils;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Stroke;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.util.Arrays;
+
+/**
+ * Draws many points and polylines of an overlay with a few Graphics2D calls
+ * <p>
+ * Points are transformed to the screen with the coefficients of the viewer transform copied once
+ * per frame, and stored in float buffers. Segments are then appended to a few reused Path2D,
+ * which are stroked once each, instead of one drawLine per segment. Segments entirely on one
+ * side of the clip are skipped, and consecutive points less than a pixel apart are merged. A
+ * Path2D holds at most {@link #MAX_RUN} segments: stroking a long self overlapping path costs
+ * more than stroking its parts separately.
+ * <p>
+ * Polylines are stroked with a front stroke where their screen depth is positive and a back
+ * stroke elsewhere, segments crossing the plane of depth 0 are split at the crossing. Their
+ * color can fade along the polyline: segments are grouped in {@link #COLOR_LEVELS} runs of
+ * consecutive segments, each run is drawn with the color of its first segment.
+ * <p>
+ * Usage, in the draw method of an overlay: {@link #begin(Graphics2D, AffineTransform3D)}, then
+ * polylines and discs. Not thread safe, the buffers are reused from frame to frame.
+ */
+public class BatchedOverlayRenderer {
+
+    public static final int COLOR_LEVELS = 16;
+
+    public static final int MAX_RUN = 512;
+
+    final Stroke front, back;
+
+    // Front and back paths of the current color run, with the end of their last segment
+    final Path2D.Float[] paths = {new Path2D.Float(), new Path2D.Float()};
+
+    final float[] lastX = new float[2], lastY = new float[2];
+
+    final boolean[] empty = new boolean[2];
+
+    final Path2D.Float fillPath = new Path2D.Float();
+
+    final Ellipse2D.Float ellipse = new Ellipse2D.Float();
+
+    boolean emptyFill = true;
+
+    // Screen coordinates of the points of the current polyline
+    float[] xs = new float[1024], ys = new float[1024], zs = new float[1024];
+
+    int nPoints = 0;
+
+    Graphics2D g;
+
+    // Row major 3x4 coefficients of the viewer transform
+    final double[] m = new double[12];
+
+    // Culling bounds, with a margin for the stroke width
+    float minX, minY, maxX, maxY;
+
+    boolean cull;
+
+    public BatchedOverlayRenderer(Stroke front, Stroke back) {
+        this.front = front;
+        this.back = back;
+    }
+
+    /**
+     * Starts a frame
+     * @param viewerTransform global to screen transform of the overlay
+     */
+    public void begin(Graphics2D g, AffineTransform3D viewerTransform) {
+        this.g = g;
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 4; c++) {
+                m[4 * r + c] = viewerTransform.get(r, c);
+            }
+        }
+        Rectangle clip = g.getClipBounds();
+        cull = clip != null;
+        if (cull) {
+            float margin = 8;
+            minX = clip.x - margin;
+            minY = clip.y - margin;
+            maxX = clip.x + clip.width + margin;
+            maxY = clip.y + clip.height + margin;
+        }
+        nPoints = 0;
+        fillPath.reset();
+        emptyFill = true;
+    }
+
+    /**
+     * Transforms a global position to the screen, out should have 3 elements
+     */
+    public void transform(double x, double y, double z, float[] out) {
+        out[0] = (float) (m[0] * x + m[1] * y + m[2] * z + m[3]);
+        out[1] = (float) (m[4] * x + m[5] * y + m[6] * z + m[7]);
+        out[2] = (float) (m[8] * x + m[9] * y + m[10] * z + m[11]);
+    }
+
+    public boolean isVisible(float x, float y) {
+        return !cull || ((x >= minX) && (x <= maxX) && (y >= minY) && (y <= maxY));
+    }
+
+    /**
+     * Adds a point, in global coordinates, to the current polyline
+     */
+    public void lineTo(double x, double y, double z) {
+        if (nPoints == xs.length) {
+            xs = Arrays.copyOf(xs, 2 * nPoints);
+            ys = Arrays.copyOf(ys, 2 * nPoints);
+            zs = Arrays.copyOf(zs, 2 * nPoints);
+        }
+        xs[nPoints] = (float) (m[0] * x + m[1] * y + m[2] * z + m[3]);
+        ys[nPoints] = (float) (m[4] * x + m[5] * y + m[6] * z + m[7]);
+        zs[nPoints] = (float) (m[8] * x + m[9] * y + m[10] * z + m[11]);
+        nPoints++;
+    }
+
+    /**
+     * Draws the current polyline and starts a new one
+     * @param colors color of each segment, segment i joins the points i and i+1,
+     *               the last color is used for the segments beyond the array
+     */
+    public void endPolyline(Color[] colors) {
+        int nSegments = nPoints - 1;
+        int run = Math.min(MAX_RUN, Math.max(1, (nSegments + COLOR_LEVELS - 1) / COLOR_LEVELS));
+        for (int start = 0; start < nSegments; start += run) {
+            int end = Math.min(start + run, nSegments);
+            for (int side = 0; side < 2; side++) {
+                paths[side].reset();
+                empty[side] = true;
+            }
+            int from = start;
+            for (int i = start + 1; i <= end; i++) {
+                if ((i < end) && (Math.abs(xs[i] - xs[from]) < 1) && (Math.abs(ys[i] - ys[from]) < 1)
+                        && ((zs[i] > 0) == (zs[from] > 0))) continue; // Less than a pixel
+                addSegment(from, i);
+                from = i;
+            }
+            g.setColor(colors[Math.min(start, colors.length - 1)]);
+            if (!empty[0]) {
+                g.setStroke(front);
+                g.draw(paths[0]);
+            }
+            if (!empty[1]) {
+                g.setStroke(back);
+                g.draw(paths[1]);
+            }
+        }
+        nPoints = 0;
+    }
+
+    private void addSegment(int i0, int i1) {
+        float x0 = xs[i0], y0 = ys[i0], z0 = zs[i0];
+        float x1 = xs[i1], y1 = ys[i1], z1 = zs[i1];
+        if (cull && (((x0 < minX) && (x1 < minX)) || ((x0 > maxX) && (x1 > maxX)) ||
+                ((y0 < minY) && (y1 < minY)) || ((y0 > maxY) && (y1 > maxY)))) return;
+        if (z0 * z1 <= 0) {
+            if (z0 == z1) z1 += 0.01f;
+            // Split at depth 0, each half drawn with the stroke of its side
+            float ratio = z0 / (z0 - z1);
+            float xm = x0 + ratio * (x1 - x0);
+            float ym = y0 + ratio * (y1 - y0);
+            append(z0 > 0 ? 0 : 1, x0, y0, xm, ym);
+            append(z1 > 0 ? 0 : 1, xm, ym, x1, y1);
+        } else {
+            append(z0 > 0 ? 0 : 1, x0, y0, x1, y1);
+        }
+    }
+
+    private void append(int side, float x0, float y0, float x1, float y1) {
+        // Continues the previous segment when possible, so that dashes follow the polyline
+        if (empty[side] || (lastX[side] != x0) || (lastY[side] != y0)) {
+            paths[side].moveTo(x0, y0);
+        }
+        paths[side].lineTo(x1, y1);
+        lastX[side] = x1;
+        lastY[side] = y1;
+        empty[side] = false;
+    }
+
+    /**
+     * Adds a disc centered on a global position, drawn by the next {@link #fill(Color)}
+     * @param radius in screen pixels
+     */
+    public void addDisc(double x, double y, double z, float radius) {
+        float sx = (float) (m[0] * x + m[1] * y + m[2] * z + m[3]);
+        float sy = (float) (m[4] * x + m[5] * y + m[6] * z + m[7]);
+        if (cull && ((sx + radius < minX) || (sx - radius > maxX) || (sy + radius < minY) || (sy - radius > maxY))) return;
+        ellipse.setFrame(sx - radius, sy - radius, 2 * radius, 2 * radius);
+        fillPath.append(ellipse, false);
+        emptyFill = false;
+    }
+
+    /**
+     * Adds a one pixel square at a global position, drawn by the next {@link #fill(Color)}
+     */
+    public void addDot(double x, double y, double z) {
+        float sx = (float) Math.floor(m[0] * x + m[1] * y + m[2] * z + m[3]);
+        float sy = (float) Math.floor(m[4] * x + m[5] * y + m[6] * z + m[7]);
+        if (cull && ((sx < minX) || (sx > maxX) || (sy < minY) || (sy > maxY))) return;
+        fillPath.moveTo(sx, sy);
+        fillPath.lineTo(sx + 1, sy);
+        fillPath.lineTo(sx + 1, sy + 1);
+        fillPath.lineTo(sx, sy + 1);
+        fillPath.closePath();
+        emptyFill = false;
+    }
+
+    /**
+     * Fills the discs and dots added since the last fill
+     */
+    public void fill(Color color) {
+        if (!emptyFill) {
+            g.setColor(color);
+            g.fill(fillPath);
+        }
+        fillPath.reset();
+        emptyFill = true;
+    }
+
+}
@@ -1,43 +1,161 @@
 package ch.epfl.biop.demos.utils;
 
+import bdv.cache.SharedQueue;
 import bdv.tools.brightness.ConverterSetup;
 import bdv.util.BdvFunctions;
 import bdv.util.BdvHandle;
 import bdv.util.BdvOptions;
 import bdv.util.BdvStackSource;
 import bdv.viewer.AbstractViewerPanel;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.ViewerPanel;
 import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.display.ColorTable8;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 
 import javax.swing.JPanel;
 import javax.swing.JSplitPane;
+import javax.swing.event.AncestorEvent;
+import javax.swing.event.AncestorListener;
 import java.awt.BorderLayout;
 import java.awt.Component;
+import java.util.HashMap;
+import java.util.Map;
 
 public class BdvHelper {
 
+    /**
+     * Default raster of {@link #display2D(RealRandomAccessible, int, int, int, double, double, String, BdvHandle)}:
+     * [-64, 64] along each axis, sampled every 1/128 global unit
+     */
+    public static final RealInterval DEFAULT_EXTENT_2D = new FinalRealInterval(new double[]{-64, -64}, new double[]{64, 64});
+    public static final double DEFAULT_PIXEL_SIZE_2D = 1.0/128.0;
+
+    /**
+     * Default raster of {@link #display3D(RealRandomAccessible, int, int, int, double, double, String, BdvHandle)}:
+     * [-64, 64] along each axis, sampled every 1/8 global unit
+     */
+    public static final RealInterval DEFAULT_EXTENT_3D = new FinalRealInterval(new double[]{-64, -64, -64}, new double[]{64, 64, 64});
+    public static final double DEFAULT_PIXEL_SIZE_3D = 1.0/8.0;
+
+    // Load the cells of the cached functions in the background, one queue per viewer, shut down with it
+    private static final Map<ViewerPanel, SharedQueue> queues = new HashMap<>();
+
+    private static synchronized SharedQueue getQueue(BdvHandle bdvh) {
+        SharedQueue queue = bdvh == null ? null : queues.get(bdvh.getViewerPanel());
+        return queue != null ? queue : new SharedQueue(Math.max(1, Runtime.getRuntime().availableProcessors()-1));
+    }
+
+    private static synchronized void keepQueue(ViewerPanel viewer, SharedQueue queue) {
+        if (queues.containsKey(viewer)) return;
+        queues.put(viewer, queue);
+        viewer.addAncestorListener(new AncestorListener() {
+            @Override
+            public void ancestorAdded(AncestorEvent event) {}
+            @Override
+            public void ancestorMoved(AncestorEvent event) {}
+            @Override
+            public void ancestorRemoved(AncestorEvent event) {
+                viewer.removeAncestorListener(this);
+                synchronized (BdvHelper.class) {
+                    queues.remove(viewer);
+                }
+                queue.shutdown();
+            }
+        });
+    }
+
+    /**
+     * Displays a 2D function over {@link #DEFAULT_EXTENT_2D}, see
+     * {@link #display2D(RealRandomAccessible, int, int, int, double, double, String, BdvHandle, RealInterval, double)}.
+     * A new viewer shows the unit square.
+     */
     public static BdvHandle display2D(RealRandomAccessible rra, int r, int g, int b, double min, double max, String name, BdvHandle bdvh) {
-        FinalInterval interval = new FinalInterval(new long[]{0,0}, new long[]{1,1});
-        BdvOptions options = BdvOptions.options().is2D();
-        if (bdvh!=null) options.addTo(bdvh);
-        BdvStackSource<?> bss = BdvFunctions.show(rra, interval, name, options); // Issue : not accepting a RealInterval! TODO : mention
-        bss.setColor(new ARGBType(ARGBType.rgba(r,g,b,0)));
-        ((ConverterSetup)bss.getConverterSetups().get(0)).setDisplayRange(min,max); // Why cast to Converter Setup ? mention issue TODO
-        return bss.getBdvHandle();
+        return display(rra, r, g, b, min, max, name, bdvh, DEFAULT_EXTENT_2D, DEFAULT_PIXEL_SIZE_2D,
+                new FinalInterval(new long[]{0,0}, new long[]{1,1}));
+    }
+
+    /**
+     * Displays a 2D function. If its values are native real types, it is rasterized over extent
+     * into a cached multiresolution source and computed asynchronously, otherwise it is evaluated
+     * at each repaint. A new viewer shows the whole extent.
+     * @param pixelSize sampling step of the raster, in global units
+     */
+    public static BdvHandle display2D(RealRandomAccessible rra, int r, int g, int b, double min, double max, String name, BdvHandle bdvh,
+                                      RealInterval extent, double pixelSize) {
+        return display(rra, r, g, b, min, max, name, bdvh, extent, pixelSize, extent);
     }
 
+    /**
+     * Displays a 3D function over {@link #DEFAULT_EXTENT_3D}, see
+     * {@link #display3D(RealRandomAccessible, int, int, int, double, double, String, BdvHandle, RealInterval, double)}.
+     * A new viewer shows the unit cube.
+     */
     public static BdvHandle display3D(RealRandomAccessible rra, int r, int g, int b, double min, double max, String name, BdvHandle bdvh) {
-        FinalInterval interval = new FinalInterval(new long[]{0,0,0}, new long[]{1,1,1});
-        BdvOptions options = BdvOptions.options();//.is2D();
+        return display(rra, r, g, b, min, max, name, bdvh, DEFAULT_EXTENT_3D, DEFAULT_PIXEL_SIZE_3D,
+                new FinalInterval(new long[]{0,0,0}, new long[]{1,1,1}));
+    }
+
+    /**
+     * Displays a 3D function. If its values are native real types, it is rasterized over extent
+     * into a cached multiresolution source and computed asynchronously, otherwise it is evaluated
+     * at each repaint. A new viewer shows the whole extent.
+     * @param pixelSize sampling step of the raster, in global units
+     */
+    public static BdvHandle display3D(RealRandomAccessible rra, int r, int g, int b, double min, double max, String name, BdvHandle bdvh,
+                                      RealInterval extent, double pixelSize) {
+        return display(rra, r, g, b, min, max, name, bdvh, extent, pixelSize, extent);
+    }
+
+    private static BdvHandle display(RealRandomAccessible rra, int r, int g, int b, double min, double max, String name, BdvHandle bdvh,
+                                     RealInterval extent, double pixelSize, RealInterval view) {
+        BdvOptions options = BdvOptions.options();
+        if (rra.numDimensions() == 2) options.is2D();
         if (bdvh!=null) options.addTo(bdvh);
-        BdvStackSource bss = BdvFunctions.show(rra, interval, name, options); // Issue : not accepting a RealInterval! TODO : mention
+        Object type = rra.realRandomAccess().get();
+        BdvStackSource<?> bss;
+        if ((type instanceof RealType) && (type instanceof NativeType)) {
+            Source<?> cached = new CachedFunctionSource(name, rra, (RealType) type, extent, pixelSize);
+            SharedQueue queue = getQueue(bdvh);
+            bss = BdvFunctions.show(CachedFunctionSource.getSourceAndConverter(queue, (Source) cached), options);
+            keepQueue(bss.getBdvHandle().getViewerPanel(), queue);
+            if (bdvh==null) fitView(bss.getBdvHandle().getViewerPanel(), view);
+        } else {
+            bss = BdvFunctions.show(rra, Intervals.smallestContainingInterval(view), name, options); // Issue : not accepting a RealInterval! TODO : mention
+        }
         bss.setColor(new ARGBType(ARGBType.rgba(r,g,b,0)));
         ((ConverterSetup)bss.getConverterSetups().get(0)).setDisplayRange(min,max); // Why cast to Converter Setup ? mention issue TODO
         return bss.getBdvHandle();
     }
 
+    /**
+     * Centers the view on this interval and zooms so that it fits, like a new viewer does
+     * for a function displayed over this interval
+     */
+    static void fitView(ViewerPanel viewer, RealInterval interval) {
+        double width = viewer.getDisplay().getWidth() > 0 ? viewer.getDisplay().getWidth() : 800;
+        double height = viewer.getDisplay().getHeight() > 0 ? viewer.getDisplay().getHeight() : 600;
+        double scale = Math.min(
+                width / (interval.realMax(0) - interval.realMin(0)),
+                height / (interval.realMax(1) - interval.realMin(1)));
+        AffineTransform3D view = new AffineTransform3D();
+        view.translate(
+                -(interval.realMin(0) + interval.realMax(0)) / 2.0,
+                -(interval.realMin(1) + interval.realMax(1)) / 2.0,
+                interval.numDimensions() > 2 ? -(interval.realMin(2) + interval.realMax(2)) / 2.0 : 0);
+        view.scale(scale);
+        view.translate(width / 2.0, height / 2.0, 0);
+        viewer.state().setViewerTransform(view);
+    }
+
     public static ColorTable8 levels(int number, int maxWhite) {
         byte[] r = new byte[256];
         byte[] g = new byte[256];
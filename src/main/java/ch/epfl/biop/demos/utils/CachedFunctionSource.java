@@ -0,0 +1,239 @@
+package ch.epfl.biop.demos.utils;
+
+import bdv.BigDataViewer;
+import bdv.cache.SharedQueue;
+import bdv.util.DefaultInterpolators;
+import bdv.util.WrapVolatileSource;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.converter.Converter;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import sc.fiji.bdvpg.cache.GlobalLoaderCache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rasterizes a 2D or 3D real function into a cached multiresolution Source
+ * <p>
+ * The level 0 grid samples the function every pixelSize global units, either over a given
+ * interval, or over 2^gridSizeLog2 pixels along each axis, centered on the origin. Each pixel of a
+ * level l holds the value of the function at its center, with a pixel size of 2^l times the
+ * level 0 one. Cells are computed once, kept in the global cache, and loaded asynchronously when
+ * displayed through {@link #getSourceAndConverter}. The function is not evaluated outside this grid.
+ */
+public class CachedFunctionSource<T extends RealType<T> & NativeType<T>> implements Source<T> {
+
+    protected final DefaultInterpolators< T > interpolators = new DefaultInterpolators<>();
+
+    final String name;
+
+    final RealRandomAccessible<T> function;
+
+    final T type;
+
+    final int nDimensions;
+
+    final double pixelSize;
+
+    // Global position of the pixel 0 of level 0
+    final double[] origin;
+
+    // Level 0 grid size
+    final long[] dimensions;
+
+    final int tileSize;
+
+    final int nResolutionLevels;
+
+    final Map<Integer, RandomAccessibleInterval<T>> levels = new ConcurrentHashMap<>();
+
+    /**
+     * @param function 2D or 3D function, its realRandomAccess is called once per cell
+     * @param pixelSize level 0 pixel size, in global units
+     * @param gridSizeLog2 the level 0 grid is 2^gridSizeLog2 pixels wide
+     */
+    public CachedFunctionSource(String name, RealRandomAccessible<T> function, T type, double pixelSize, int gridSizeLog2) {
+        this(name, function, type, pixelSize,
+                filled(function.numDimensions(), -(1L << (gridSizeLog2 - 1)) * pixelSize),
+                filled(function.numDimensions(), 1L << gridSizeLog2));
+    }
+
+    /**
+     * @param function 2D or 3D function, its realRandomAccess is called once per cell
+     * @param extent the function is sampled from its min to its max, included
+     * @param pixelSize level 0 pixel size, in global units
+     */
+    public CachedFunctionSource(String name, RealRandomAccessible<T> function, T type, RealInterval extent, double pixelSize) {
+        this(name, function, type, pixelSize, min(extent), gridSize(extent, pixelSize));
+    }
+
+    private CachedFunctionSource(String name, RealRandomAccessible<T> function, T type, double pixelSize, double[] origin, long[] dimensions) {
+        this.name = name;
+        this.function = function;
+        this.type = type.createVariable();
+        this.nDimensions = function.numDimensions();
+        if ((nDimensions != 2) && (nDimensions != 3)) {
+            throw new IllegalArgumentException("Only 2D and 3D functions can be cached, not "+nDimensions+"D");
+        }
+        if (origin.length != nDimensions) {
+            throw new IllegalArgumentException("The extent of a "+nDimensions+"D function can't be "+origin.length+"D");
+        }
+        this.pixelSize = pixelSize;
+        this.origin = origin;
+        this.dimensions = dimensions;
+        this.tileSize = nDimensions == 2 ? 256 : 32;
+        long largest = Arrays.stream(dimensions).max().getAsLong();
+        int nLevels = 1;
+        while (levelSize(largest, nLevels - 1) > tileSize) nLevels++;
+        this.nResolutionLevels = nLevels;
+    }
+
+    private static double[] filled(int nDimensions, double value) {
+        double[] array = new double[nDimensions];
+        Arrays.fill(array, value);
+        return array;
+    }
+
+    private static long[] filled(int nDimensions, long value) {
+        long[] array = new long[nDimensions];
+        Arrays.fill(array, value);
+        return array;
+    }
+
+    private static double[] min(RealInterval extent) {
+        double[] min = new double[extent.numDimensions()];
+        extent.realMin(min);
+        return min;
+    }
+
+    private static long[] gridSize(RealInterval extent, double pixelSize) {
+        if (!(pixelSize > 0)) throw new IllegalArgumentException("Invalid pixel size "+pixelSize);
+        long[] dimensions = new long[extent.numDimensions()];
+        for (int d = 0; d < dimensions.length; d++) {
+            dimensions[d] = (long) Math.floor((extent.realMax(d) - extent.realMin(d)) / pixelSize) + 1;
+        }
+        return dimensions;
+    }
+
+    // Number of pixels of a level, for this number of level 0 pixels
+    private static long levelSize(long size, int level) {
+        return ((size - 1) >> level) + 1;
+    }
+
+    @Override
+    public boolean isPresent(int t) {
+        return t==0;
+    }
+
+    @Override
+    public RandomAccessibleInterval<T> getSource(int t, int level) {
+        return levels.computeIfAbsent(level, this::buildLevel);
+    }
+
+    private RandomAccessibleInterval<T> buildLevel(int level) {
+        CellGrid grid = nDimensions == 2 ?
+                new CellGrid(new long[]{levelSize(dimensions[0], level), levelSize(dimensions[1], level), 1},
+                        new int[]{tileSize, tileSize, 1}) :
+                new CellGrid(new long[]{levelSize(dimensions[0], level), levelSize(dimensions[1], level), levelSize(dimensions[2], level)},
+                        new int[]{tileSize, tileSize, tileSize});
+
+        AffineTransform3D sourceTransform = new AffineTransform3D();
+        getSourceTransform(0, level, sourceTransform);
+
+        LoadedCellCacheLoader<T, ?> loader = LoadedCellCacheLoader.get(grid, cell -> {
+            RealRandomAccess<T> access = function.realRandomAccess();
+            double[] pixel = new double[3];
+            double[] position = new double[3];
+            Cursor<T> cursor = Views.flatIterable(cell).localizingCursor();
+            while (cursor.hasNext()) {
+                T value = cursor.next();
+                cursor.localize(pixel);
+                sourceTransform.apply(pixel, position);
+                for (int d = 0; d < nDimensions; d++) {
+                    access.setPosition(position[d], d);
+                }
+                value.set(access.get());
+            }
+        }, type, AccessFlags.setOf(AccessFlags.VOLATILE));
+        Cache<Long, Cell<T>> cache = (new GlobalLoaderCache(this, 0, level)).withLoader(loader);
+        return new CachedCellImg(grid, getType(), cache, ArrayDataAccessFactory.get(getType(), AccessFlags.setOf(AccessFlags.VOLATILE)));
+    }
+
+    @Override
+    public RealRandomAccessible<T> getInterpolatedSource(int t, int level, Interpolation method) {
+        return Views.interpolate( Views.extendZero(getSource( t, level )), interpolators.get(method) );
+    }
+
+    @Override
+    public void getSourceTransform(int t, int level, AffineTransform3D transform) {
+        double scale = pixelSize * (1L << level);
+        // Center of the pixel 0 of this level
+        double offset = ((1L << level) - 1) / 2.0 * pixelSize;
+        transform.identity();
+        if (nDimensions == 2) {
+            transform.scale(scale, scale, 1);
+            transform.translate(origin[0] + offset, origin[1] + offset, 0);
+        } else {
+            transform.scale(scale);
+            transform.translate(origin[0] + offset, origin[1] + offset, origin[2] + offset);
+        }
+    }
+
+    @Override
+    public T getType() {
+        return type.createVariable();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions() {
+        return new FinalVoxelDimensions("pixel", 1,1,1);
+    }
+
+    @Override
+    public int getNumMipmapLevels() {
+        return nResolutionLevels;
+    }
+
+    public static <T extends RealType<T> & NativeType<T>> SourceAndConverter<T> getSourceAndConverter(SharedQueue queue, Source<T> source) {
+        SourceAndConverter<T> sac_out;
+
+        SourceAndConverter<?> vsac; Source<?> vsrcRsampled;
+
+        vsrcRsampled = new WrapVolatileSource<>(source, queue);
+        Converter< ?, ARGBType> volatileConverter = BigDataViewer.createConverterToARGB((NumericType) vsrcRsampled.getType());
+        Converter< ?, ARGBType> converter = BigDataViewer.createConverterToARGB(source.getType());
+
+        vsac = new SourceAndConverter(vsrcRsampled,volatileConverter);
+        sac_out = new SourceAndConverter(source, converter,vsac);
+
+        return sac_out;
+    }
+
+}
@@ -0,0 +1,228 @@
+package ch.epfl.biop.demos.utils;
+
+import bdv.util.MipmapTransforms;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.ViewerPanel;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefetches the chunks of streamed sources around the displayed region
+ * <p>
+ * On each change of the view, the chunks of the displayed region are loaded at the resolution
+ * level BDV displays, then the ones one screen ahead in the direction of the last pan, then the
+ * displayed ones of the next timepoint. Chunks are loaded through the non volatile image of the
+ * sources, which shares its cache with the volatile image displayed by BDV for N5 sources: BDV
+ * then finds them in the cache instead of waiting for a request per chunk.
+ * <p>
+ * A plan stops once {@link StreamingOptions#cacheSizeBytes} are prefetched, and a new view
+ * cancels the chunks of the previous plan not loaded yet.
+ */
+public class ChunkPrefetcher {
+
+    // Chunk size used when the image is not a cell image, for instance a view of one channel
+    public static final int DEFAULT_CHUNK_SIZE = 64;
+
+    final SourceAndConverter<?>[] sources;
+
+    final StreamingOptions options;
+
+    final ExecutorService planner;
+
+    final ExecutorService workers;
+
+    final AtomicLong lastRequest = new AtomicLong();
+
+    final AtomicLong prefetchedChunks = new AtomicLong();
+
+    // Chunks of the current plan which are not loaded yet. Each plan has its own counter: the
+    // tasks of a superseded plan do not decrement the next one
+    volatile AtomicInteger queueDepth = new AtomicInteger();
+
+    // Only accessed by the planner thread
+    AffineTransform3D previousTransform;
+
+    public ChunkPrefetcher(SourceAndConverter<?>[] sources, StreamingOptions options) {
+        this.sources = sources;
+        this.options = options;
+        this.planner = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Chunk prefetch planner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger workerIndex = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, options.maxInFlightRequests), r -> {
+            Thread thread = new Thread(r, "Chunk prefetcher "+workerIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Prefetches on each change of the view of this viewer
+     */
+    public void attach(ViewerPanel viewer) {
+        viewer.transformListeners().add(transform -> prefetch(transform.copy(),
+                viewer.getDisplay().getWidth(), viewer.getDisplay().getHeight(),
+                viewer.state().getCurrentTimepoint()));
+    }
+
+    /**
+     * Prefetches the chunks around a view
+     * @param viewerTransform global to screen transform, not modified afterwards by the caller
+     */
+    public void prefetch(AffineTransform3D viewerTransform, int width, int height, int timepoint) {
+        long request = lastRequest.incrementAndGet();
+        planner.submit(() -> plan(request, viewerTransform, width, height, timepoint));
+    }
+
+    public void stop() {
+        planner.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    public long getPrefetchedChunks() {
+        return prefetchedChunks.get();
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    static class Chunk {
+        final RandomAccessibleInterval<?> image;
+        final long[] position;
+
+        Chunk(RandomAccessibleInterval<?> image, long[] position) {
+            this.image = image;
+            this.position = position;
+        }
+    }
+
+    private void plan(long request, AffineTransform3D viewerTransform, int width, int height, int timepoint) {
+        // Screen regions, as min x, min y, max x, max y: displayed, then one screen ahead
+        List<double[]> regions = new ArrayList<>();
+        regions.add(new double[]{0, 0, width, height});
+        if (previousTransform != null) {
+            // Where the previous center of the screen is now, the view moved the other way
+            double[] center = {width / 2.0, height / 2.0, 0};
+            double[] global = new double[3];
+            double[] moved = new double[3];
+            previousTransform.applyInverse(global, center);
+            viewerTransform.apply(global, moved);
+            double dx = center[0] - moved[0];
+            double dy = center[1] - moved[1];
+            double shiftX = Math.abs(dx) >= 1 ? Math.signum(dx) * width : 0;
+            double shiftY = Math.abs(dy) >= 1 ? Math.signum(dy) * height : 0;
+            if ((shiftX != 0) || (shiftY != 0)) {
+                regions.add(new double[]{shiftX, shiftY, shiftX + width, shiftY + height});
+            }
+        }
+        previousTransform = viewerTransform;
+
+        List<Chunk> chunks = new ArrayList<>();
+        long budget = options.cacheSizeBytes;
+        for (SourceAndConverter<?> sac : sources) {
+            Source<?> source = sac.getSpimSource();
+            if (!source.isPresent(timepoint)) continue;
+            int level = MipmapTransforms.getBestMipMapLevel(viewerTransform, source, timepoint);
+            for (double[] region : regions) {
+                budget = addChunks(chunks, budget, source, timepoint, level, viewerTransform, region);
+            }
+            if (options.prefetchNextTimepoint && source.isPresent(timepoint + 1)) {
+                budget = addChunks(chunks, budget, source, timepoint + 1, level, viewerTransform, regions.get(0));
+            }
+        }
+
+        if (request != lastRequest.get()) return; // Superseded while planning
+        AtomicInteger depth = new AtomicInteger(chunks.size());
+        queueDepth = depth;
+        for (Chunk chunk : chunks) {
+            workers.submit(() -> {
+                if (request != lastRequest.get()) return; // Superseded by a new view
+                load(chunk);
+                depth.decrementAndGet();
+            });
+        }
+    }
+
+    /**
+     * Adds the chunks of the image displayed in a screen region
+     * @return the remaining budget, in bytes
+     */
+    private long addChunks(List<Chunk> chunks, long budget, Source<?> source, int timepoint, int level,
+                           AffineTransform3D viewerTransform, double[] region) {
+        if (budget <= 0) return budget;
+        RandomAccessibleInterval<?> image = source.getSource(timepoint, level);
+        int[] chunkSize = {DEFAULT_CHUNK_SIZE, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNK_SIZE};
+        if (image instanceof AbstractCellImg) {
+            ((AbstractCellImg<?, ?, ?, ?>) image).getCellGrid().cellDimensions(chunkSize);
+        }
+        double bytesPerPixel = source.getType() instanceof RealType ? ((RealType<?>) source.getType()).getBitsPerPixel() / 8.0 : 4;
+
+        // Screen region to voxel coordinates, on the displayed plane
+        AffineTransform3D voxelToScreen = viewerTransform.copy();
+        AffineTransform3D sourceTransform = new AffineTransform3D();
+        source.getSourceTransform(timepoint, level, sourceTransform);
+        voxelToScreen.concatenate(sourceTransform);
+        long[] min = new long[3];
+        long[] max = new long[3];
+        double[] voxel = new double[3];
+        for (int d = 0; d < 3; d++) {
+            min[d] = Long.MAX_VALUE;
+            max[d] = Long.MIN_VALUE;
+        }
+        for (double[] corner : new double[][]{{region[0], region[1], 0}, {region[2], region[1], 0},
+                {region[0], region[3], 0}, {region[2], region[3], 0}}) {
+            voxelToScreen.applyInverse(voxel, corner);
+            for (int d = 0; d < 3; d++) {
+                min[d] = Math.min(min[d], Math.max(image.min(d), (long) Math.floor(voxel[d])));
+                max[d] = Math.max(max[d], Math.min(image.max(d), (long) Math.ceil(voxel[d])));
+            }
+        }
+        for (int d = 0; d < 3; d++) {
+            if (min[d] > max[d]) return budget; // Not visible
+        }
+
+        // One pixel per chunk, at its center: loading it loads the chunk
+        long chunkBytes = (long) (bytesPerPixel * chunkSize[0] * chunkSize[1] * chunkSize[2]);
+        for (long z = Math.floorDiv(min[2], chunkSize[2]); z <= Math.floorDiv(max[2], chunkSize[2]); z++) {
+            for (long y = Math.floorDiv(min[1], chunkSize[1]); y <= Math.floorDiv(max[1], chunkSize[1]); y++) {
+                for (long x = Math.floorDiv(min[0], chunkSize[0]); x <= Math.floorDiv(max[0], chunkSize[0]); x++) {
+                    if (budget <= 0) return budget;
+                    long[] position = {
+                            Math.min(image.max(0), x * chunkSize[0] + chunkSize[0] / 2),
+                            Math.min(image.max(1), y * chunkSize[1] + chunkSize[1] / 2),
+                            Math.min(image.max(2), z * chunkSize[2] + chunkSize[2] / 2)};
+                    chunks.add(new Chunk(image, position));
+                    budget -= chunkBytes;
+                }
+            }
+        }
+        return budget;
+    }
+
+    private void load(Chunk chunk) {
+        try {
+            RandomAccess<?> access = chunk.image.randomAccess();
+            access.setPosition(chunk.position);
+            Object value = access.get();
+            if (value instanceof RealType) ((RealType<?>) value).getRealDouble();
+            prefetchedChunks.incrementAndGet();
+        } catch (Exception e) {
+            // The display loads it again if needed
+        }
+    }
+
+}
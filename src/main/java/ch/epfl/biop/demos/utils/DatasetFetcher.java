@@ -0,0 +1,456 @@
+package ch.epfl.biop.demos.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads the demo datasets in the background, with several HTTP range requests per file
+ * <p>
+ * A file is split in chunks of {@link #chunkSize} bytes, fetched by {@link #connections}
+ * parallel requests and written in place in a .part file. The chunks already written are
+ * recorded in a .part.state file next to it: an interrupted download resumes where it stopped,
+ * even from another JVM. When the server does not support range requests, the file is
+ * downloaded in a single request.
+ * <p>
+ * Once complete, the size of the file is checked against the size announced by the server, and
+ * its checksum against the expected one, if any: either given by the caller, for instance
+ * "md5:0123...", announced by the server in a Digest header, or published by Zenodo for the
+ * files of its records. The .part file is then renamed.
+ * <p>
+ * Downloads are memoized by url: a demo can prefetch all its files at start, and the first
+ * {@link #fetch(String)} of a file waits for its ongoing download instead of starting another one.
+ * A completed download whose file was deleted since is started again.
+ */
+public class DatasetFetcher {
+
+    public static final int DEFAULT_CONNECTIONS = 4;
+
+    public static final long DEFAULT_CHUNK_SIZE = 8L << 20;
+
+    public static final int MAX_ATTEMPTS = 3;
+
+    static final int STATE_HEADER = 16; // File length and chunk size
+
+    // https://zenodo.org/records/{id}/files/{key}
+    static final Pattern ZENODO_FILE = Pattern.compile("^https://zenodo\\.org/records/(\\d+)/files/([^?#]+)");
+
+    // Checksum of a file in the json of the Zenodo api
+    static final Pattern ZENODO_CHECKSUM = Pattern.compile("\"checksum\"\\s*:\\s*\"([a-zA-Z0-9-]+:[0-9a-fA-F]+)\"");
+
+    static DatasetFetcher defaultFetcher;
+
+    /**
+     * @return the fetcher of the demos, which caches files in the CachedSamples folder of the user
+     */
+    public static synchronized DatasetFetcher getDefault() {
+        if (defaultFetcher == null) {
+            defaultFetcher = new DatasetFetcher(new File(System.getProperty("user.home"), "CachedSamples"),
+                    DEFAULT_CONNECTIONS, DEFAULT_CHUNK_SIZE);
+        }
+        return defaultFetcher;
+    }
+
+    final File cacheDir;
+
+    final int connections;
+
+    final long chunkSize;
+
+    final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "Dataset fetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    final Map<String, Future<File>> downloads = new ConcurrentHashMap<>();
+
+    final AtomicLong downloadedBytes = new AtomicLong();
+
+    public DatasetFetcher(File cacheDir, int connections, long chunkSize) {
+        this.cacheDir = cacheDir;
+        this.connections = connections;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Starts downloading a file in the background, unless it is cached or already downloading
+     */
+    public Future<File> prefetch(String url) {
+        return prefetch(url, null);
+    }
+
+    /**
+     * @param checksum expected checksum of the file, algorithm and hexadecimal value separated
+     *                 by a colon, for instance "md5:0123...", or null
+     */
+    public Future<File> prefetch(String url, String checksum) {
+        return submit(url, () -> download(url, checksum));
+    }
+
+    /**
+     * Runs a download which is not a single url, for instance a dataset made of several files
+     * fetched by another helper, in the background and memoized with the given key
+     */
+    public Future<File> submit(String key, Callable<File> download) {
+        return downloads.compute(key, (k, previous) ->
+                (previous == null) || isStale(previous) ? executor.submit(download) : previous);
+    }
+
+    /**
+     * @return true if this download is complete but its file was deleted since, or if it failed
+     */
+    static boolean isStale(Future<File> download) {
+        if (!download.isDone()) return false;
+        try {
+            File file = download.get();
+            return (file == null) || !file.exists();
+        } catch (InterruptedException | ExecutionException | CancellationException e) {
+            return true;
+        }
+    }
+
+    /**
+     * @return the cached file, once downloaded
+     */
+    public File fetch(String url) throws IOException {
+        return fetch(url, null);
+    }
+
+    public File fetch(String url, String checksum) throws IOException {
+        return get(url, prefetch(url, checksum));
+    }
+
+    /**
+     * Waits for a download started by {@link #submit(String, Callable)}
+     */
+    public File get(String key, Future<File> download) throws IOException {
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading "+key, e);
+        } catch (ExecutionException e) {
+            // Allows a later call to try again
+            downloads.remove(key, download);
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Could not download "+key, e.getCause());
+        }
+    }
+
+    /**
+     * @return number of bytes received since the creation of this fetcher
+     */
+    public long getDownloadedBytes() {
+        return downloadedBytes.get();
+    }
+
+    /**
+     * @return where the file of this url is cached
+     */
+    public File getFile(String url) {
+        String path = url.replaceAll("[?#].*$", "");
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        try {
+            name = URLDecoder.decode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        return new File(cacheDir, name);
+    }
+
+    File download(String url, String checksum) throws IOException {
+        File target = getFile(url);
+        if (target.exists()) return target;
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            throw new IOException("Could not create cache folder "+cacheDir.getAbsolutePath());
+        }
+        File part = new File(cacheDir, target.getName()+".part");
+        File state = new File(cacheDir, target.getName()+".part.state");
+
+        RemoteFile remote = probe(url);
+        if (remote.acceptRanges && (remote.length > 0)) {
+            downloadRanges(url, remote.length, part, state);
+        } else {
+            downloadStream(url, part);
+        }
+
+        if ((remote.length >= 0) && (part.length() != remote.length)) {
+            throw new IOException("Incomplete download of "+url+": "+part.length()+" bytes instead of "+remote.length);
+        }
+        String expected = checksum != null ? checksum : remote.checksum;
+        if (expected == null) expected = getZenodoChecksum(url);
+        if (expected != null) {
+            String actual = checksum(part, expected.substring(0, expected.indexOf(':')));
+            if (!actual.equalsIgnoreCase(expected)) {
+                // Corrupted, the next attempt starts from scratch
+                Files.deleteIfExists(part.toPath());
+                Files.deleteIfExists(state.toPath());
+                throw new IOException("Checksum mismatch for "+url+": expected "+expected+", got "+actual);
+            }
+        }
+        Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(state.toPath());
+        return target;
+    }
+
+    /**
+     * @return the checksum published by Zenodo for a file of a record, for instance "md5:0123...",
+     * or null if this url is not a Zenodo record file or if the record can't be read
+     */
+    public static String getZenodoChecksum(String url) {
+        Matcher file = ZENODO_FILE.matcher(url);
+        if (!file.find()) return null;
+        HttpURLConnection connection = null;
+        try {
+            connection = open("https://zenodo.org/api/records/"+file.group(1)+"/files/"+file.group(2));
+            connection.setRequestProperty("Accept", "application/json");
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) return null;
+            String json;
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) content.write(buffer, 0, read);
+                json = new String(content.toByteArray(), StandardCharsets.UTF_8);
+            }
+            Matcher checksum = ZENODO_CHECKSUM.matcher(json);
+            return checksum.find() ? checksum.group(1).toLowerCase() : null;
+        } catch (IOException e) {
+            // The download is then only checked against its size
+            return null;
+        } finally {
+            if (connection != null) connection.disconnect();
+        }
+    }
+
+    static class RemoteFile {
+        long length = -1;
+        boolean acceptRanges;
+        String checksum;
+    }
+
+    RemoteFile probe(String url) throws IOException {
+        HttpURLConnection connection = open(url);
+        try {
+            connection.setRequestProperty("Range", "bytes=0-0");
+            int code = connection.getResponseCode();
+            RemoteFile remote = new RemoteFile();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                // Content-Range: bytes 0-0/length
+                String range = connection.getHeaderField("Content-Range");
+                if ((range != null) && !range.endsWith("/*")) {
+                    remote.length = Long.parseLong(range.substring(range.lastIndexOf('/') + 1).trim());
+                    remote.acceptRanges = true;
+                }
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                remote.length = connection.getContentLengthLong();
+            } else {
+                throw new IOException("Could not download "+url+": HTTP "+code);
+            }
+            remote.checksum = parseDigest(connection.getHeaderField("Digest"));
+            return remote;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    void downloadRanges(String url, long length, File part, File state) throws IOException {
+        int nChunks = (int) ((length + chunkSize - 1) / chunkSize);
+        byte[] done = readState(state, length, nChunks);
+        if ((done == null) || !part.exists() || (part.length() != length)) {
+            done = new byte[nChunks];
+            try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+                file.setLength(length);
+            }
+            try (RandomAccessFile file = new RandomAccessFile(state, "rw")) {
+                file.setLength(0);
+                file.writeLong(length);
+                file.writeLong(chunkSize);
+                file.write(done);
+            }
+        }
+        final byte[] chunksDone = done;
+        try (FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.WRITE);
+             RandomAccessFile stateFile = new RandomAccessFile(state, "rw")) {
+            AtomicInteger next = new AtomicInteger();
+            AtomicBoolean failed = new AtomicBoolean(false);
+            List<Future<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < Math.min(connections, nChunks); i++) {
+                workers.add(executor.submit(() -> {
+                    int chunk;
+                    while (!failed.get() && ((chunk = next.getAndIncrement()) < nChunks)) {
+                        if (chunksDone[chunk] != 0) continue;
+                        try {
+                            downloadChunk(url, channel, chunk * chunkSize, Math.min(length, (chunk + 1) * chunkSize));
+                        } catch (IOException e) {
+                            failed.set(true);
+                            throw e;
+                        }
+                        // Recorded once its bytes are written, a crash may only lose chunks in progress
+                        synchronized (stateFile) {
+                            stateFile.seek(STATE_HEADER + chunk);
+                            stateFile.write(1);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            IOException error = null;
+            for (Future<Void> worker : workers) {
+                try {
+                    worker.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failed.set(true);
+                    error = new IOException("Interrupted while downloading "+url, e);
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                                : new IOException(e.getCause());
+                    }
+                }
+            }
+            if (error != null) throw error;
+        }
+    }
+
+    byte[] readState(File state, long length, int nChunks) throws IOException {
+        if (!state.exists() || (state.length() != STATE_HEADER + nChunks)) return null;
+        try (RandomAccessFile file = new RandomAccessFile(state, "r")) {
+            if ((file.readLong() != length) || (file.readLong() != chunkSize)) return null;
+            byte[] done = new byte[nChunks];
+            file.readFully(done);
+            return done;
+        }
+    }
+
+    void downloadChunk(String url, FileChannel channel, long start, long end) throws IOException {
+        long position = start;
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        for (int attempt = 1; ; attempt++) {
+            HttpURLConnection connection = open(url);
+            try {
+                // Retries only the bytes not received yet
+                connection.setRequestProperty("Range", "bytes="+position+"-"+(end - 1));
+                int code = connection.getResponseCode();
+                if (code != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("Range request not honored for "+url+": HTTP "+code);
+                }
+                try (InputStream in = connection.getInputStream()) {
+                    int read;
+                    while ((position < end) && ((read = in.read(buffer.array(), 0, (int) Math.min(buffer.capacity(), end - position))) != -1)) {
+                        buffer.clear().limit(read);
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                        downloadedBytes.addAndGet(read);
+                    }
+                }
+                if (position == end) return;
+                throw new IOException("Connection closed before the end of the range of "+url);
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS) throw e;
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    void downloadStream(String url, File part) throws IOException {
+        HttpURLConnection connection = open(url);
+        try (InputStream in = connection.getInputStream();
+             FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            int read;
+            while ((read = in.read(buffer.array())) != -1) {
+                buffer.clear().limit(read);
+                while (buffer.hasRemaining()) channel.write(buffer);
+                downloadedBytes.addAndGet(read);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    static HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(10_000);
+        connection.setReadTimeout(60_000);
+        return connection;
+    }
+
+    /**
+     * @return the checksum of a Digest header (RFC 3230), for instance md5=base64, as "md5:hex"
+     */
+    static String parseDigest(String digest) {
+        if (digest == null) return null;
+        for (String entry : digest.split(",")) {
+            int separator = entry.indexOf('=');
+            if (separator < 0) continue;
+            String algorithm = entry.substring(0, separator).trim().toLowerCase();
+            if (algorithm.equals("md5") || algorithm.equals("sha") || algorithm.equals("sha-256")) {
+                byte[] value = Base64.getDecoder().decode(entry.substring(separator + 1).trim());
+                return (algorithm.equals("sha") ? "sha-1" : algorithm)+":"+toHex(value);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the checksum of the file as "algorithm:hex"
+     */
+    public static String checksum(File file, String algorithm) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm.toUpperCase());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unsupported checksum algorithm "+algorithm, e);
+        }
+        byte[] buffer = new byte[1 << 20];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) digest.update(buffer, 0, read);
+        }
+        return algorithm.toLowerCase()+":"+toHex(digest.digest());
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) builder.append(String.format("%02x", b));
+        return builder.toString();
+    }
+
+}
@@ -1,9 +1,12 @@
 package ch.epfl.biop.demos.utils;
 
 import bdv.cache.SharedQueue;
+import bdv.util.BdvHandle;
 import bdv.util.Procedural3DImageShort;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
+import bdv.viewer.TransformListener;
+import bdv.viewer.ViewerPanel;
 import ch.epfl.biop.atlas.mouse.allen.ccfv3p1.command.AllenBrainAdultMouseAtlasCCF2017v3p1Command;
 import ch.epfl.biop.atlas.struct.Atlas;
 import ch.epfl.biop.bdv.img.bioformats.command.DatasetFromBioFormatsCreateCommand;
@@ -11,6 +14,7 @@ import mpicbg.spim.data.generic.AbstractSpimData;
 import net.imglib2.FinalInterval;
 import net.imglib2.display.LinearRange;
 import net.imglib2.position.FunctionRandomAccessible;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -23,20 +27,53 @@ import sc.fiji.bdvpg.command.process.SourceWithLUTDuplicateCommand;
 import sc.fiji.bdvpg.command.process.transform.SourceSimpleTransformCommand;
 import sc.fiji.bdvpg.scijava.service.SourceService;
 import sc.fiji.bdvpg.source.SourceHelper;
-import sc.fiji.bdvpg.source.importer.MandelbrotSourceCreator;
 import sc.fiji.bdvpg.source.importer.VoronoiSourceCreator;
 
+import javax.swing.Timer;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DemoDatasetHelper {
 
     // ── BioFormats loading helper ──────────────────────────────────────────
 
     /**
-     * Loads a dataset through BioFormats with commonly shared parameters.
+     * Datasets opened in each Context, keyed by {@link #datasetKey(File, String, boolean)}.
+     * Opening a dataset again would parse its metadata again, and create new readers and caches.
+     */
+    private static final Map<Context, Map<String, AbstractSpimData<?>>> openedDatasets = new WeakHashMap<>();
+
+    private static String datasetKey(File file, String planeOrigin, boolean autoPyramidize) {
+        return file.getAbsolutePath()+"|"+planeOrigin+"|"+autoPyramidize;
+    }
+
+    /**
+     * @return the dataset already opened with these parameters in this Context, if its
+     * sources are still registered, null otherwise
+     */
+    private static AbstractSpimData<?> getOpenedDataset(Context ctx, File file, String planeOrigin, boolean autoPyramidize) {
+        AbstractSpimData<?> dataset;
+        synchronized (openedDatasets) {
+            Map<String, AbstractSpimData<?>> datasets = openedDatasets.get(ctx);
+            dataset = datasets == null ? null : datasets.get(datasetKey(file, planeOrigin, autoPyramidize));
+        }
+        // The sources may have been removed by the user since
+        if ((dataset != null) && ctx.getService(SourceService.class).getSourcesFromDataset(dataset).isEmpty()) return null;
+        return dataset;
+    }
+
+    /**
+     * Loads a dataset through BioFormats with commonly shared parameters, or returns the
+     * dataset already opened with the same parameters in the same Context. The metadata of
+     * the dataset is read from the {@link SpimDataCache} when a previous run saved it.
      */
     private static AbstractSpimData<?> loadBioFormatsDataset(
             CommandService cs,
@@ -45,6 +82,36 @@ public class DemoDatasetHelper {
             String planeOrigin,
             boolean autoPyramidize) throws ExecutionException, InterruptedException {
 
+        Context ctx = cs.getContext();
+        AbstractSpimData<?> dataset = getOpenedDataset(ctx, file, planeOrigin, autoPyramidize);
+        if (dataset != null) return dataset;
+
+        // Metadata saved by a previous run, skips parsing the file
+        dataset = SpimDataCache.getDefault().load(file, planeOrigin, autoPyramidize);
+        if (dataset != null) {
+            // Registered under the same name as by the BioFormats command
+            SourceService ss = ctx.getService(SourceService.class);
+            ss.register(dataset);
+            ss.setSpimDataName(dataset, datasetName);
+        } else {
+            dataset = openBioFormatsDataset(cs, file, datasetName, planeOrigin, autoPyramidize);
+            SpimDataCache.getDefault().save(dataset, file, planeOrigin, autoPyramidize);
+        }
+
+        synchronized (openedDatasets) {
+            openedDatasets.computeIfAbsent(ctx, k -> new HashMap<>())
+                    .put(datasetKey(file, planeOrigin, autoPyramidize), dataset);
+        }
+        return dataset;
+    }
+
+    private static AbstractSpimData<?> openBioFormatsDataset(
+            CommandService cs,
+            File file,
+            String datasetName,
+            String planeOrigin,
+            boolean autoPyramidize) throws ExecutionException, InterruptedException {
+
         return (AbstractSpimData<?>) cs.run(DatasetFromBioFormatsCreateCommand.class,
                 true,
                 "datasetname", datasetName,
@@ -68,11 +135,18 @@ public class DemoDatasetHelper {
             String planeOrigin,
             boolean autoPyramidize) throws IOException, ExecutionException, InterruptedException {
 
-        File file = ch.epfl.biop.DatasetHelper.getDataset(url);
+        File file = DatasetFetcher.getDefault().fetch(url);
+        long start = System.nanoTime();
+        File store = MultiscaleStore.getStore(file, planeOrigin, autoPyramidize);
+        if (useMultiscaleStore && MultiscaleStore.exists(store)) {
+            return logOpening(openStore(ctx, store), file, "OME-Zarr store", start);
+        }
         String name = FilenameUtils.removeExtension(file.getName());
         loadBioFormatsDataset(cs, file, name, planeOrigin, autoPyramidize);
-        return ctx.getService(SourceService.class).tree().getSources(name)
-                .toArray(new SourceAndConverter[0]);
+        SourceService ss = ctx.getService(SourceService.class);
+        SourceAndConverter<?>[] sources = ss.tree().getSources(name).toArray(new SourceAndConverter[0]);
+        if (useMultiscaleStore) MultiscaleStore.convertInBackground(sources, store);
+        return logOpening(sources, file, "BioFormats", start);
     }
 
     /**
@@ -87,9 +161,107 @@ public class DemoDatasetHelper {
             String planeOrigin,
             boolean autoPyramidize) throws IOException, ExecutionException, InterruptedException {
 
-        File file = ch.epfl.biop.DatasetHelper.getDataset(url);
+        File file = DatasetFetcher.getDefault().fetch(url);
+        long start = System.nanoTime();
+        File store = MultiscaleStore.getStore(file, planeOrigin, autoPyramidize);
+        if (useMultiscaleStore && MultiscaleStore.exists(store)) {
+            return logOpening(openStore(ss.getContext(), store), file, "OME-Zarr store", start);
+        }
         AbstractSpimData<?> dataset = loadBioFormatsDataset(cs, file, datasetName, planeOrigin, autoPyramidize);
-        return ss.getSourcesFromDataset(dataset).toArray(new SourceAndConverter<?>[0]);
+        SourceAndConverter<?>[] sources = ss.getSourcesFromDataset(dataset).toArray(new SourceAndConverter<?>[0]);
+        if (useMultiscaleStore) MultiscaleStore.convertInBackground(sources, store);
+        return logOpening(sources, file, "BioFormats", start);
+    }
+
+    // ── Local multiscale stores ────────────────────────────────────────────
+
+    /**
+     * When true, each dataset opened through BioFormats is written once to a local OME-Zarr
+     * store in the background, see {@link MultiscaleStore}, and later calls open the store
+     * instead. Off by default, or set with -Dimglib2.demos.store=true
+     */
+    public static volatile boolean useMultiscaleStore = Boolean.getBoolean("imglib2.demos.store");
+
+    private static final Map<Context, Map<File, SourceAndConverter<?>[]>> openedStores = new WeakHashMap<>();
+
+    /**
+     * Opens a store once per Context and registers its sources
+     */
+    private static SourceAndConverter<?>[] openStore(Context ctx, File store) {
+        synchronized (openedStores) {
+            Map<File, SourceAndConverter<?>[]> stores = openedStores.computeIfAbsent(ctx, k -> new HashMap<>());
+            SourceAndConverter<?>[] sources = stores.get(store);
+            if (sources == null) {
+                sources = MultiscaleStore.open(store);
+                SourceService ss = ctx.getService(SourceService.class);
+                for (SourceAndConverter<?> source : sources) ss.register(source);
+                stores.put(store, sources);
+            }
+            return sources;
+        }
+    }
+
+    /**
+     * When and how sources were opened, until their first full frame is logged
+     */
+    private static class Opening {
+        final String name, from;
+        final long start;
+
+        Opening(String name, String from, long start) {
+            this.name = name;
+            this.from = from;
+            this.start = start;
+        }
+    }
+
+    private static final Map<SourceAndConverter<?>, Opening> openings = Collections.synchronizedMap(new WeakHashMap<>());
+
+    // A frame is complete when no refined frame follows it for this long
+    static final long FULL_FRAME_QUIET_MS = 1000;
+
+    static final long FIRST_FRAME_TIMEOUT_MS = 600_000;
+
+    private static SourceAndConverter<?>[] logOpening(SourceAndConverter<?>[] sources, File file, String from, long start) {
+        System.out.printf("%s opened from %s in %.0f ms%n", file.getName(), from, (System.nanoTime() - start) / 1e6);
+        Opening opening = new Opening(file.getName(), from, start);
+        for (SourceAndConverter<?> source : sources) openings.put(source, opening);
+        return sources;
+    }
+
+    /**
+     * Logs the time from the opening of these sources to the first frame of this viewer painted
+     * at full resolution. BDV paints coarser frames first, then a refined frame each time missing
+     * blocks are loaded: the last frame painted before {@link #FULL_FRAME_QUIET_MS} ms without
+     * any new one is the full one. Does nothing for sources not opened from a file by getData.
+     */
+    public static void logFirstFullFrame(BdvHandle bdvh, SourceAndConverter<?>[] sources) {
+        Opening opening = null;
+        for (SourceAndConverter<?> source : sources) {
+            Opening o = openings.remove(source);
+            if (opening == null) opening = o;
+        }
+        if (opening == null) return;
+        final Opening opened = opening;
+        ViewerPanel viewer = bdvh.getViewerPanel();
+        AtomicLong lastFrame = new AtomicLong(-1);
+        TransformListener<AffineTransform3D> frameListener = transform -> lastFrame.set(System.nanoTime());
+        viewer.renderTransformListeners().add(frameListener);
+        Timer timer = new Timer(100, null);
+        timer.addActionListener(e -> {
+            long last = lastFrame.get();
+            long now = System.nanoTime();
+            boolean painted = (last >= 0) && ((now - last >= FULL_FRAME_QUIET_MS * 1_000_000L) || !viewer.isShowing());
+            // Gives up if the viewer never paints
+            if (!painted && (now - opened.start < FIRST_FRAME_TIMEOUT_MS * 1_000_000L)) return;
+            timer.stop();
+            viewer.renderTransformListeners().remove(frameListener);
+            if (painted) {
+                System.out.printf("%s opened from %s: first full frame painted after %.0f ms%n",
+                        opened.name, opened.from, (last - opened.start) / 1e6);
+            }
+        });
+        timer.start();
     }
 
     // ── LUT re-coloring helper ─────────────────────────────────────────────
@@ -108,6 +280,36 @@ public class DemoDatasetHelper {
         ).get().getOutput("sacs_out");
     }
 
+    // ── Downloads ──────────────────────────────────────────────────────────
+
+    /**
+     * Starts downloading the files of these datasets in the background, all at once, so that
+     * they are ready or partly downloaded when {@link #getData(DemoDataset, Context)} needs them.
+     */
+    public static void prefetch(DemoDataset... datasets) {
+        for (DemoDataset dataset : datasets) {
+            if (dataset.url != null) {
+                DatasetFetcher.getDefault().prefetch(dataset.url);
+            } else if (dataset == DemoDataset.BRAIN_SLICES) {
+                prefetchBrainVSIDataset(3);
+            }
+        }
+    }
+
+    /**
+     * Starts downloading a slide of the brain sections dataset in the background
+     * @return the folder of the slide, once downloaded
+     */
+    public static Future<File> prefetchBrainVSIDataset(int index) {
+        // A vsi slide is made of several files, downloaded by DatasetHelper
+        return DatasetFetcher.getDefault().submit("Brain slide "+index,
+                () -> ch.epfl.biop.DatasetHelper.dowloadBrainVSIDataset(index));
+    }
+
+    public static File getBrainVSIDataset(int index) throws IOException {
+        return DatasetFetcher.getDefault().get("Brain slide "+index, prefetchBrainVSIDataset(index));
+    }
+
     // ── Main entry point ───────────────────────────────────────────────────
 
     public static SourceAndConverter<?>[] getData(DemoDataset datasetName, Context ctx)
@@ -122,44 +324,40 @@ public class DemoDatasetHelper {
             // ── BioFormats datasets retrieved via SpimData ─────────────────
 
             case EGG_CHAMBER:
-                return loadFromUrlBySpimData(ss, cs,
-                        "https://zenodo.org/records/1472859/files/DrosophilaEggChamber.tif",
+                return loadFromUrlBySpimData(ss, cs, DemoDataset.EGG_CHAMBER.url,
                         "Egg_Chamber", "CENTER", true);
 
             case BRAIN_SLICES:
-                File wsiBrainSlices = new File(
-                        ch.epfl.biop.DatasetHelper.dowloadBrainVSIDataset(3), "Slide_03.vsi");
+                File wsiBrainSlices = new File(getBrainVSIDataset(3), "Slide_03.vsi");
                 AbstractSpimData<?> datasetBS = loadBioFormatsDataset(
                         cs, wsiBrainSlices, "Slide_03", "TOP LEFT", true);
                 return ss.getSourcesFromDataset(datasetBS).toArray(new SourceAndConverter<?>[0]);
 
             case EUROPE_PYRAMIDIZE:
-                return loadFromUrlBySpimData(ss, cs,
-                        "https://zenodo.org/records/12738352/files/easterness_edtm_m_240m_s_20000101_20221231_eu_epsg.3035_v20240528.tif",
+                return loadFromUrlBySpimData(ss, cs, DemoDataset.EUROPE_PYRAMIDIZE.url,
                         "Egg_Chamber", "CENTER", true);
 
             case EUROPE:
-                return loadFromUrlBySpimData(ss, cs,
-                        "https://zenodo.org/records/12738352/files/easterness_edtm_m_240m_s_20000101_20221231_eu_epsg.3035_v20240528.tif",
+                return loadFromUrlBySpimData(ss, cs, DemoDataset.EUROPE.url,
                         "Egg_Chamber", "CENTER", false);
 
             // ── BioFormats datasets retrieved via source tree ──────────────
 
             case LATTICE_HELA_SKEWED:
-                return loadFromUrlByTree(ctx, cs,
-                        "https://zenodo.org/records/14203207/files/Hela-Kyoto-1-Timepoint-LLS7.czi",
+                return loadFromUrlByTree(ctx, cs, DemoDataset.LATTICE_HELA_SKEWED.url,
                         "TOP LEFT", true);
 
             case LATTICE_HELA_SKEWED_TIMELAPSE:
-                return loadFromUrlByTree(ctx, cs,
-                        "https://zenodo.org/records/19047136/files/ZeissLLS7Demo.czi",
+                return loadFromUrlByTree(ctx, cs, DemoDataset.LATTICE_HELA_SKEWED_TIMELAPSE.url,
                         "TOP LEFT", true);
 
             case BRAIN_SECTION_3DTILES:
-                SourceAndConverter<?>[] sources = loadFromUrlByTree(ctx, cs,
-                        "https://zenodo.org/records/19062791/files/BrainSection-Tiles.lif",
+                boolean flipped = getOpenedDataset(ctx,
+                        DatasetFetcher.getDefault().getFile(DemoDataset.BRAIN_SECTION_3DTILES.url), "TOP LEFT", true) != null;
+                SourceAndConverter<?>[] sources = loadFromUrlByTree(ctx, cs, DemoDataset.BRAIN_SECTION_3DTILES.url,
                         "TOP LEFT", true);
-                // They need to be flipped
+                if (flipped) return sources;
+                // They need to be flipped, once
                 cs.run(SourceSimpleTransformCommand.class, true,
                         "sources", sources,
                         "type", "Rot270",
@@ -171,22 +369,25 @@ public class DemoDatasetHelper {
                 return sources;
 
             case LATTICE_PSF_200NM:
-                return loadFromUrlByTree(ctx, cs,
-                        "https://zenodo.org/records/14505724/files/psf-200nm.tif",
+                return loadFromUrlByTree(ctx, cs, DemoDataset.LATTICE_PSF_200NM.url,
                         "TOP LEFT", true);
 
             case LATTICE_PSF_400NM:
-                return loadFromUrlByTree(ctx, cs,
-                        "https://zenodo.org/records/14505724/files/psf-400nm.tif",
+                return loadFromUrlByTree(ctx, cs, DemoDataset.LATTICE_PSF_400NM.url,
                         "TOP LEFT", true);
 
             // ── Generative sources ─────────────────────────────────────────
 
             case MANDELBROT_SET:
-                SourceAndConverter<UnsignedShortType> mandelbrotSource = new MandelbrotSourceCreator().get();
+                // In complex plane coordinates like the procedural source of bdv-playground it replaces,
+                // but computed row by row with MandelbrotKernel into cached tiles
+                SourceAndConverter<UnsignedShortType> mandelbrotSource = MandelbrotSource.getWholeSetSourceAndConverter(
+                        new SharedQueue(Runtime.getRuntime().availableProcessors() - 1), "Mandelbrot Set", 255);
                 return recolorWithLUT(ms, cs, mandelbrotSource);
 
             case SLOW_MANDELBROT_SET:
+                // Kept procedural on purpose, one pixel per call: this is the slow reference of
+                // the demos and the baseline of MandelbrotBenchmark
                 Source<UnsignedShortType> s = new Procedural3DImageShort(p -> {
                     double re = p[0];
                     double im = p[1];
@@ -202,6 +403,11 @@ public class DemoDatasetHelper {
                 }).getSource("Mandelbrot Set (Slow)");
                 return recolorWithLUT(ms, cs, SourceHelper.createSourceAndConverter(s));
 
+            case DEEP_MANDELBROT_SET:
+                SourceAndConverter<UnsignedShortType> deepMandelbrot = MandelbrotSource.getSourceAndConverter(
+                        new SharedQueue(Runtime.getRuntime().availableProcessors() - 1), 10000);
+                return recolorWithLUT(ms, cs, deepMandelbrot);
+
             case VORONOI_BIG:
                 SourceAndConverter<FloatType> voronoiBig =
                         new VoronoiSourceCreator(new long[]{4096 * 128, 4096 * 128, 4096 * 128}, 10000000, false).get();
@@ -261,27 +467,51 @@ public class DemoDatasetHelper {
 
     public enum DemoDataset {
         BRAIN_SLICES("Mouse Brain Sections (1.3Gb, SXYC)"),
-        EGG_CHAMBER("Fly Egg Chamber (90Mb, XYZC)"),
+        EGG_CHAMBER("Fly Egg Chamber (90Mb, XYZC)",
+                "https://zenodo.org/records/1472859/files/DrosophilaEggChamber.tif"),
         MANDELBROT_SET("Mandelbrot Set (Generative, XY)"),
         SLOW_MANDELBROT_SET("Slow Mandelbrot Set (Generative, XY)"),
+        DEEP_MANDELBROT_SET("Deep Zoom Mandelbrot Set (Generative, Cached, XY)"),
         ALLEN_BRAIN_ATLAS("Allen Brain Atlas (3Gb, XYZC)"),
         RANDOM_GAME_OF_LIFE("Game Of Life (Generative)"),
-        LATTICE_HELA_SKEWED("Hela Kyoto, LLS7 Skewed, 1 Timepoint (3Gb, XYz'C)"),
-        LATTICE_HELA_SKEWED_TIMELAPSE("Hela Kyoto Division, LLS7 Skewed, 60 Timepoint (15Gb, XYz'CT)"),
-        LATTICE_PSF_200NM("LLS7 Skewed PSF 200 NM (15Gb, XYz')"),
-        LATTICE_PSF_400NM("LLS7 Skewed PSF 400 NM (15Gb, XYz')"),
+        LATTICE_HELA_SKEWED("Hela Kyoto, LLS7 Skewed, 1 Timepoint (3Gb, XYz'C)",
+                "https://zenodo.org/records/14203207/files/Hela-Kyoto-1-Timepoint-LLS7.czi"),
+        LATTICE_HELA_SKEWED_TIMELAPSE("Hela Kyoto Division, LLS7 Skewed, 60 Timepoint (15Gb, XYz'CT)",
+                "https://zenodo.org/records/19047136/files/ZeissLLS7Demo.czi"),
+        LATTICE_PSF_200NM("LLS7 Skewed PSF 200 NM (15Gb, XYz')",
+                "https://zenodo.org/records/14505724/files/psf-200nm.tif"),
+        LATTICE_PSF_400NM("LLS7 Skewed PSF 400 NM (15Gb, XYz')",
+                "https://zenodo.org/records/14505724/files/psf-400nm.tif"),
         VORONOI_SMALL("Voronoi Sample Dataset (Generative, XYZ)"),
         VORONOI_BIG("Big Voronoi Sample Dataset (Generative, XYZ)"),
         PLATY("Platy EM, (Streamed, XYZ)"),
-        BRAIN_SECTION_3DTILES("Dentate Gyrus Tiles (4Gb, SXYZC)"),
-        EUROPE_PYRAMIDIZE("Europe Height Map Pyramidized (110Mb, XY)"),
-        EUROPE("Europe Height Map (110Mb, XY)"),
+        BRAIN_SECTION_3DTILES("Dentate Gyrus Tiles (4Gb, SXYZC)",
+                "https://zenodo.org/records/19062791/files/BrainSection-Tiles.lif"),
+        EUROPE_PYRAMIDIZE("Europe Height Map Pyramidized (110Mb, XY)",
+                "https://zenodo.org/records/12738352/files/easterness_edtm_m_240m_s_20000101_20221231_eu_epsg.3035_v20240528.tif"),
+        EUROPE("Europe Height Map (110Mb, XY)",
+                "https://zenodo.org/records/12738352/files/easterness_edtm_m_240m_s_20000101_20221231_eu_epsg.3035_v20240528.tif"),
         MACRO("Mistery dataset");
 
         final String name;
 
+        // Single file downloaded by the dataset, null if none
+        final String url;
+
         DemoDataset(String name) {
+            this(name, null);
+        }
+
+        DemoDataset(String name, String url) {
             this.name = name;
+            this.url = url;
+        }
+
+        /**
+         * @return url of the file downloaded by this dataset, null if none
+         */
+        public String getUrl() {
+            return url;
         }
 
         @Override
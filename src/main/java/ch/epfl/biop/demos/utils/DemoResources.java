@@ -0,0 +1,93 @@
+package ch.epfl.biop.demos.utils;
+
+import ij.ImagePlus;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Access to the classpath resources used by the demos, cached for the lifetime of the JVM
+ * <p>
+ * Images are decoded directly from the resource stream, without a temporary file. Resources
+ * that have to be given as a file, like Labkit classifiers, are used in place when they are
+ * plain files on the classpath, and extracted once otherwise (resource packed in a jar).
+ */
+public class DemoResources {
+
+    static final Map<String, BufferedImage> images = new ConcurrentHashMap<>();
+
+    static final Map<String, File> files = new ConcurrentHashMap<>();
+
+    /**
+     * @param resourcePath absolute path of the resource, for instance /graphics/ABBAFrame.jpg
+     * @return a new ImagePlus with the pixels of the image, which can be modified by the caller
+     */
+    public static ImagePlus getImage(String resourcePath) throws IOException {
+        BufferedImage image = images.get(resourcePath);
+        if (image == null) {
+            try (InputStream in = openStream(resourcePath)) {
+                image = ImageIO.read(in);
+            }
+            if (image == null) {
+                throw new IOException("Could not decode image resource "+resourcePath);
+            }
+            images.putIfAbsent(resourcePath, image);
+        }
+        // ImagePlus copies the pixels of the BufferedImage, the cached image is never modified
+        return new ImagePlus(new File(resourcePath).getName(), image);
+    }
+
+    /**
+     * @param resourcePath absolute path of the resource, for instance /lls7-nuc-bg.classifier
+     * @return a file with the content of the resource, do not modify it
+     */
+    public static File getFile(String resourcePath) throws IOException {
+        File file = files.get(resourcePath);
+        if (file != null && file.exists()) return file;
+        synchronized (files) {
+            file = files.get(resourcePath);
+            if (file != null && file.exists()) return file;
+            URL url = getURL(resourcePath);
+            if ("file".equals(url.getProtocol())) {
+                try {
+                    file = new File(url.toURI());
+                } catch (URISyntaxException e) {
+                    throw new IOException(e);
+                }
+            } else {
+                String name = new File(resourcePath).getName();
+                Path path = Files.createTempFile("demo-", "-"+name);
+                try (InputStream in = url.openStream()) {
+                    Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+                file = path.toFile();
+                file.deleteOnExit();
+            }
+            files.put(resourcePath, file);
+            return file;
+        }
+    }
+
+    private static URL getURL(String resourcePath) throws IOException {
+        URL url = DemoResources.class.getResource(resourcePath);
+        if (url == null) {
+            throw new IOException("Resource "+resourcePath+" not found");
+        }
+        return url;
+    }
+
+    private static InputStream openStream(String resourcePath) throws IOException {
+        return getURL(resourcePath).openStream();
+    }
+
+}
@@ -0,0 +1,144 @@
+package ch.epfl.biop.demos.utils;
+
+import bdv.util.DefaultInterpolators;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.position.FunctionRandomAccessible;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 3D histogram of visited positions, displayed as a Source
+ * <p>
+ * Bins are counted with atomic increments, so that several threads can accumulate positions
+ * at the same time. The Source reads the counts when it is rendered: it shows the histogram
+ * as it is being built, without copy. Pixel values are densities normalized by the number of
+ * accumulated positions, the mean density over the bins is 1, so a fixed display range stays
+ * meaningful while the histogram fills up. Positions outside of the bounds are not counted.
+ */
+public class DensityHistogramSource implements Source<FloatType> {
+
+    protected final DefaultInterpolators< FloatType > interpolators = new DefaultInterpolators<>();
+
+    final String name;
+
+    final double[] min;
+
+    final double binSize;
+
+    final int[] nBins;
+
+    final AtomicIntegerArray counts;
+
+    final LongAdder total = new LongAdder();
+
+    final RandomAccessibleInterval<FloatType> density;
+
+    // Counts to density factor, updated by updateNormalization
+    volatile float normalization = 0;
+
+    /**
+     * @param min lower corner of the histogram, in global coordinates
+     * @param max upper corner of the histogram, in global coordinates
+     * @param binSize size of a bin along each axis, in global units
+     */
+    public DensityHistogramSource(String name, double[] min, double[] max, double binSize) {
+        this.name = name;
+        this.min = min.clone();
+        this.binSize = binSize;
+        this.nBins = new int[3];
+        long n = 1;
+        for (int d = 0; d < 3; d++) {
+            nBins[d] = Math.max(1, (int) Math.ceil((max[d] - min[d]) / binSize));
+            n *= nBins[d];
+        }
+        if (n > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many bins: "+n);
+        counts = new AtomicIntegerArray((int) n);
+        density = Views.interval(new FunctionRandomAccessible<>(3, (position, value) -> {
+            int index = position.getIntPosition(0) + nBins[0] * (position.getIntPosition(1) + nBins[1] * position.getIntPosition(2));
+            value.set(counts.get(index) * normalization);
+        }, FloatType::new), new FinalInterval(nBins[0], nBins[1], nBins[2]));
+    }
+
+    /**
+     * Counts the positions of the particles in [from, to), position[d][i] as in {@link ParticleIntegrator}
+     */
+    public void add(double[][] position, int from, int to) {
+        double[] x = position[0], y = position[1], z = position[2];
+        int added = 0;
+        for (int i = from; i < to; i++) {
+            int bx = (int) Math.floor((x[i] - min[0]) / binSize);
+            int by = (int) Math.floor((y[i] - min[1]) / binSize);
+            int bz = (int) Math.floor((z[i] - min[2]) / binSize);
+            if ((bx < 0) || (by < 0) || (bz < 0) || (bx >= nBins[0]) || (by >= nBins[1]) || (bz >= nBins[2])) continue;
+            counts.incrementAndGet(bx + nBins[0] * (by + nBins[1] * bz));
+            added++;
+        }
+        total.add(added);
+    }
+
+    /**
+     * Makes the displayed densities consistent with the positions added so far
+     */
+    public void updateNormalization() {
+        long sum = total.sum();
+        normalization = sum == 0 ? 0 : (float) ((double) counts.length() / sum);
+    }
+
+    public long getTotal() {
+        return total.sum();
+    }
+
+    @Override
+    public boolean isPresent(int t) {
+        return t==0;
+    }
+
+    @Override
+    public RandomAccessibleInterval<FloatType> getSource(int t, int level) {
+        return density;
+    }
+
+    @Override
+    public RealRandomAccessible<FloatType> getInterpolatedSource(int t, int level, Interpolation method) {
+        return Views.interpolate( Views.extendZero(getSource( t, level )), interpolators.get(method) );
+    }
+
+    @Override
+    public void getSourceTransform(int t, int level, AffineTransform3D transform) {
+        // Pixel centers are bin centers
+        transform.identity();
+        transform.scale(binSize);
+        transform.translate(min[0] + binSize / 2.0, min[1] + binSize / 2.0, min[2] + binSize / 2.0);
+    }
+
+    @Override
+    public FloatType getType() {
+        return new FloatType();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions() {
+        return new FinalVoxelDimensions("unit", binSize, binSize, binSize);
+    }
+
+    @Override
+    public int getNumMipmapLevels() {
+        return 1;
+    }
+
+}
@@ -0,0 +1,173 @@
+package ch.epfl.biop.demos.utils;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.janelia.saalfeldlab.n5.blosc.BloscCompression;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Disk tier for the tiles of a {@link GameOfLifeSourcev2}
+ * <p>
+ * Tiles are stored as blosc compressed blocks of an N5 dataset named after the hash of the seed,
+ * with the tile index in xy and the generation in z. Blocks are written in the background and read
+ * back from a memory mapped file. Any failure to read or write a block is treated as a miss: the
+ * block is removed and the tile is computed again. Writes stop after the first failure, for
+ * instance when the disk is full.
+ * <p>
+ * Only reproducible seeds should be cached: the cache of a seed is kept across sessions.
+ */
+public class GameOfLifeDiskCache {
+
+    public static final File DEFAULT_DIRECTORY = new File(System.getProperty("java.io.tmpdir"), "imglib2-bdv-demos-gol");
+
+    final String basePath;
+
+    final String dataset;
+
+    final DatasetAttributes attributes;
+
+    final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Game of life disk cache writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    final N5FSWriter n5;
+
+    volatile boolean writeFailed = false;
+
+    public GameOfLifeDiskCache(File directory, String seedHash, long[] dimensions, int[] blockSize) {
+        this.basePath = directory.getAbsolutePath();
+        this.dataset = "seed-"+seedHash+"-tile"+blockSize[0];
+        this.attributes = new DatasetAttributes(dimensions, blockSize, DataType.UINT16, new BloscCompression());
+        try {
+            n5 = new N5FSWriter(basePath);
+            n5.createDataset(dataset, attributes);
+        } catch (Exception e) {
+            throw new RuntimeException("Could not create the game of life disk cache in "+basePath, e);
+        }
+    }
+
+    /**
+     * @return the tile pixels, or null if the tile is not on disk
+     */
+    public short[] read(long[] gridPosition) {
+        Path path = getBlockPath(gridPosition);
+        if (!Files.exists(path)) return null;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            DataBlock<?> block = DefaultBlockReader.readBlock(new ByteBufferInputStream(buffer), attributes, gridPosition);
+            return (short[]) block.getData();
+        } catch (Exception e) {
+            // Partially written or corrupted block
+            removeBlock(path);
+            return null;
+        }
+    }
+
+    private void removeBlock(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (Exception e) {
+            // Read again and removed on the next attempt
+        }
+    }
+
+    private Path getBlockPath(long[] gridPosition) {
+        // Default N5 file system layout: dataset/x/y/z
+        return Paths.get(basePath, dataset,
+                Long.toString(gridPosition[0]), Long.toString(gridPosition[1]), Long.toString(gridPosition[2]));
+    }
+
+    /**
+     * Writes the tile in the background, data should not be modified afterwards
+     */
+    public void write(long[] gridPosition, int[] size, short[] data) {
+        if (writeFailed) return;
+        long[] position = gridPosition.clone();
+        int[] blockSize = size.clone();
+        writer.submit(() -> {
+            if (writeFailed) return;
+            try {
+                n5.writeBlock(dataset, attributes, new ShortArrayDataBlock(blockSize, position, data));
+            } catch (Exception e) {
+                writeFailed = true;
+                removeBlock(getBlockPath(position));
+            }
+        });
+    }
+
+    /**
+     * Copies the seed in memory: a seed computed on the fly (random for instance) may not
+     * return the same values twice, and it needs to be hashed then copied consistently
+     */
+    public static RandomAccessibleInterval<UnsignedShortType> materialize(RandomAccessibleInterval<UnsignedShortType> seed) {
+        ArrayImg<UnsignedShortType, ShortArray> copy = ArrayImgs.unsignedShorts(seed.dimensionsAsLongArray());
+        LoopBuilder.setImages(Views.zeroMin(seed), copy).forEachPixel((in, out) -> out.set(in));
+        return Views.translate(copy, seed.minAsLongArray());
+    }
+
+    /**
+     * 64 bits FNV-1a hash of the seed dimensions and values, in hexadecimal
+     */
+    public static String hash(RandomAccessibleInterval<UnsignedShortType> seed) {
+        long hash = 0xcbf29ce484222325L;
+        for (long d : seed.dimensionsAsLongArray()) {
+            hash = (hash ^ d) * 0x100000001b3L;
+        }
+        for (UnsignedShortType pixel : Views.flatIterable(seed)) {
+            hash = (hash ^ pixel.get()) * 0x100000001b3L;
+        }
+        return Long.toHexString(hash);
+    }
+
+    static class ByteBufferInputStream extends InputStream {
+
+        final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) return -1;
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+}
@@ -0,0 +1,414 @@
+package ch.epfl.biop.demos.utils;
+
+import bdv.BigDataViewer;
+import bdv.cache.SharedQueue;
+import bdv.util.DefaultInterpolators;
+import bdv.util.WrapVolatileSource;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.converter.Converter;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import sc.fiji.bdvpg.cache.GlobalLoaderCache;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Game Of Life Source backed by a Hashlife quadtree
+ * <p>
+ * The board is a hash-consed quadtree: identical sub-squares are shared, and the result of
+ * evolving a node is memoized on the node itself. Each time point is 2^stepLog2 generations
+ * after the previous one, and is computed in one jump. Empty areas are a single shared node
+ * per size, and cost nothing to evolve nor to display.
+ * <p>
+ * Cells are rasterized lazily from the quadtree. Resolution level l shows the density of
+ * alive cells in blocks of 2^l x 2^l pixels, read directly from the node populations.
+ * <p>
+ * Unlike the other Game of Life sources, the board is infinite (dead outside of the seed),
+ * only the seed area is displayed. The canonical node cache is bounded and evicts the least
+ * recently used nodes, which only costs some sharing.
+ */
+public class GameOfLifeHashlifeSource implements Source<UnsignedByteType> {
+
+    protected final DefaultInterpolators< UnsignedByteType > interpolators = new DefaultInterpolators<>();
+
+    public static final int DEFAULT_MAX_NODES = 1 << 20;
+
+    final String name;
+
+    final int nResolutionLevels;
+
+    final int stepLog2;
+
+    final int nTimepoints;
+
+    final long width, height;
+
+    // Canonical nodes, least recently used ones are evicted. Also the lock of all quadtree operations
+    final Map<Node, Node> nodes;
+
+    // Empty nodes of each level, never evicted
+    final List<Node> emptyNodes = new ArrayList<>();
+
+    final Map<Integer, Universe> universes = new ConcurrentHashMap<>();
+
+    final Map<Long, RandomAccessibleInterval<UnsignedByteType>> sources = new ConcurrentHashMap<>();
+
+    public GameOfLifeHashlifeSource(String name, RandomAccessibleInterval<UnsignedShortType> seed, int stepLog2, int nTimepoints) {
+        this(name, seed, stepLog2, nTimepoints, DEFAULT_MAX_NODES);
+    }
+
+    public GameOfLifeHashlifeSource(String name, RandomAccessibleInterval<UnsignedShortType> seed, int stepLog2, int nTimepoints, int maxNodes) {
+        this.name = name;
+        this.stepLog2 = stepLog2;
+        this.nTimepoints = nTimepoints;
+        this.width = seed.dimension(0);
+        this.height = seed.dimension(1);
+        this.nodes = new LinkedHashMap<Node, Node>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Node, Node> eldest) {
+                return size() > maxNodes;
+            }
+        };
+        emptyNodes.add(DEAD);
+
+        int seedLevel = 1;
+        while ((1L << seedLevel) < Math.max(width, height)) seedLevel++;
+
+        // Node origins stay multiples of 2^(seedLevel-1), so pyramid levels below are aligned with nodes
+        int nLevels = 1;
+        while ((nLevels < seedLevel) && (Math.max(width, height) >> nLevels) >= tileSize()) nLevels++;
+        this.nResolutionLevels = nLevels;
+
+        BitSet alive = new BitSet();
+        Cursor<UnsignedShortType> cursor = Views.flatIterable(Views.interval(seed,
+                new FinalInterval(new long[]{seed.min(0), seed.min(1), seed.min(2)},
+                        new long[]{seed.max(0), seed.max(1), seed.min(2)}))).cursor();
+        for (int i = 0; cursor.hasNext(); i++) {
+            if (cursor.next().get() != 0) alive.set(i);
+        }
+        synchronized (nodes) {
+            universes.put(0, new Universe(build(alive, seedLevel, 0, 0), 0, 0));
+        }
+    }
+
+    private static int tileSize() {
+        return 64;
+    }
+
+    @Override
+    public boolean isPresent(int t) {
+        return (t>=0)&&(t<nTimepoints);
+    }
+
+    // ── Quadtree ───────────────────────────────────────────────────────────
+
+    /**
+     * Square of 2^level x 2^level cells. Level 0 nodes are single cells.
+     */
+    static final class Node {
+        final int level;
+        final Node nw, ne, sw, se;
+        final long population;
+        final int hash;
+
+        // Memoized successor, for 2^memoJ generations
+        int memoJ = -1;
+        Node memoResult;
+
+        Node(boolean alive) {
+            level = 0;
+            nw = ne = sw = se = null;
+            population = alive ? 1 : 0;
+            hash = alive ? 1 : 0;
+        }
+
+        Node(Node nw, Node ne, Node sw, Node se) {
+            this.level = nw.level + 1;
+            this.nw = nw;
+            this.ne = ne;
+            this.sw = sw;
+            this.se = se;
+            this.population = nw.population + ne.population + sw.population + se.population;
+            this.hash = (((level * 31 + nw.hash) * 31 + ne.hash) * 31 + sw.hash) * 31 + se.hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        // Children are canonical, they are compared by identity
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Node)) return false;
+            Node n = (Node) o;
+            return (level == n.level) && (nw == n.nw) && (ne == n.ne) && (sw == n.sw) && (se == n.se)
+                    && (population == n.population);
+        }
+    }
+
+    static final Node ALIVE = new Node(true);
+
+    static final Node DEAD = new Node(false);
+
+    /**
+     * Quadtree of a generation, with the board position of its top left corner
+     */
+    static final class Universe {
+        final Node root;
+        final long ox, oy;
+
+        Universe(Node root, long ox, long oy) {
+            this.root = root;
+            this.ox = ox;
+            this.oy = oy;
+        }
+    }
+
+    private Node join(Node nw, Node ne, Node sw, Node se) {
+        Node candidate = new Node(nw, ne, sw, se);
+        Node existing = nodes.get(candidate);
+        if (existing != null) return existing;
+        nodes.put(candidate, candidate);
+        return candidate;
+    }
+
+    private Node empty(int level) {
+        while (emptyNodes.size() <= level) {
+            Node e = emptyNodes.get(emptyNodes.size() - 1);
+            emptyNodes.add(join(e, e, e, e));
+        }
+        return emptyNodes.get(level);
+    }
+
+    private Node build(BitSet alive, int level, long x, long y) {
+        if ((x >= width) || (y >= height)) return empty(level);
+        if (level == 0) return alive.get((int) (y * width + x)) ? ALIVE : DEAD;
+        long half = 1L << (level - 1);
+        return join(build(alive, level - 1, x, y), build(alive, level - 1, x + half, y),
+                build(alive, level - 1, x, y + half), build(alive, level - 1, x + half, y + half));
+    }
+
+    // Cell (x,y) of a level 2 node
+    private static long cellAt(Node m, int x, int y) {
+        Node q = (y < 2) ? ((x < 2) ? m.nw : m.ne) : ((x < 2) ? m.sw : m.se);
+        return ((y % 2 == 0) ? ((x % 2 == 0) ? q.nw : q.ne) : ((x % 2 == 0) ? q.sw : q.se)).population;
+    }
+
+    private static Node nextCell(Node m, int x, int y) {
+        long count = 0;
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                if ((dx != 0) || (dy != 0)) count += cellAt(m, x + dx, y + dy);
+            }
+        }
+        return ((count == 3) || ((count == 2) && (cellAt(m, x, y) == 1))) ? ALIVE : DEAD;
+    }
+
+    private Node center(Node m) {
+        return join(m.nw.se, m.ne.sw, m.sw.ne, m.se.nw);
+    }
+
+    private Node expand(Node m) {
+        Node e = empty(m.level - 1);
+        return join(join(e, e, e, m.nw), join(e, e, m.ne, e), join(e, m.sw, e, e), join(m.se, e, e, e));
+    }
+
+    /**
+     * Center of node m (level - 1), 2^min(j, level - 2) generations later
+     */
+    private Node successor(Node m, int j) {
+        if (m.population == 0) return empty(m.level - 1);
+        int jEff = Math.min(j, m.level - 2);
+        if (m.memoJ == jEff) return m.memoResult;
+        Node s;
+        if (m.level == 2) {
+            s = join(nextCell(m, 1, 1), nextCell(m, 2, 1), nextCell(m, 1, 2), nextCell(m, 2, 2));
+        } else {
+            // Nine overlapping sub-squares, each advanced
+            Node c1 = successor(join(m.nw.nw, m.nw.ne, m.nw.sw, m.nw.se), j);
+            Node c2 = successor(join(m.nw.ne, m.ne.nw, m.nw.se, m.ne.sw), j);
+            Node c3 = successor(join(m.ne.nw, m.ne.ne, m.ne.sw, m.ne.se), j);
+            Node c4 = successor(join(m.nw.sw, m.nw.se, m.sw.nw, m.sw.ne), j);
+            Node c5 = successor(join(m.nw.se, m.ne.sw, m.sw.ne, m.se.nw), j);
+            Node c6 = successor(join(m.ne.sw, m.ne.se, m.se.nw, m.se.ne), j);
+            Node c7 = successor(join(m.sw.nw, m.sw.ne, m.sw.sw, m.sw.se), j);
+            Node c8 = successor(join(m.sw.ne, m.se.nw, m.sw.se, m.se.sw), j);
+            Node c9 = successor(join(m.se.nw, m.se.ne, m.se.sw, m.se.se), j);
+            if (jEff < m.level - 2) {
+                // Already advanced enough: only keeps the centers
+                s = join(join(c1.se, c2.sw, c4.ne, c5.nw), join(c2.se, c3.sw, c5.ne, c6.nw),
+                        join(c4.se, c5.sw, c7.ne, c8.nw), join(c5.se, c6.sw, c8.ne, c9.nw));
+            } else {
+                // Advances a second time
+                s = join(successor(join(c1, c2, c4, c5), j), successor(join(c2, c3, c5, c6), j),
+                        successor(join(c4, c5, c7, c8), j), successor(join(c5, c6, c8, c9), j));
+            }
+        }
+        m.memoJ = jEff;
+        m.memoResult = s;
+        return s;
+    }
+
+    private Universe step(Universe u) {
+        Node root = u.root;
+        long ox = u.ox, oy = u.oy;
+        // Pads the board so that nothing escapes the center during the jump
+        while ((root.level < stepLog2 + 3) || (center(root).population != root.population)) {
+            long half = 1L << (root.level - 1);
+            root = expand(root);
+            ox -= half;
+            oy -= half;
+        }
+        long half = 1L << (root.level - 1);
+        root = expand(root);
+        ox -= half;
+        oy -= half;
+        Node next = successor(root, stepLog2);
+        long quarter = 1L << (root.level - 2);
+        return new Universe(next, ox + quarter, oy + quarter);
+    }
+
+    private Universe getUniverse(int t) {
+        Universe u = universes.get(t);
+        if (u != null) return u;
+        synchronized (nodes) {
+            int tStart = t;
+            while (!universes.containsKey(tStart)) tStart--;
+            u = universes.get(tStart);
+            for (int ti = tStart + 1; ti <= t; ti++) {
+                u = step(u);
+                universes.put(ti, u);
+            }
+            return u;
+        }
+    }
+
+    // ── Rasterization ──────────────────────────────────────────────────────
+
+    private static byte density(Node node, int level) {
+        if (level == 0) return (byte) 16;
+        long area = 1L << (2 * level);
+        return (byte) ((16 * node.population + area - 1) / area);
+    }
+
+    // Writes the nodes of size 2^level intersecting the cell [cx0, cx0+w[ x [cy0, cy0+h[ (in level pixels)
+    private static void rasterize(Node node, long nx, long ny, int level,
+                                  long cx0, long cy0, int w, int h, byte[] out) {
+        if (node.population == 0) return;
+        long size = 1L << node.level;
+        if ((nx >= (cx0 + w) << level) || (ny >= (cy0 + h) << level)
+                || (nx + size <= cx0 << level) || (ny + size <= cy0 << level)) return;
+        if (node.level == level) {
+            int px = (int) ((nx >> level) - cx0);
+            int py = (int) ((ny >> level) - cy0);
+            out[py * w + px] = density(node, level);
+            return;
+        }
+        long half = size / 2;
+        rasterize(node.nw, nx, ny, level, cx0, cy0, w, h, out);
+        rasterize(node.ne, nx + half, ny, level, cx0, cy0, w, h, out);
+        rasterize(node.sw, nx, ny + half, level, cx0, cy0, w, h, out);
+        rasterize(node.se, nx + half, ny + half, level, cx0, cy0, w, h, out);
+    }
+
+    private RandomAccessibleInterval<UnsignedByteType> buildSource(int t, int level) {
+        int tileSizeLevel = tileSize();
+        final int[] cellDimensions = new int[]{ tileSizeLevel, tileSizeLevel, 1 };
+        long[] newDimensions = new long[3];
+        newDimensions[0] = ((width - 1) >> level) + 1;
+        newDimensions[1] = ((height - 1) >> level) + 1;
+        newDimensions[2] = 1;
+        CellGrid grid = new CellGrid(newDimensions, cellDimensions);
+
+        LoadedCellCacheLoader<UnsignedByteType, ?> loader = LoadedCellCacheLoader.get(grid, cell -> {
+            Universe u = getUniverse(t);
+            final byte[] out = (byte[]) cell.update(null).getCurrentStorageArray();
+            rasterize(u.root, u.ox, u.oy, level, cell.min(0), cell.min(1),
+                    (int) cell.dimension(0), (int) cell.dimension(1), out);
+        }, new UnsignedByteType(), AccessFlags.setOf(AccessFlags.VOLATILE));
+        Cache<Long, Cell<UnsignedByteType>> cache = (new GlobalLoaderCache(this, t, level)).withLoader(loader);
+        return new CachedCellImg(grid, getType(), cache, ArrayDataAccessFactory.get(getType(), AccessFlags.setOf(AccessFlags.VOLATILE)));
+    }
+
+    @Override
+    public RandomAccessibleInterval<UnsignedByteType> getSource(int t, int level) {
+        return sources.computeIfAbsent((long) t * nResolutionLevels + level, k -> buildSource(t, level));
+    }
+
+    @Override
+    public RealRandomAccessible<UnsignedByteType> getInterpolatedSource(int t, int level, Interpolation method) {
+        return Views.interpolate( Views.extendZero(getSource( t, level )), interpolators.get(method) );
+    }
+
+    @Override
+    public void getSourceTransform(int t, int level, AffineTransform3D transform) {
+        double scale = 1 << level;
+        transform.identity();
+        transform.scale(scale, scale, 1);
+        transform.translate((scale - 1) / 2.0, (scale - 1) / 2.0, 0);
+    }
+
+    @Override
+    public UnsignedByteType getType() {
+        return new UnsignedByteType();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions() {
+        return new FinalVoxelDimensions("pixel", 1,1,1);
+    }
+
+    @Override
+    public int getNumMipmapLevels() {
+        return nResolutionLevels;
+    }
+
+    public static SourceAndConverter<UnsignedByteType> getSourceAndConverter(SharedQueue queue, RandomAccessibleInterval<UnsignedShortType> rai, int stepLog2, int nTimepoints) {
+
+        Source<UnsignedByteType> gameOfLife = new GameOfLifeHashlifeSource("Game of life (Hashlife)", rai, stepLog2, nTimepoints);
+        SourceAndConverter<UnsignedByteType> sac_out;
+
+        SourceAndConverter<?> vsac; Source<?> vsrcRsampled;
+
+        vsrcRsampled = new WrapVolatileSource<>(gameOfLife, queue);
+        Converter< ?, ARGBType> volatileConverter = BigDataViewer.createConverterToARGB((NumericType) vsrcRsampled.getType());
+        Converter< ?, ARGBType> converter = BigDataViewer.createConverterToARGB(new UnsignedByteType());
+
+        vsac = new SourceAndConverter(vsrcRsampled,volatileConverter);
+        sac_out = new SourceAndConverter(gameOfLife, converter,vsac);
+
+        return sac_out;
+    }
+
+}
@@ -0,0 +1,145 @@
+package ch.epfl.biop.demos.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefetches the tiles of a {@link GameOfLifeSourcev2} in the order of their dependencies
+ * <p>
+ * A tile at generation z depends on the 3x3 tiles around it at generation z-1. When a region
+ * is requested, its dependency cone is walked down to the first generation where all tiles are
+ * already computed. The cone is then computed upward, one generation at a time, all tiles of a
+ * generation in parallel and the ones closest to the displayed region first. Each tile load thus
+ * finds its dependencies in the cache instead of recursing down to the seed on a fetcher thread.
+ * <p>
+ * A new request cancels the remaining generations of the previous one.
+ */
+public class GameOfLifePrefetcher {
+
+    final GameOfLifeSourcev2 source;
+
+    final ExecutorService planner;
+
+    final ExecutorService workers;
+
+    final AtomicLong lastRequest = new AtomicLong();
+
+    // Tiles of the current plan which are not computed yet. Each plan has its own counter: the
+    // tasks of a cancelled plan which are still running do not decrement the next one
+    volatile AtomicInteger queueDepth = new AtomicInteger();
+
+    // Number of generations of the current plan
+    volatile int criticalPathLength = 0;
+
+    public GameOfLifePrefetcher(GameOfLifeSourcev2 source, int nThreads) {
+        this.source = source;
+        this.planner = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Game of life prefetch planner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger workerIndex = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, nThreads), r -> {
+            Thread thread = new Thread(r, "Game of life prefetcher "+workerIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Prefetches the tiles needed to display this region, in pixel coordinates of the generation z
+     */
+    public void prefetch(long minX, long minY, long maxX, long maxY, long z) {
+        long request = lastRequest.incrementAndGet();
+        planner.submit(() -> run(request, minX, minY, maxX, maxY, z));
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public int getCriticalPathLength() {
+        return criticalPathLength;
+    }
+
+    public void shutdown() {
+        lastRequest.incrementAndGet();
+        planner.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private boolean isCancelled(long request) {
+        return request != lastRequest.get();
+    }
+
+    private void run(long request, long minX, long minY, long maxX, long maxY, long z) {
+        if (isCancelled(request)) return;
+        int tileSize = GameOfLifeSourcev2.tileSize();
+        z = Math.max(0, Math.min(source.maxStep - 1, z));
+
+        // Tile range {tx0, ty0, tx1, ty1} of the displayed region
+        long[] range = new long[]{
+                Math.max(0, minX / tileSize), Math.max(0, minY / tileSize),
+                Math.min(source.nTilesX - 1, maxX / tileSize), Math.min(source.nTilesY - 1, maxY / tileSize)};
+        if ((range[0] > range[2]) || (range[1] > range[3])) return;
+        double centerX = (range[0] + range[2]) / 2.0;
+        double centerY = (range[1] + range[3]) / 2.0;
+
+        // Walks down the dependency cone, the last generation of the plan is the lowest one to compute
+        List<List<long[]>> plan = new ArrayList<>();
+        int nTiles = 0;
+        for (long gen = z; gen >= 0; gen--) {
+            List<long[]> missing = new ArrayList<>();
+            for (long ty = range[1]; ty <= range[3]; ty++) {
+                for (long tx = range[0]; tx <= range[2]; tx++) {
+                    if (!source.isTileKnown(tx, ty, gen)) missing.add(new long[]{tx, ty, gen});
+                }
+            }
+            if (missing.isEmpty()) break;
+            missing.sort(Comparator.comparingDouble(t -> Math.abs(t[0] - centerX) + Math.abs(t[1] - centerY)));
+            plan.add(missing);
+            nTiles += missing.size();
+            range = new long[]{
+                    Math.max(0, range[0] - 1), Math.max(0, range[1] - 1),
+                    Math.min(source.nTilesX - 1, range[2] + 1), Math.min(source.nTilesY - 1, range[3] + 1)};
+        }
+
+        criticalPathLength = plan.size();
+        AtomicInteger depth = new AtomicInteger(nTiles);
+        queueDepth = depth;
+
+        // Computes upward, starting from the lowest generation
+        for (int i = plan.size() - 1; i >= 0; i--) {
+            if (isCancelled(request)) break;
+            List<Future<?>> generation = new ArrayList<>();
+            for (long[] tile : plan.get(i)) {
+                generation.add(workers.submit(() -> {
+                    if (!isCancelled(request)) {
+                        source.loadTile(tile[0], tile[1], tile[2]);
+                        depth.decrementAndGet();
+                    }
+                }));
+            }
+            for (Future<?> future : generation) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            criticalPathLength = i;
+        }
+
+        if (!isCancelled(request)) depth.set(0);
+    }
+
+}
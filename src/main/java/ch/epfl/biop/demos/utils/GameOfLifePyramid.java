@@ -0,0 +1,88 @@
+package ch.epfl.biop.demos.utils;
+
+import bdv.viewer.Source;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.view.Views;
+import sc.fiji.bdvpg.cache.GlobalLoaderCache;
+
+/**
+ * Lazily computed resolution levels for the Game of Life sources
+ * <p>
+ * Level l is computed from level l-1 by 2x2 blocks in xy (z is kept), each pixel being
+ * the density of alive cells, rounded up so that isolated cells stay visible. Level l-1 tiles
+ * are read from the cache when they are already loaded, and loaded on demand otherwise.
+ */
+public class GameOfLifePyramid {
+
+    /**
+     * Number of levels such that the coarsest one is still at least one tile wide
+     */
+    public static int numResolutionLevels(long width, long height, int tileSize) {
+        int nLevels = 1;
+        while ((Math.max(width, height) >> nLevels) >= tileSize) nLevels++;
+        return nLevels;
+    }
+
+    public static void getSourceTransform(int level, AffineTransform3D transform) {
+        double scale = 1 << level;
+        transform.identity();
+        transform.scale(scale, scale, 1);
+        transform.translate((scale - 1) / 2.0, (scale - 1) / 2.0, 0);
+    }
+
+    /**
+     * Returns the level below, downsampled by 2 in xy
+     * @param source the source which owns the level, used with t and level as the global cache key
+     */
+    public static <T extends IntegerType<T> & NativeType<T>> RandomAccessibleInterval<T> downsample(
+            Source<T> source, int t, int level, RandomAccessibleInterval<T> below, int tileSize) {
+        final int[] cellDimensions = new int[]{ tileSize, tileSize, 1 };
+        long[] newDimensions = new long[3];
+        newDimensions[0] = (below.dimension(0) + 1) / 2;
+        newDimensions[1] = (below.dimension(1) + 1) / 2;
+        newDimensions[2] = below.dimension(2);
+        CellGrid grid = new CellGrid(newDimensions, cellDimensions);
+
+        T type = source.getType();
+
+        LoadedCellCacheLoader<T, ?> loader = LoadedCellCacheLoader.get(grid, cell -> {
+            final int w = (int) cell.dimension(0);
+            final int h = (int) cell.dimension(1);
+            final int[] block = new int[4*w*h];
+
+            Cursor<T> out = Views.flatIterable(cell).cursor();
+            for (long z = cell.min(2); z <= cell.max(2); z++) {
+                // 2w x 2h block of the level below, zero outside
+                Cursor<T> in = Views.flatIterable(Views.interval(Views.extendZero(below),
+                        new FinalInterval(
+                                new long[]{2*cell.min(0), 2*cell.min(1), z},
+                                new long[]{2*cell.max(0)+1, 2*cell.max(1)+1, z}))).cursor();
+                for (int i = 0; i < 4*w*h; i++) {
+                    block[i] = in.next().getInteger();
+                }
+                for (int y = 0; y < h; y++) {
+                    for (int x = 0; x < w; x++) {
+                        int i = 4*w*y + 2*x;
+                        int sum = block[i] + block[i+1] + block[i+2*w] + block[i+2*w+1];
+                        out.next().setInteger((sum+3)/4);
+                    }
+                }
+            }
+        }, type, AccessFlags.setOf(AccessFlags.VOLATILE));
+        Cache<Long, Cell<T>> cache = (new GlobalLoaderCache(source, t, level)).withLoader(loader);
+        return new CachedCellImg(grid, type, cache, ArrayDataAccessFactory.get(type, AccessFlags.setOf(AccessFlags.VOLATILE)));
+    }
+
+}
@@ -10,28 +10,52 @@ import bdv.viewer.SourceAndConverter;
 import mpicbg.spim.data.sequence.FinalVoxelDimensions;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.cache.Cache;
 import net.imglib2.cache.img.CachedCellImg;
 import net.imglib2.cache.img.LoadedCellCacheLoader;
 import net.imglib2.converter.Converter;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.AccessFlags;
 import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
 import net.imglib2.img.cell.Cell;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.NumericType;
+import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.view.Views;
 import sc.fiji.bdvpg.cache.GlobalLoaderCache;
 
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 /**
  * Game Of Life Source
+ * <p>
+ * Each generation is a lazy image computed from the previous one. Every keyframeInterval
+ * generation, a keyframe is fully computed and pinned in memory: the generations in between
+ * are built from the closest keyframe below, kept in a bounded map, and rebuilt when evicted.
+ * <p>
+ * {@link #getSource(int, int)} only creates lazy images and never waits for a keyframe: keyframes
+ * are built in the background, each one through its own future chained on the one below, and
+ * the cells that need a keyframe not built yet wait for it in their loader, on the fetcher
+ * threads. BDV displays these cells once they are loaded.
  */
 public class GameOfLifeSource implements Source<UnsignedByteType> {
 
@@ -41,12 +65,61 @@ public class GameOfLifeSource implements Source<UnsignedByteType> {
 
     final int nResolutionLevels;
 
-    final Map<Integer, RandomAccessibleInterval<UnsignedByteType>> sources = new HashMap<>();
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 50;
+
+    final int keyframeInterval;
+
+    // Each keyframe needs the one below: the keyframes of this source are built one at a time, in
+    // the background. The thread ends when there is no keyframe to build
+    final ExecutorService keyframeBuilder = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "Game of life keyframe builder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Keyframe k is the generation k*keyframeInterval-1, keyframe 0 is the origin
+    final Map<Integer, CompletableFuture<RandomAccessibleInterval<UnsignedByteType>>> keyframes = new ConcurrentHashMap<>();
+
+    // Volatile cached views of the keyframes, which can be created before the keyframe is built
+    final Map<Integer, RandomAccessibleInterval<UnsignedByteType>> keyframeViews = new ConcurrentHashMap<>();
+
+    // Generations between the keyframes, at most keyframeInterval of them, the oldest is evicted first
+    final Map<Integer, RandomAccessibleInterval<UnsignedByteType>> sources = new ConcurrentHashMap<>();
+
+    final Queue<Integer> sourcesOrder = new ConcurrentLinkedQueue<>();
+
+    // Least recently used resolution levels above 0, keyed by t*nResolutionLevels+level
+    final Map<Long, RandomAccessibleInterval<UnsignedByteType>> levels;
+
+    // If true, the tiles are computed on primitive arrays instead of nine shifted cursors
+    final boolean primitiveTiles;
+
+    // Previous generation tiles plus a one pixel halo. Loading a tile can trigger the loading
+    // of the previous generation on the same thread, so each thread keeps a pool of buffers
+    final ThreadLocal<ArrayDeque<byte[]>> haloTiles = ThreadLocal.withInitial(ArrayDeque::new);
 
     public GameOfLifeSource(String name, RandomAccessibleInterval<UnsignedByteType> origin) {
+        this(name, origin, false);
+    }
+
+    public GameOfLifeSource(String name, RandomAccessibleInterval<UnsignedByteType> origin, boolean primitiveTiles) {
+        this(name, origin, primitiveTiles, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    public GameOfLifeSource(String name, RandomAccessibleInterval<UnsignedByteType> origin, boolean primitiveTiles, int keyframeInterval) {
         this.name = name;
-        sources.put(-1, origin); // I have to put it at t=-1 because it can't be 'wrapped as volatile'
-        this.nResolutionLevels = 1;
+        // The origin is the generation -1: the displayed generation 0 is computed from it, and can be wrapped as volatile
+        keyframes.put(0, CompletableFuture.completedFuture(origin));
+        this.nResolutionLevels = GameOfLifePyramid.numResolutionLevels(origin.dimension(0), origin.dimension(1), tileSize());
+        this.primitiveTiles = primitiveTiles;
+        this.keyframeInterval = keyframeInterval;
+        this.levels = new LinkedHashMap<Long, RandomAccessibleInterval<UnsignedByteType>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, RandomAccessibleInterval<UnsignedByteType>> eldest) {
+                return size() > keyframeInterval * (nResolutionLevels - 1);
+            }
+        };
     }
 
     @Override
@@ -58,18 +131,154 @@ public class GameOfLifeSource implements Source<UnsignedByteType> {
         return 64;
     }
 
-    private void buildSources(int t) {
+    private CellGrid getGrid(RandomAccessibleInterval<UnsignedByteType> raiBelow) {
         int tileSizeLevel = tileSize();
         final int[] cellDimensions = new int[]{ tileSizeLevel, tileSizeLevel, 1 };
-
-        if (!sources.containsKey(t-1)) buildSources(t-1);
-
-        final RandomAccessibleInterval<UnsignedByteType> raiBelow = sources.get(t-1);
         long[] newDimensions = new long[3];
         newDimensions[0] = raiBelow.dimensionsAsLongArray()[0];
         newDimensions[1] = raiBelow.dimensionsAsLongArray()[1];
         newDimensions[2] = raiBelow.dimensionsAsLongArray()[2];
-        CellGrid grid = new CellGrid(newDimensions, cellDimensions);
+        return new CellGrid(newDimensions, cellDimensions);
+    }
+
+    /**
+     * Returns the future of the pinned keyframe k, chaining the missing keyframes below it in increasing order
+     */
+    private CompletableFuture<RandomAccessibleInterval<UnsignedByteType>> getKeyframe(int k) {
+        int kStart = k;
+        while (!keyframes.containsKey(kStart)) kStart--;
+        for (int i = kStart + 1; i <= k; i++) {
+            final int ki = i;
+            CompletableFuture<RandomAccessibleInterval<UnsignedByteType>> future = new CompletableFuture<>();
+            if (keyframes.putIfAbsent(ki, future) != null) continue; // Already chained by another thread
+            CompletableFuture<RandomAccessibleInterval<UnsignedByteType>> below = keyframes.get(ki - 1);
+            if (below == null) { // The keyframe below failed meanwhile
+                keyframes.remove(ki, future);
+                future.completeExceptionally(new RuntimeException("Game of life keyframe "+(ki - 1)+" could not be built"));
+                break;
+            }
+            below.thenApplyAsync(pinned -> buildKeyframe(ki, pinned), keyframeBuilder)
+                    .whenComplete((pinned, e) -> {
+                        if (e != null) {
+                            // A failed keyframe is built again on the next request
+                            keyframes.remove(ki, future);
+                            future.completeExceptionally(e);
+                        } else {
+                            future.complete(pinned);
+                        }
+                    });
+        }
+        CompletableFuture<RandomAccessibleInterval<UnsignedByteType>> keyframe = keyframes.get(k);
+        if (keyframe == null) throw new RuntimeException("Game of life keyframe "+k+" could not be built");
+        return keyframe;
+    }
+
+    /**
+     * Computes the keyframe k from the one below on whole arrays. The generations in between are
+     * not read through the cached images: the cells of the keyframe view, which share the cache
+     * key of the keyframe generation, wait for this keyframe
+     */
+    private RandomAccessibleInterval<UnsignedByteType> buildKeyframe(int k, RandomAccessibleInterval<UnsignedByteType> keyframeBelow) {
+        long[] dimensions = keyframeBelow.dimensionsAsLongArray();
+        ArrayImg<UnsignedByteType, ByteArray> generation = ArrayImgs.unsignedBytes(dimensions);
+        LoopBuilder.setImages(Views.zeroMin(keyframeBelow), generation).multiThreaded().forEachPixel((in, out) -> out.set(in));
+        ArrayImg<UnsignedByteType, ByteArray> next = ArrayImgs.unsignedBytes(dimensions);
+        int w = (int) dimensions[0];
+        int h = (int) dimensions[1];
+        int d = dimensions.length > 2 ? (int) dimensions[2] : 1;
+        for (int i = 0; i < keyframeInterval; i++) {
+            step(generation.update(null).getCurrentStorageArray(), next.update(null).getCurrentStorageArray(), w, h, d);
+            ArrayImg<UnsignedByteType, ByteArray> swap = generation;
+            generation = next;
+            next = swap;
+        }
+        return generation;
+    }
+
+    /**
+     * Computes the next generation of each plane, with the same border as the cached generations:
+     * the pixels outside are the closest border pixel
+     */
+    private static void step(byte[] in, byte[] out, int w, int h, int d) {
+        IntStream.range(0, h * d).parallel().forEach(row -> {
+            int plane = (row / h) * w * h;
+            int y = row % h;
+            int iAbove = plane + Math.max(0, y - 1) * w;
+            int iRow = plane + y * w;
+            int iBelow = plane + Math.min(h - 1, y + 1) * w;
+            for (int x = 0; x < w; x++) {
+                int xl = Math.max(0, x - 1);
+                int xr = Math.min(w - 1, x + 1);
+                int val =
+                    (in[iAbove+xl] & 0xFF) + (in[iAbove+x] & 0xFF) + (in[iAbove+xr] & 0xFF)
+                    +(in[iRow+xl] & 0xFF) + (in[iRow+xr] & 0xFF)
+                    +(in[iBelow+xl] & 0xFF) + (in[iBelow+x] & 0xFF) + (in[iBelow+xr] & 0xFF);
+                if ((in[iRow+x] & 0xFF)==16) {
+                    out[iRow+x] = (byte) ((val==32)||(val==48)?16:0);
+                } else {
+                    out[iRow+x] = (byte) (val==48?16:0);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a volatile cached copy of the keyframe k, its cells wait for the keyframe to be built
+     */
+    private RandomAccessibleInterval<UnsignedByteType> getKeyframeView(int k) {
+        return keyframeViews.computeIfAbsent(k, key -> {
+            RandomAccessibleInterval<UnsignedByteType> origin = keyframes.get(0).join();
+            CellGrid grid = getGrid(origin);
+            LoadedCellCacheLoader<UnsignedByteType, ?> loader = LoadedCellCacheLoader.get(grid, cell -> {
+                RandomAccessibleInterval<UnsignedByteType> pinned = getKeyframe(k).join();
+                Cursor<UnsignedByteType> in = Views.flatIterable(Views.interval(pinned, cell)).cursor();
+                Cursor<UnsignedByteType> out = Views.flatIterable(cell).cursor();
+                while (out.hasNext()) {
+                    out.next().set(in.next());
+                }
+            }, new UnsignedByteType(), AccessFlags.setOf(AccessFlags.VOLATILE));
+            Cache<Long, Cell<UnsignedByteType>> cache = (new GlobalLoaderCache(this, k * keyframeInterval - 1, 0)).withLoader(loader);
+            return new CachedCellImg(grid, getType(), cache, ArrayDataAccessFactory.get(getType(), AccessFlags.setOf(AccessFlags.VOLATILE)));
+        });
+    }
+
+    private RandomAccessibleInterval<UnsignedByteType> getGeneration(int t) {
+        int k = (t + 1) / keyframeInterval;
+        int tKeyframe = k * keyframeInterval - 1;
+        if (t == tKeyframe) {
+            getKeyframe(k); // Starts building it
+            return getKeyframeView(k);
+        }
+        RandomAccessibleInterval<UnsignedByteType> rai = sources.get(t);
+        if (rai != null) return rai;
+
+        // Closest generation still available above the keyframe, then iterates up to t. Only lazy
+        // images are created here, the pixels are computed on demand
+        int tStart = t - 1;
+        while ((tStart > tKeyframe) && ((rai = sources.get(tStart)) == null)) tStart--;
+        if (tStart == tKeyframe) {
+            CompletableFuture<RandomAccessibleInterval<UnsignedByteType>> keyframe = getKeyframe(k);
+            // The pinned keyframe once built, its view otherwise
+            rai = (keyframe.isDone() && !keyframe.isCompletedExceptionally()) ? keyframe.join() : getKeyframeView(k);
+        }
+        for (int ti = tStart + 1; ti <= t; ti++) {
+            final int tGeneration = ti;
+            final RandomAccessibleInterval<UnsignedByteType> below = rai;
+            rai = sources.computeIfAbsent(ti, key -> {
+                sourcesOrder.add(key);
+                return createGeneration(tGeneration, below);
+            });
+        }
+        while (sources.size() > keyframeInterval) {
+            Integer oldest = sourcesOrder.poll();
+            if (oldest == null) break;
+            sources.remove(oldest);
+        }
+        return rai;
+    }
+
+    private RandomAccessibleInterval<UnsignedByteType> createGeneration(int t, RandomAccessibleInterval<UnsignedByteType> raiBelow) {
+        CellGrid grid = getGrid(raiBelow);
 
         // Expand image by one pixel to avoid out of bounds exception
         final RandomAccessibleInterval<UnsignedByteType> rai =  Views.expandBorder(raiBelow,1,1,0);
@@ -86,6 +295,48 @@ public class GameOfLifeSource implements Source<UnsignedByteType> {
         RandomAccessibleInterval<UnsignedByteType> raim11 = Views.offsetInterval(rai, new long[]{-1,1,0}, raiBelow.dimensionsAsLongArray());
 
 
+        if (primitiveTiles) {
+            LoadedCellCacheLoader<UnsignedByteType, ?> loader = LoadedCellCacheLoader.get(grid, cell -> {
+                final int w = (int) cell.dimension(0);
+                final int h = (int) cell.dimension(1);
+                final int hw = w + 2;
+
+                // Copies the previous generation tile and its halo in one pass
+                final ArrayDeque<byte[]> pool = haloTiles.get();
+                final byte[] halo = pool.isEmpty() ? new byte[(tileSize()+2)*(tileSize()+2)] : pool.pop();
+                final Cursor<UnsignedByteType> in = Views.flatIterable(Views.interval(rai,
+                        new FinalInterval(
+                                new long[]{cell.min(0)-1, cell.min(1)-1, cell.min(2)},
+                                new long[]{cell.max(0)+1, cell.max(1)+1, cell.min(2)}))).cursor();
+                for (int i = 0; i < hw*(h+2); i++) {
+                    halo[i] = in.next().getByte();
+                }
+
+                // Output cell is written directly in its backing array
+                final byte[] out = (byte[]) cell.update(null).getCurrentStorageArray();
+
+                for (int y = 0; y < h; y++) {
+                    int iAbove = y * hw + 1;
+                    int iRow = iAbove + hw;
+                    int iBelow = iRow + hw;
+                    for (int x = 0; x < w; x++) {
+                        int val =
+                            (halo[iAbove+x-1] & 0xFF) + (halo[iAbove+x] & 0xFF) + (halo[iAbove+x+1] & 0xFF)
+                            +(halo[iRow+x-1] & 0xFF) + (halo[iRow+x+1] & 0xFF)
+                            +(halo[iBelow+x-1] & 0xFF) + (halo[iBelow+x] & 0xFF) + (halo[iBelow+x+1] & 0xFF);
+                        if ((halo[iRow+x] & 0xFF)==16) {
+                            out[y*w+x] = (byte) ((val==32)||(val==48)?16:0);
+                        } else {
+                            out[y*w+x] = (byte) (val==48?16:0);
+                        }
+                    }
+                }
+                pool.push(halo);
+            }, new UnsignedByteType(), AccessFlags.setOf(AccessFlags.VOLATILE));
+            Cache<Long, Cell<UnsignedByteType>> cache = (new GlobalLoaderCache(this, t, 0)).withLoader(loader);
+            return new CachedCellImg(grid, getType(), cache, ArrayDataAccessFactory.get(getType(), AccessFlags.setOf(AccessFlags.VOLATILE)));
+        }
+
         LoadedCellCacheLoader<UnsignedByteType, ?> loader = LoadedCellCacheLoader.get(grid, cell -> {
             // Cursor on the source image
             final Cursor<UnsignedByteType> c00 = Views.flatIterable(Views.interval(rai00, cell)).cursor();
@@ -131,17 +382,22 @@ public class GameOfLifeSource implements Source<UnsignedByteType> {
 
         }, new UnsignedByteType(), AccessFlags.setOf(AccessFlags.VOLATILE));
         Cache<Long, Cell<UnsignedByteType>> cache = (new GlobalLoaderCache(this, t, 0)).withLoader(loader);
-        CachedCellImg img = new CachedCellImg(grid, getType(), cache, ArrayDataAccessFactory.get(getType(), AccessFlags.setOf(AccessFlags.VOLATILE)));
-        sources.put(t, img);
+        return new CachedCellImg(grid, getType(), cache, ArrayDataAccessFactory.get(getType(), AccessFlags.setOf(AccessFlags.VOLATILE)));
     }
 
     @Override
-    public synchronized RandomAccessibleInterval<UnsignedByteType> getSource(int t, int level) {
-        if (!sources.containsKey(t)) {
-            buildSources(t);
+    public RandomAccessibleInterval<UnsignedByteType> getSource(int t, int level) {
+        if (level==0) return getGeneration(t);
+        long key = (long) t * nResolutionLevels + level;
+        synchronized (levels) {
+            RandomAccessibleInterval<UnsignedByteType> rai = levels.get(key);
+            if (rai != null) return rai;
+        }
+        // Outside the lock: the level below creates the generations it needs
+        RandomAccessibleInterval<UnsignedByteType> below = getSource(t, level - 1);
+        synchronized (levels) {
+            return levels.computeIfAbsent(key, k -> GameOfLifePyramid.downsample(this, t, level, below, tileSize()));
         }
-        if (level>0) throw new RuntimeException("Game of life source is not multiresolution");
-        return sources.get(t);
     }
 
     @Override
@@ -151,7 +407,7 @@ public class GameOfLifeSource implements Source<UnsignedByteType> {
 
     @Override
     public void getSourceTransform(int t, int level, AffineTransform3D transform) {
-        transform.identity();
+        GameOfLifePyramid.getSourceTransform(level, transform);
     }
 
     @Override
@@ -175,8 +431,16 @@ public class GameOfLifeSource implements Source<UnsignedByteType> {
     }
 
     public static SourceAndConverter<UnsignedByteType> getSourceAndConverter(SharedQueue queue, RandomAccessibleInterval<UnsignedByteType> rai) {
+        return getSourceAndConverter(queue, rai, false);
+    }
+
+    public static SourceAndConverter<UnsignedByteType> getSourceAndConverter(SharedQueue queue, RandomAccessibleInterval<UnsignedByteType> rai, boolean primitiveTiles) {
+        return getSourceAndConverter(queue, rai, primitiveTiles, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    public static SourceAndConverter<UnsignedByteType> getSourceAndConverter(SharedQueue queue, RandomAccessibleInterval<UnsignedByteType> rai, boolean primitiveTiles, int keyframeInterval) {
 
-        Source<UnsignedByteType> gameOfLife = new GameOfLifeSource("Game of life", rai);
+        Source<UnsignedByteType> gameOfLife = new GameOfLifeSource("Game of life", rai, primitiveTiles, keyframeInterval);
 
         SourceAndConverter<UnsignedByteType> sac_out;
 
@@ -46,10 +46,13 @@ public class GameOfLifeSourcev1 implements Source<UnsignedByteType> {
 
     final Map<Integer, RandomAccessibleInterval<UnsignedByteType>> sources = new HashMap<>();
 
+    // Resolution levels above 0, keyed by t*nResolutionLevels+level
+    final Map<Long, RandomAccessibleInterval<UnsignedByteType>> levels = new HashMap<>();
+
     public GameOfLifeSourcev1(String name, RandomAccessibleInterval<UnsignedByteType> origin) {
         this.name = name;
         sources.put(-1, origin); // I have to put it at t=-1 because it can't be 'wrapped as volatile'
-        this.nResolutionLevels = 1;
+        this.nResolutionLevels = GameOfLifePyramid.numResolutionLevels(origin.dimension(0), origin.dimension(1), tileSize());
     }
 
     @Override
@@ -108,8 +111,12 @@ public class GameOfLifeSourcev1 implements Source<UnsignedByteType> {
         if (!sources.containsKey(t)) {
             buildSources(t);
         }
-        if (level>0) throw new RuntimeException("Game of life source is not multiresolution");
-        return sources.get(t);
+        if (level==0) return sources.get(t);
+        long key = (long) t * nResolutionLevels + level;
+        if (!levels.containsKey(key)) {
+            levels.put(key, GameOfLifePyramid.downsample(this, t, level, getSource(t, level - 1), tileSize()));
+        }
+        return levels.get(key);
     }
 
     @Override
@@ -119,7 +126,7 @@ public class GameOfLifeSourcev1 implements Source<UnsignedByteType> {
 
     @Override
     public void getSourceTransform(int t, int level, AffineTransform3D transform) {
-        transform.identity();
+        GameOfLifePyramid.getSourceTransform(level, transform);
     }
 
     @Override
@@ -15,11 +15,13 @@ import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.cache.Cache;
+import net.imglib2.cache.CacheLoader;
 import net.imglib2.cache.img.CachedCellImg;
 import net.imglib2.cache.img.LoadedCellCacheLoader;
 import net.imglib2.converter.Converter;
 import net.imglib2.img.basictypeaccess.AccessFlags;
 import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
 import net.imglib2.img.cell.Cell;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -30,8 +32,21 @@ import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.view.Views;
 import sc.fiji.bdvpg.cache.GlobalLoaderCache;
 
+import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Game Of Life Source
+ * <p>
+ * The occupancy of each tile is recorded when it is produced. A tile whose 3x3 neighbor tiles
+ * are all dead at the previous generation is dead too: it is not computed, and all such tiles
+ * share the same constant array.
  */
 public class GameOfLifeSourcev2 implements Source<UnsignedShortType> {
 
@@ -39,19 +54,84 @@ public class GameOfLifeSourcev2 implements Source<UnsignedShortType> {
 
     final String name;
 
-    final int nResolutionLevels = 1;
+    final int nResolutionLevels;
 
     final RandomAccessibleInterval<UnsignedShortType> seed;
 
     final CachedCellImg img;
 
+    // Level 0 is img, the levels above are density-downsampled in xy
+    final RandomAccessibleInterval<UnsignedShortType>[] levels;
+
     final int maxStep;
 
+    final int nTilesX, nTilesY;
+
+    static final byte UNKNOWN = 0, EMPTY = 1, OCCUPIED = 2;
+
+    // Occupancy of each tile, indexed like the cells of img, UNKNOWN until the tile is loaded
+    final byte[] occupancy;
+
+    // Shared by all dead tiles, never written
+    final VolatileShortArray deadTile = new VolatileShortArray(tileSize()*tileSize(), true);
+
+    // Optional disk tier, null if disabled
+    final GameOfLifeDiskCache diskCache;
+
+    // Checked by the loader at each tile and each row: a pause stops the computation within one tile
+    final PauseToken pauseToken = new PauseToken();
+
+    // Statistics
+    final AtomicLong tilesComputed = new AtomicLong();
+    final AtomicInteger tilesPending = new AtomicInteger();
+    final AtomicLong dependencyLookups = new AtomicLong();
+    final AtomicLong dependencyHits = new AtomicLong();
+
+    // Bytes of the loaded tiles still in memory: added by the loader, removed once the garbage
+    // collector reclaims a tile evicted from the cache
+    final AtomicLong cachedBytes = new AtomicLong();
+    final ReferenceQueue<VolatileShortArray> reclaimedTiles = new ReferenceQueue<>();
+    // Keeps the references themselves reachable until they are enqueued
+    final Set<TileReference> tileReferences = ConcurrentHashMap.newKeySet();
+
+    static class TileReference extends WeakReference<VolatileShortArray> {
+        final long bytes;
+
+        TileReference(VolatileShortArray data, ReferenceQueue<VolatileShortArray> queue) {
+            super(data, queue);
+            this.bytes = 2L * data.getCurrentStorageArray().length;
+        }
+    }
+
     public GameOfLifeSourcev2(String name, RandomAccessibleInterval<UnsignedShortType> seed, int maxStep) {
+        this(name, seed, maxStep, null);
+    }
+
+    /**
+     * @param diskCacheDirectory if not null, computed tiles are also stored in this directory and
+     *                           read back from it after eviction or in a later session with the same seed
+     */
+    public GameOfLifeSourcev2(String name, RandomAccessibleInterval<UnsignedShortType> seed, int maxStep, File diskCacheDirectory) {
         this.name = name;
-        this.seed = seed;
         this.maxStep = maxStep;
+        this.nTilesX = (int) ((seed.dimension(0) + tileSize() - 1) / tileSize());
+        this.nTilesY = (int) ((seed.dimension(1) + tileSize() - 1) / tileSize());
+        this.occupancy = new byte[nTilesX*nTilesY*maxStep];
+        if (diskCacheDirectory == null) {
+            this.seed = seed;
+            this.diskCache = null;
+        } else {
+            this.seed = GameOfLifeDiskCache.materialize(seed);
+            this.diskCache = new GameOfLifeDiskCache(diskCacheDirectory, GameOfLifeDiskCache.hash(this.seed),
+                    new long[]{seed.dimension(0), seed.dimension(1), maxStep}, new int[]{tileSize(), tileSize(), 1});
+        }
         this.img = buildSource();
+        this.nResolutionLevels = GameOfLifePyramid.numResolutionLevels(seed.dimension(0), seed.dimension(1), tileSize());
+        this.levels = new RandomAccessibleInterval[nResolutionLevels];
+        levels[0] = img;
+        for (int level = 1; level < nResolutionLevels; level++) {
+            levels[level] = GameOfLifePyramid.downsample(this, 0, level, levels[level - 1], tileSize());
+        }
     }
 
     @Override
@@ -59,7 +139,7 @@ public class GameOfLifeSourcev2 implements Source<UnsignedShortType> {
         return (t==0);
     }
 
-    private static int tileSize() {
+    static int tileSize() {
         return 128;
     }
 
@@ -76,7 +156,7 @@ public class GameOfLifeSourcev2 implements Source<UnsignedShortType> {
         newDimensions[2] = maxStep;
         CellGrid grid = new CellGrid(newDimensions, cellDimensions);
 
-        LoadedCellCacheLoader<UnsignedShortType, ?> loader = LoadedCellCacheLoader.get(grid, cell -> {
+        LoadedCellCacheLoader<UnsignedShortType, VolatileShortArray> tileLoader = LoadedCellCacheLoader.get(grid, cell -> {
             long targetZLocation = ((Interval)cell).min(2);
 
             Cursor<UnsignedShortType> target = Views.flatIterable(cell).cursor();
@@ -99,6 +179,8 @@ public class GameOfLifeSourcev2 implements Source<UnsignedShortType> {
                 long yp = target.getLongPosition(1);
                 long zp = target.getLongPosition(2);
 
+                if (xp == cell.min(0)) pauseToken.awaitResume();
+
                 ra.setPosition(new long[]{xp,yp,zp-1});
                 int v11 = ra.get().get();
                 int val = 0;
@@ -128,15 +210,165 @@ public class GameOfLifeSourcev2 implements Source<UnsignedShortType> {
             }
 
         }, new UnsignedShortType(), AccessFlags.setOf(AccessFlags.VOLATILE));
-        Cache<Long, Cell<UnsignedShortType>> cache = (new GlobalLoaderCache(this, 0, 0)).withLoader(loader);
+
+        CacheLoader<Long, Cell<VolatileShortArray>> loader = key -> {
+            tilesPending.incrementAndGet();
+            try {
+                pauseToken.awaitResume();
+                return loadCell(key, grid, tileLoader);
+            } finally {
+                tilesPending.decrementAndGet();
+            }
+        };
+        Cache<Long, Cell<VolatileShortArray>> cache = (new GlobalLoaderCache(this, 0, 0)).withLoader(loader);
         return new CachedCellImg(grid, getType(), cache, ArrayDataAccessFactory.get(getType(), AccessFlags.setOf(AccessFlags.VOLATILE)));
     }
 
+    private Cell<VolatileShortArray> loadCell(long key, CellGrid grid, CacheLoader<Long, Cell<VolatileShortArray>> tileLoader) throws Exception {
+        int index = (int) key;
+        long[] cellGridPosition = new long[3];
+        grid.getCellGridPositionFlat(key, cellGridPosition);
+        long[] cellMin = new long[3];
+        int[] cellDims = new int[3];
+        grid.getCellDimensions(key, cellMin, cellDims);
+        if (cellGridPosition[2] > 0) {
+            countDependencyHits(cellGridPosition);
+            if (previousTilesEmpty(cellGridPosition)) {
+                occupancy[index] = EMPTY;
+                return new Cell<>(cellDims, cellMin, deadTile);
+            }
+        }
+        if (diskCache != null) {
+            short[] data = diskCache.read(cellGridPosition);
+            if (data != null) {
+                occupancy[index] = isEmpty(data) ? EMPTY : OCCUPIED;
+                VolatileShortArray array = new VolatileShortArray(data, true);
+                track(array);
+                return new Cell<>(cellDims, cellMin, array);
+            }
+        }
+        Cell<VolatileShortArray> cell = tileLoader.get(key);
+        tilesComputed.incrementAndGet();
+        short[] data = cell.getData().getCurrentStorageArray();
+        occupancy[index] = isEmpty(data) ? EMPTY : OCCUPIED;
+        if (diskCache != null) diskCache.write(cellGridPosition, cellDims, data);
+        track(cell.getData());
+        return cell;
+    }
+
+    private void track(VolatileShortArray data) {
+        TileReference reference = new TileReference(data, reclaimedTiles);
+        tileReferences.add(reference);
+        cachedBytes.addAndGet(reference.bytes);
+        removeReclaimedTiles();
+    }
+
+    private void removeReclaimedTiles() {
+        Reference<? extends VolatileShortArray> reference;
+        while ((reference = reclaimedTiles.poll()) != null) {
+            if (tileReferences.remove(reference)) cachedBytes.addAndGet(-((TileReference) reference).bytes);
+        }
+    }
+
+    /**
+     * A tile needs the 3x3 tiles around it at the previous generation: each one which is
+     * not in the cache anymore has to be loaded again, possibly down a chain of generations
+     */
+    private void countDependencyHits(long[] cellGridPosition) {
+        long z = cellGridPosition[2] - 1;
+        for (long ty = Math.max(0, cellGridPosition[1] - 1); ty <= Math.min(nTilesY - 1, cellGridPosition[1] + 1); ty++) {
+            for (long tx = Math.max(0, cellGridPosition[0] - 1); tx <= Math.min(nTilesX - 1, cellGridPosition[0] + 1); tx++) {
+                dependencyLookups.incrementAndGet();
+                if (getSource().getCache().getIfPresent((z * nTilesY + ty) * nTilesX + tx) != null) {
+                    dependencyHits.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public PauseToken getPauseToken() {
+        return pauseToken;
+    }
+
+    /**
+     * @return the number of tiles computed by the kernel, excluding dead tiles and tiles read from disk
+     */
+    public long getTilesComputed() {
+        return tilesComputed.get();
+    }
+
+    /**
+     * @return the number of tiles being loaded, including the ones waiting for their dependencies
+     */
+    public int getTilesPending() {
+        return tilesPending.get();
+    }
+
+    /**
+     * @return the fraction of dependency tiles found in the cache when loading a tile
+     */
+    public double getCacheHitRatio() {
+        long lookups = dependencyLookups.get();
+        return lookups == 0 ? 1 : (double) dependencyHits.get() / lookups;
+    }
+
+    /**
+     * @return the size of the loaded tiles still in memory. Dead tiles share the same array and are
+     * not counted, evicted tiles are counted until the garbage collector reclaims them
+     */
+    public long getCachedBytes() {
+        removeReclaimedTiles();
+        return cachedBytes.get();
+    }
+
+    /**
+     * Returns true if the 3x3 tiles around this tile are all dead at the previous generation.
+     * Tiles of unknown occupancy are loaded: they are needed anyway to compute this tile.
+     */
+    private boolean previousTilesEmpty(long[] cellGridPosition) {
+        long z = cellGridPosition[2] - 1;
+        for (long ty = cellGridPosition[1] - 1; ty <= cellGridPosition[1] + 1; ty++) {
+            if ((ty < 0) || (ty >= nTilesY)) continue; // Borders are clamped, they repeat the tiles inside
+            for (long tx = cellGridPosition[0] - 1; tx <= cellGridPosition[0] + 1; tx++) {
+                if ((tx < 0) || (tx >= nTilesX)) continue;
+                int index = (int) ((z * nTilesY + ty) * nTilesX + tx);
+                if (occupancy[index] == UNKNOWN) {
+                    loadTile(tx, ty, z); // Records its occupancy
+                }
+                if (occupancy[index] != EMPTY) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Loads the tile at this cell grid position, blocking until it is computed
+     */
+    void loadTile(long tx, long ty, long z) {
+        RandomAccess<?> ra = getSource().randomAccess();
+        ra.setPosition(new long[]{tx * tileSize(), ty * tileSize(), z});
+        ra.get();
+    }
+
+    /**
+     * Returns true if this tile has been computed at least once. It may have been evicted since,
+     * in which case it is computed again when requested.
+     */
+    boolean isTileKnown(long tx, long ty, long z) {
+        return occupancy[(int) ((z * nTilesY + ty) * nTilesX + tx)] != UNKNOWN;
+    }
+
+    private static boolean isEmpty(short[] tile) {
+        for (short v : tile) {
+            if (v != 0) return false;
+        }
+        return true;
+    }
+
     @Override
     public synchronized RandomAccessibleInterval<UnsignedShortType> getSource(int t, int level) {
         if (t!=0) throw new RuntimeException("Game of life source has only one time point");
-        if (level>0) throw new RuntimeException("Game of life source is not multiresolution");
-        return img;
+        return levels[level];
     }
 
     @Override
@@ -146,7 +378,7 @@ public class GameOfLifeSourcev2 implements Source<UnsignedShortType> {
 
     @Override
     public void getSourceTransform(int t, int level, AffineTransform3D transform) {
-        transform.identity();
+        GameOfLifePyramid.getSourceTransform(level, transform);
     }
 
     @Override
@@ -170,8 +402,12 @@ public class GameOfLifeSourcev2 implements Source<UnsignedShortType> {
     }
 
     public static SourceAndConverter<UnsignedShortType> getSourceAndConverter(SharedQueue queue, RandomAccessibleInterval<UnsignedShortType> rai, int maxSteps) {
+        return getSourceAndConverter(queue, rai, maxSteps, null);
+    }
+
+    public static SourceAndConverter<UnsignedShortType> getSourceAndConverter(SharedQueue queue, RandomAccessibleInterval<UnsignedShortType> rai, int maxSteps, File diskCacheDirectory) {
 
-        Source<UnsignedShortType> gameOfLife = new GameOfLifeSourcev2("Game of life", rai, maxSteps);
+        Source<UnsignedShortType> gameOfLife = new GameOfLifeSourcev2("Game of life", rai, maxSteps, diskCacheDirectory);
         SourceAndConverter<UnsignedShortType> sac_out;
 
         SourceAndConverter<?> vsac; Source<?> vsrcRsampled;
@@ -0,0 +1,321 @@
+package ch.epfl.biop.demos.utils;
+
+import bdv.BigDataViewer;
+import bdv.cache.SharedQueue;
+import bdv.util.DefaultInterpolators;
+import bdv.util.WrapVolatileSource;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.cache.ref.SoftRefLoaderCache;
+import net.imglib2.converter.Converter;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import sc.fiji.bdvpg.cache.GlobalLoaderCache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Game Of Life Source, same layout and output as {@link GameOfLifeSourcev2}
+ * (generations along z, alive = 16, dead = 0, clamped borders).
+ * <p>
+ * The board is stored as bit-packed tiles: one bit per pixel, 64 pixels per long word.
+ * A tile of the next generation is computed at once with word-level (SWAR) neighbor
+ * counting, and the previous generation is read only once per tile: no RandomAccess,
+ * no per-pixel allocation. The displayed {@link UnsignedShortType} cells are expanded
+ * from the packed tiles.
+ */
+public class GameOfLifeSourcev3 implements Source<UnsignedShortType> {
+
+    protected final DefaultInterpolators< UnsignedShortType > interpolators = new DefaultInterpolators<>();
+
+    final String name;
+
+    final int nResolutionLevels;
+
+    final RandomAccessibleInterval<UnsignedShortType> seed;
+
+    final CachedCellImg img;
+
+    // Level 0 is img, the levels above are density-downsampled in xy
+    final RandomAccessibleInterval<UnsignedShortType>[] levels;
+
+    final int maxStep;
+
+    final int width, height;
+
+    final int nTilesX, nTilesY;
+
+    // Bit-packed tiles, keyed by the same linear index as the cells of img
+    final Cache<Long, long[]> packedTiles;
+
+    // Packed tiles of generation 0, kept for the lifetime of the source: the seed may be
+    // random, it is read only once and the displayed generation 0 is expanded from these tiles
+    final Map<Long, long[]> seedTiles = new ConcurrentHashMap<>();
+
+    // Scratch buffer holding the previous generation rows of a tile, with a one pixel halo
+    final ThreadLocal<long[]> paddedRows = ThreadLocal.withInitial(() -> new long[(tileSize()+2)*paddedWordsPerRow()]);
+
+    public GameOfLifeSourcev3(String name, RandomAccessibleInterval<UnsignedShortType> seed, int maxStep) {
+        this.name = name;
+        this.seed = seed;
+        this.maxStep = maxStep;
+        this.width = (int) seed.dimension(0);
+        this.height = (int) seed.dimension(1);
+        this.nTilesX = (width + tileSize() - 1) / tileSize();
+        this.nTilesY = (height + tileSize() - 1) / tileSize();
+        this.packedTiles = new SoftRefLoaderCache<Long, long[]>().withLoader(this::computePackedTile);
+        this.img = buildSource();
+        this.nResolutionLevels = GameOfLifePyramid.numResolutionLevels(seed.dimension(0), seed.dimension(1), tileSize());
+        this.levels = new RandomAccessibleInterval[nResolutionLevels];
+        levels[0] = img;
+        for (int level = 1; level < nResolutionLevels; level++) {
+            levels[level] = GameOfLifePyramid.downsample(this, 0, level, levels[level - 1], tileSize());
+        }
+    }
+
+    @Override
+    public boolean isPresent(int t) {
+        return (t==0);
+    }
+
+    private static int tileSize() {
+        return 128;
+    }
+
+    private static int wordsPerRow() {
+        return (tileSize() + 63) / 64;
+    }
+
+    // One more word to fit the west and east halo bits
+    private static int paddedWordsPerRow() {
+        return wordsPerRow() + 1;
+    }
+
+    private long tileKey(int tx, int ty, long z) {
+        return (z * nTilesY + ty) * nTilesX + tx;
+    }
+
+    private static long bit(long[] tile, int ly, int lx) {
+        return (tile[ly * wordsPerRow() + (lx >>> 6)] >>> (lx & 63)) & 1L;
+    }
+
+    private static int clamp(int v, int size) {
+        return Math.max(0, Math.min(size - 1, v));
+    }
+
+    private long[] packSeed(int x0, int y0, int w, int h) {
+        final int wpr = wordsPerRow();
+        long[] tile = new long[h * wpr];
+        Cursor<UnsignedShortType> source = Views.flatIterable(Views.interval(seed,
+                new FinalInterval(new long[]{x0, y0, 0}, new long[]{x0 + w - 1, y0 + h - 1, 0}))).cursor();
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                if (source.next().get() == 16) tile[y * wpr + (x >>> 6)] |= 1L << (x & 63);
+            }
+        }
+        return tile;
+    }
+
+    private long[] computePackedTile(Long key) throws ExecutionException {
+        final int tSize = tileSize();
+        final int wpr = wordsPerRow();
+        final int pwr = paddedWordsPerRow();
+
+        int tx = (int) (key % nTilesX);
+        int ty = (int) ((key / nTilesX) % nTilesY);
+        long z = key / ((long) nTilesX * nTilesY);
+
+        int x0 = tx * tSize;
+        int y0 = ty * tSize;
+        int w = Math.min(tSize, width - x0);
+        int h = Math.min(tSize, height - y0);
+
+        if (z == 0) {
+            return seedTiles.computeIfAbsent(key, k -> packSeed(x0, y0, w, h));
+        }
+
+        long[] tile = new long[h * wpr];
+
+        int gxWest = clamp(x0 - 1, width);
+        int gxEast = clamp(x0 + w, width);
+        int txWest = gxWest / tSize;
+        int txEast = gxEast / tSize;
+        int tyMin = clamp(y0 - 1, height) / tSize;
+        int tyMax = clamp(y0 + h, height) / tSize;
+
+        // Fetches the west, center and east tiles of the previous generation first:
+        // computing them can recurse on this thread, which reuses the scratch buffer
+        long[][] previous = new long[3 * (tyMax - tyMin + 1)][];
+        for (int sty = tyMin; sty <= tyMax; sty++) {
+            previous[3 * (sty - tyMin)] = packedTiles.get(tileKey(txWest, sty, z - 1));
+            previous[3 * (sty - tyMin) + 1] = packedTiles.get(tileKey(tx, sty, z - 1));
+            previous[3 * (sty - tyMin) + 2] = packedTiles.get(tileKey(txEast, sty, z - 1));
+        }
+
+        // Gathers the rows y0-1 to y0+h of the previous generation, shifted by one bit,
+        // with the pixels x0-1 and x0+w as west and east halo bits. Borders are clamped,
+        // like Views.expandBorder in GameOfLifeSourcev2
+        long[] padded = paddedRows.get();
+        for (int r = 0; r < h + 2; r++) {
+            int gy = clamp(y0 + r - 1, height);
+            int sty = gy / tSize;
+            int ly = gy - sty * tSize;
+            long[] west = previous[3 * (sty - tyMin)];
+            long[] center = previous[3 * (sty - tyMin) + 1];
+            long[] east = previous[3 * (sty - tyMin) + 2];
+            int o = r * pwr;
+            int m = ly * wpr;
+            padded[o] = (center[m] << 1) | bit(west, ly, gxWest - txWest * tSize);
+            for (int j = 1; j < wpr; j++) {
+                padded[o + j] = (center[m + j] << 1) | (center[m + j - 1] >>> 63);
+            }
+            padded[o + wpr] = center[m + wpr - 1] >>> 63;
+            padded[o + ((w + 1) >>> 6)] |= bit(east, ly, gxEast - txEast * tSize) << ((w + 1) & 63);
+        }
+
+        for (int y = 0; y < h; y++) {
+            int above = y * pwr;
+            int row = above + pwr;
+            int below = row + pwr;
+            for (int j = 0; j < wpr; j++) {
+                // West, center and east neighbors of the 64 pixels of word j
+                long aW = padded[above + j];
+                long aC = (padded[above + j] >>> 1) | (padded[above + j + 1] << 63);
+                long aE = (padded[above + j] >>> 2) | (padded[above + j + 1] << 62);
+                long bW = padded[row + j];
+                long bC = (padded[row + j] >>> 1) | (padded[row + j + 1] << 63);
+                long bE = (padded[row + j] >>> 2) | (padded[row + j + 1] << 62);
+                long cW = padded[below + j];
+                long cC = (padded[below + j] >>> 1) | (padded[below + j + 1] << 63);
+                long cE = (padded[below + j] >>> 2) | (padded[below + j + 1] << 62);
+
+                // Two bits counts per row
+                long a0 = aW ^ aC ^ aE, a1 = (aW & aC) | (aE & (aW ^ aC));
+                long b0 = bW ^ bE, b1 = bW & bE;
+                long c0 = cW ^ cC ^ cE, c1 = (cW & cC) | (cE & (cW ^ cC));
+
+                // Sum of the three rows: 2 or 3 neighbors <=> exactly one bit of weight 2
+                long s0 = a0 ^ b0 ^ c0;
+                long k0 = (a0 & b0) | (c0 & (a0 ^ b0));
+                long odd = a1 ^ b1 ^ c1 ^ k0;
+                long atLeastTwo = (a1 & b1) | (a1 & c1) | (a1 & k0) | (b1 & c1) | (b1 & k0) | (c1 & k0);
+
+                // Born with 3 neighbors, survives with 2 or 3
+                long next = odd & ~atLeastTwo & (s0 | bC);
+
+                int lo = j * 64;
+                long mask = (w >= lo + 64) ? -1L : ((w <= lo) ? 0L : (1L << (w - lo)) - 1);
+                tile[y * wpr + j] = next & mask;
+            }
+        }
+        return tile;
+    }
+
+    private CachedCellImg buildSource() {
+        int tileSizeLevel = tileSize();
+        final int[] cellDimensions = new int[]{ tileSizeLevel, tileSizeLevel, 1 };
+        long[] newDimensions = new long[3];
+        newDimensions[0] = width;
+        newDimensions[1] = height;
+        newDimensions[2] = maxStep;
+        CellGrid grid = new CellGrid(newDimensions, cellDimensions);
+
+        LoadedCellCacheLoader<UnsignedShortType, ?> loader = LoadedCellCacheLoader.get(grid, cell -> {
+            long targetZLocation = ((Interval)cell).min(2);
+
+            Cursor<UnsignedShortType> target = Views.flatIterable(cell).cursor();
+
+            int tx = (int) (((Interval)cell).min(0) / tileSizeLevel);
+            int ty = (int) (((Interval)cell).min(1) / tileSizeLevel);
+            int w = (int) ((Interval)cell).dimension(0);
+            int h = (int) ((Interval)cell).dimension(1);
+
+            long[] tile = packedTiles.get(tileKey(tx, ty, targetZLocation));
+
+            // Expands the bits, generation 0 included: it is the board generation 1 is computed from
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    target.next().set(bit(tile, y, x) == 0 ? 0 : 16);
+                }
+            }
+
+        }, new UnsignedShortType(), AccessFlags.setOf(AccessFlags.VOLATILE));
+        Cache<Long, Cell<UnsignedShortType>> cache = (new GlobalLoaderCache(this, 0, 0)).withLoader(loader);
+        return new CachedCellImg(grid, getType(), cache, ArrayDataAccessFactory.get(getType(), AccessFlags.setOf(AccessFlags.VOLATILE)));
+    }
+
+    @Override
+    public synchronized RandomAccessibleInterval<UnsignedShortType> getSource(int t, int level) {
+        if (t!=0) throw new RuntimeException("Game of life source has only one time point");
+        return levels[level];
+    }
+
+    @Override
+    public RealRandomAccessible<UnsignedShortType> getInterpolatedSource(int t, int level, Interpolation method) {
+        return Views.interpolate( Views.extendZero(getSource( t, level )), interpolators.get(method) );
+    }
+
+    @Override
+    public void getSourceTransform(int t, int level, AffineTransform3D transform) {
+        GameOfLifePyramid.getSourceTransform(level, transform);
+    }
+
+    @Override
+    public UnsignedShortType getType() {
+        return new UnsignedShortType();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions() {
+        return new FinalVoxelDimensions("pixel", 1,1,1);
+    }
+
+    @Override
+    public int getNumMipmapLevels() {
+        return nResolutionLevels;
+    }
+
+    public static SourceAndConverter<UnsignedShortType> getSourceAndConverter(SharedQueue queue, RandomAccessibleInterval<UnsignedShortType> rai, int maxSteps) {
+
+        Source<UnsignedShortType> gameOfLife = new GameOfLifeSourcev3("Game of life", rai, maxSteps);
+        SourceAndConverter<UnsignedShortType> sac_out;
+
+        SourceAndConverter<?> vsac; Source<?> vsrcRsampled;
+
+        vsrcRsampled = new WrapVolatileSource<>(gameOfLife, queue);
+        Converter< ?, ARGBType> volatileConverter = BigDataViewer.createConverterToARGB((NumericType) vsrcRsampled.getType());
+        Converter< ?, ARGBType> converter = BigDataViewer.createConverterToARGB(new UnsignedByteType());
+
+        vsac = new SourceAndConverter(vsrcRsampled,volatileConverter);
+        sac_out = new SourceAndConverter(gameOfLife, converter,vsac);
+
+        return sac_out;
+    }
+
+}
@@ -0,0 +1,384 @@
+package ch.epfl.biop.demos.utils;
+
+import bdv.BigDataViewer;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.Volatile;
+import net.imglib2.converter.Converter;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.volatiles.VolatileARGBType;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Many affine transformed instances of the same source, displayed as a single ARGB source
+ * <p>
+ * Each instance has its own transform, color and display range, as a SourceAffineTransformer
+ * with a color converter would. Instead of one BDV source per instance, each rendered pixel is
+ * mapped back to the instances covering it: candidates are looked up in a uniform grid over the
+ * bounding boxes of the instances, then the pixel is transformed to each candidate's base source
+ * coordinates and sampled there. The colors of overlapping instances are summed, like BDV sums
+ * overlapping sources. The cost of a frame then depends on the number of pixels and on the
+ * overlap of the instances, not on their total number.
+ * <p>
+ * Resolution levels: level l of this source has a virtual pixel size of 2^l times the median
+ * pixel size of the instances (the base downsampling factors are used if they are not powers of
+ * two). Each instance is sampled at the coarsest base level whose pixels are not larger than this
+ * virtual pixel size.
+ */
+public class InstancedSource<O extends Type<O>> implements Source<O> {
+
+    public static class Instance {
+        final AffineTransform3D transform;
+        final int color;
+        final double min, max;
+
+        /**
+         * @param transform applied to the base source, as in SourceAffineTransformer
+         * @param color ARGB color of the maximal value
+         * @param min value displayed black
+         * @param max value displayed with the full color
+         */
+        public Instance(AffineTransform3D transform, int color, double min, double max) {
+            this.transform = transform.copy();
+            this.color = color;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    final String name;
+
+    final Source<?> base;
+
+    final Supplier<O> typeSupplier;
+
+    final Instance[] instances;
+
+    final int nLevels;
+
+    // Global to base source coordinates, per level then per instance: globalToBase[l][i]
+    final AffineTransform3D[][] globalToBase;
+
+    // Base level of each instance at each level: baseLevel[l][i]
+    final int[][] baseLevel;
+
+    // Base level dimensions, per base level
+    final long[][] baseDimensions;
+
+    // Global bounding box of all instances
+    final double[] min = new double[3], max = new double[3];
+
+    // Virtual pixel size of each level
+    final double[] pixelSize;
+
+    // Uniform grid over x and y: instances of cell c are cellInstances[cellStart[c] .. cellStart[c+1]-1]
+    final int gridX, gridY;
+    final double cellSizeX, cellSizeY;
+    final int[] cellStart, cellInstances;
+
+    // Per instance bounding box: bounds[6*i .. 6*i+5] = minX, minY, minZ, maxX, maxY, maxZ
+    final double[] bounds;
+
+    public InstancedSource(String name, Source<?> base, List<Instance> instances, Supplier<O> typeSupplier) {
+        this.name = name;
+        this.base = base;
+        this.typeSupplier = typeSupplier;
+        this.instances = instances.toArray(new Instance[0]);
+        this.nLevels = base.getNumMipmapLevels();
+        int n = this.instances.length;
+
+        AffineTransform3D[] baseTransforms = new AffineTransform3D[nLevels];
+        baseDimensions = new long[nLevels][];
+        for (int level = 0; level < nLevels; level++) {
+            baseTransforms[level] = new AffineTransform3D();
+            base.getSourceTransform(0, level, baseTransforms[level]);
+            RandomAccessibleInterval<?> rai = base.getSource(0, level);
+            baseDimensions[level] = new long[3];
+            for (int d = 0; d < Math.min(3, rai.numDimensions()); d++) baseDimensions[level][d] = rai.dimension(d);
+            for (int d = rai.numDimensions(); d < 3; d++) baseDimensions[level][d] = 1;
+        }
+
+        // Pixel sizes: instance i at base level k has a pixel size of instanceScale[i] * basePixelSize[k]
+        double[] basePixelSize = new double[nLevels];
+        for (int level = 0; level < nLevels; level++) basePixelSize[level] = pixelSize(baseTransforms[level]);
+        double[] instanceScale = new double[n];
+        for (int i = 0; i < n; i++) {
+            AffineTransform3D instanceLevel0 = baseTransforms[0].copy();
+            instanceLevel0.preConcatenate(this.instances[i].transform);
+            instanceScale[i] = pixelSize(instanceLevel0) / basePixelSize[0];
+        }
+        double[] sortedScales = instanceScale.clone();
+        Arrays.sort(sortedScales);
+        double medianPixelSize = n == 0 ? basePixelSize[0] : sortedScales[n / 2] * basePixelSize[0];
+
+        pixelSize = new double[nLevels];
+        baseLevel = new int[nLevels][n];
+        globalToBase = new AffineTransform3D[nLevels][n];
+        AffineTransform3D[][] inverses = new AffineTransform3D[nLevels][n];
+        for (int level = 0; level < nLevels; level++) {
+            pixelSize[level] = medianPixelSize * basePixelSize[level] / basePixelSize[0];
+            for (int i = 0; i < n; i++) {
+                int k = 0;
+                while ((k + 1 < nLevels) && (instanceScale[i] * basePixelSize[k + 1] <= pixelSize[level] * 1.001)) k++;
+                baseLevel[level][i] = k;
+                if (inverses[k][i] == null) {
+                    AffineTransform3D instanceToGlobal = baseTransforms[k].copy();
+                    instanceToGlobal.preConcatenate(this.instances[i].transform);
+                    inverses[k][i] = instanceToGlobal.inverse();
+                }
+                globalToBase[level][i] = inverses[k][i];
+            }
+        }
+
+        // Bounding boxes, from the corners of the level 0 base interval
+        bounds = new double[6 * n];
+        Arrays.fill(min, Double.MAX_VALUE);
+        Arrays.fill(max, -Double.MAX_VALUE);
+        double[] corner = new double[3], global = new double[3];
+        for (int i = 0; i < n; i++) {
+            AffineTransform3D instanceToGlobal = baseTransforms[0].copy();
+            instanceToGlobal.preConcatenate(this.instances[i].transform);
+            for (int d = 0; d < 3; d++) {
+                bounds[6 * i + d] = Double.MAX_VALUE;
+                bounds[6 * i + 3 + d] = -Double.MAX_VALUE;
+            }
+            for (int c = 0; c < 8; c++) {
+                for (int d = 0; d < 3; d++) {
+                    corner[d] = ((c >> d) & 1) == 0 ? -0.5 : baseDimensions[0][d] - 0.5;
+                }
+                instanceToGlobal.apply(corner, global);
+                for (int d = 0; d < 3; d++) {
+                    bounds[6 * i + d] = Math.min(bounds[6 * i + d], global[d]);
+                    bounds[6 * i + 3 + d] = Math.max(bounds[6 * i + 3 + d], global[d]);
+                    min[d] = Math.min(min[d], global[d]);
+                    max[d] = Math.max(max[d], global[d]);
+                }
+            }
+        }
+
+        // About a few instances per cell, at most 512 x 512 cells
+        int side = Math.max(1, Math.min(512, (int) Math.ceil(Math.sqrt(n))));
+        gridX = side;
+        gridY = side;
+        cellSizeX = Math.max((max[0] - min[0]) / gridX, Double.MIN_NORMAL);
+        cellSizeY = Math.max((max[1] - min[1]) / gridY, Double.MIN_NORMAL);
+        int[] counts = new int[gridX * gridY + 1];
+        int[] indices = null;
+        for (int pass = 0; pass < 2; pass++) {
+            int[] fill = pass == 0 ? null : new int[gridX * gridY];
+            for (int i = 0; i < n; i++) {
+                int x0 = cellX(bounds[6 * i]), x1 = cellX(bounds[6 * i + 3]);
+                int y0 = cellY(bounds[6 * i + 1]), y1 = cellY(bounds[6 * i + 4]);
+                for (int y = y0; y <= y1; y++) {
+                    for (int x = x0; x <= x1; x++) {
+                        int cell = x + gridX * y;
+                        if (pass == 0) {
+                            counts[cell + 1]++;
+                        } else {
+                            indices[counts[cell] + fill[cell]++] = i;
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int c = 0; c < gridX * gridY; c++) counts[c + 1] += counts[c];
+                indices = new int[counts[gridX * gridY]];
+            }
+        }
+        cellStart = counts;
+        cellInstances = indices;
+    }
+
+    private int cellX(double x) {
+        return Math.max(0, Math.min(gridX - 1, (int) Math.floor((x - min[0]) / cellSizeX)));
+    }
+
+    private int cellY(double y) {
+        return Math.max(0, Math.min(gridY - 1, (int) Math.floor((y - min[1]) / cellSizeY)));
+    }
+
+    private static double pixelSize(AffineTransform3D transform) {
+        // Mean length of the x and y pixel axes
+        double sx = Math.sqrt(transform.get(0, 0) * transform.get(0, 0) + transform.get(1, 0) * transform.get(1, 0) + transform.get(2, 0) * transform.get(2, 0));
+        double sy = Math.sqrt(transform.get(0, 1) * transform.get(0, 1) + transform.get(1, 1) * transform.get(1, 1) + transform.get(2, 1) * transform.get(2, 1));
+        return (sx + sy) / 2.0;
+    }
+
+    public int getNumInstances() {
+        return instances.length;
+    }
+
+    @Override
+    public boolean isPresent(int t) {
+        return base.isPresent(t);
+    }
+
+    @Override
+    public RandomAccessibleInterval<O> getSource(int t, int level) {
+        long[] dimensions = new long[3];
+        for (int d = 0; d < 3; d++) {
+            dimensions[d] = Math.max(1, (long) Math.ceil((max[d] - min[d]) / pixelSize[level]));
+        }
+        return Views.interval(Views.raster(getInterpolatedSource(t, level, Interpolation.NEARESTNEIGHBOR)), new FinalInterval(dimensions));
+    }
+
+    @Override
+    public RealRandomAccessible<O> getInterpolatedSource(int t, int level, Interpolation method) {
+        AffineTransform3D levelToGlobal = new AffineTransform3D();
+        getSourceTransform(t, level, levelToGlobal);
+        RealRandomAccessible<?>[] baseSources = new RealRandomAccessible[nLevels];
+        for (int k = 0; k < nLevels; k++) {
+            baseSources[k] = base.getInterpolatedSource(t, k, method);
+        }
+        return new RealRandomAccessible<O>() {
+            @Override
+            public RealRandomAccess<O> realRandomAccess() {
+                return new InstancedAccess(level, levelToGlobal, baseSources);
+            }
+
+            @Override
+            public RealRandomAccess<O> realRandomAccess(RealInterval interval) {
+                return realRandomAccess();
+            }
+
+            @Override
+            public int numDimensions() {
+                return 3;
+            }
+        };
+    }
+
+    @Override
+    public void getSourceTransform(int t, int level, AffineTransform3D transform) {
+        transform.identity();
+        transform.scale(pixelSize[level]);
+        transform.translate(min[0] + pixelSize[level] / 2.0, min[1] + pixelSize[level] / 2.0, min[2] + pixelSize[level] / 2.0);
+    }
+
+    @Override
+    public O getType() {
+        return typeSupplier.get();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions() {
+        return base.getVoxelDimensions() == null ? new FinalVoxelDimensions("pixel", 1, 1, 1) : base.getVoxelDimensions();
+    }
+
+    @Override
+    public int getNumMipmapLevels() {
+        return nLevels;
+    }
+
+    class InstancedAccess extends RealPoint implements RealRandomAccess<O> {
+
+        final int level;
+        final AffineTransform3D levelToGlobal;
+        final RealRandomAccessible<?>[] baseSources;
+        final RealRandomAccess<?>[] baseAccesses;
+        final O value = typeSupplier.get();
+        final double[] levelPosition = new double[3], global = new double[3], local = new double[3];
+
+        InstancedAccess(int level, AffineTransform3D levelToGlobal, RealRandomAccessible<?>[] baseSources) {
+            super(3);
+            this.level = level;
+            this.levelToGlobal = levelToGlobal;
+            this.baseSources = baseSources;
+            this.baseAccesses = new RealRandomAccess[baseSources.length];
+        }
+
+        @Override
+        public O get() {
+            localize(levelPosition);
+            levelToGlobal.apply(levelPosition, global);
+            int r = 0, g = 0, b = 0;
+            boolean valid = true;
+            if ((global[0] >= min[0]) && (global[0] <= max[0]) && (global[1] >= min[1]) && (global[1] <= max[1])) {
+                int cell = cellX(global[0]) + gridX * cellY(global[1]);
+                for (int c = cellStart[cell]; c < cellStart[cell + 1]; c++) {
+                    int i = cellInstances[c];
+                    int o = 6 * i;
+                    if ((global[0] < bounds[o]) || (global[0] > bounds[o + 3]) || (global[1] < bounds[o + 1]) ||
+                            (global[1] > bounds[o + 4]) || (global[2] < bounds[o + 2]) || (global[2] > bounds[o + 5])) continue;
+                    int k = baseLevel[level][i];
+                    globalToBase[level][i].apply(global, local);
+                    long[] dims = baseDimensions[k];
+                    if ((local[0] < -0.5) || (local[1] < -0.5) || (local[2] < -0.5) ||
+                            (local[0] > dims[0] - 0.5) || (local[1] > dims[1] - 0.5) || (local[2] > dims[2] - 0.5)) continue;
+                    if (baseAccesses[k] == null) baseAccesses[k] = baseSources[k].realRandomAccess();
+                    RealRandomAccess<?> access = baseAccesses[k];
+                    access.setPosition(local);
+                    Object sample = access.get();
+                    double v;
+                    if (sample instanceof Volatile) {
+                        Volatile<?> volatileSample = (Volatile<?>) sample;
+                        if (!volatileSample.isValid()) {
+                            valid = false;
+                            continue;
+                        }
+                        v = ((RealType<?>) volatileSample.get()).getRealDouble();
+                    } else {
+                        v = ((RealType<?>) sample).getRealDouble();
+                    }
+                    Instance instance = instances[i];
+                    double scale = Math.max(0, Math.min(1, (v - instance.min) / (instance.max - instance.min)));
+                    r += (int) (ARGBType.red(instance.color) * scale);
+                    g += (int) (ARGBType.green(instance.color) * scale);
+                    b += (int) (ARGBType.blue(instance.color) * scale);
+                }
+            }
+            int argb = ARGBType.rgba(Math.min(255, r), Math.min(255, g), Math.min(255, b), 255);
+            if (value instanceof VolatileARGBType) {
+                ((VolatileARGBType) value).set(argb);
+                ((VolatileARGBType) value).setValid(valid);
+            } else {
+                ((ARGBType) value).set(argb);
+            }
+            return value;
+        }
+
+        @Override
+        public RealRandomAccess<O> copy() {
+            InstancedAccess copy = new InstancedAccess(level, levelToGlobal, baseSources);
+            copy.setPosition(this);
+            return copy;
+        }
+    }
+
+    /**
+     * Creates a source and converter displaying the instances of a base source
+     * @param base base source, with real values, and optionally a volatile version of it
+     */
+    public static SourceAndConverter<ARGBType> createSourceAndConverter(String name, SourceAndConverter<?> base, List<Instance> instances) {
+        InstancedSource<ARGBType> source = new InstancedSource<>(name, base.getSpimSource(), instances, ARGBType::new);
+        Converter<ARGBType, ARGBType> converter = BigDataViewer.createConverterToARGB(new ARGBType());
+        if (base.asVolatile() == null) {
+            return new SourceAndConverter<>(source, converter);
+        }
+        InstancedSource<VolatileARGBType> volatileSource = new InstancedSource<>(name, base.asVolatile().getSpimSource(), instances, VolatileARGBType::new);
+        Converter<VolatileARGBType, ARGBType> volatileConverter = BigDataViewer.createConverterToARGB(new VolatileARGBType());
+        return new SourceAndConverter<>(source, converter, new SourceAndConverter<>(volatileSource, volatileConverter));
+    }
+
+}
@@ -0,0 +1,114 @@
+package ch.epfl.biop.demos.utils;
+
+/**
+ * Escape time kernels of the Mandelbrot set, z starts at c: a point escaping at the first
+ * iteration has the value 0, points of the set have the value maxIterations
+ * <p>
+ * {@link #escapeTimes(double[], double[], int, int, int[])} evaluates a whole row at once. Two
+ * orbits are iterated in the same loop: their computations are independent, so the processor
+ * can overlap them instead of waiting on the latency of a single dependency chain. When one
+ * of them is done, it is replaced by the next point of the row.
+ */
+public class MandelbrotKernel {
+
+    /**
+     * Main cardioid and period 2 bulb
+     */
+    public static boolean isInMainComponents(double cRe, double cIm) {
+        double xq = cRe - 0.25;
+        double q = xq * xq + cIm * cIm;
+        if (q * (q + xq) <= 0.25 * cIm * cIm) return true;
+        return (cRe + 1) * (cRe + 1) + cIm * cIm <= 0.0625;
+    }
+
+    /**
+     * Escape time of a single point
+     */
+    public static int escapeTime(double cRe, double cIm, int maxIterations) {
+        if (isInMainComponents(cRe, cIm)) return maxIterations;
+        return iterate(cRe, cIm, cRe, cIm, cRe, cIm, 0, maxIterations);
+    }
+
+    /**
+     * Continues the orbit of c from z at iteration i. Brent cycle detection: the orbit
+     * is compared to its value at the last power of two iteration.
+     */
+    private static int iterate(double re, double im, double cRe, double cIm, double oldRe, double oldIm, int i, int maxIterations) {
+        while (i < maxIterations) {
+            double re2 = re * re;
+            double im2 = im * im;
+            if (re2 + im2 > 4) return i;
+            im = 2 * re * im + cIm;
+            re = re2 - im2 + cRe;
+            i++;
+            if ((re == oldRe) && (im == oldIm)) return maxIterations;
+            if ((i & (i - 1)) == 0) {
+                oldRe = re;
+                oldIm = im;
+            }
+        }
+        return maxIterations;
+    }
+
+    /**
+     * Escape times of n points, same results as {@link #escapeTime(double, double, int)}
+     */
+    public static void escapeTimes(double[] cRe, double[] cIm, int n, int maxIterations, int[] out) {
+        int next = 0;
+        // Lane a and lane b: index of the point (-1 if none), c, z, z at the last check, iteration
+        int ia = -1, ib = -1;
+        double aCRe = 0, aCIm = 0, aRe = 0, aIm = 0, aOldRe = 0, aOldIm = 0;
+        double bCRe = 0, bCIm = 0, bRe = 0, bIm = 0, bOldRe = 0, bOldIm = 0;
+        int aI = 0, bI = 0;
+        while (true) {
+            if (ia < 0) {
+                while ((next < n) && isInMainComponents(cRe[next], cIm[next])) out[next++] = maxIterations;
+                if (next < n) {
+                    ia = next++;
+                    aCRe = cRe[ia]; aCIm = cIm[ia];
+                    aRe = aCRe; aIm = aCIm; aOldRe = aCRe; aOldIm = aCIm;
+                    aI = 0;
+                }
+            }
+            if (ib < 0) {
+                while ((next < n) && isInMainComponents(cRe[next], cIm[next])) out[next++] = maxIterations;
+                if (next < n) {
+                    ib = next++;
+                    bCRe = cRe[ib]; bCIm = cIm[ib];
+                    bRe = bCRe; bIm = bCIm; bOldRe = bCRe; bOldIm = bCIm;
+                    bI = 0;
+                }
+            }
+            if ((ia < 0) && (ib < 0)) return;
+            if (ib < 0) {
+                // End of the row, a single orbit left
+                out[ia] = iterate(aRe, aIm, aCRe, aCIm, aOldRe, aOldIm, aI, maxIterations);
+                ia = -1;
+                continue;
+            }
+            if (ia < 0) {
+                out[ib] = iterate(bRe, bIm, bCRe, bCIm, bOldRe, bOldIm, bI, maxIterations);
+                ib = -1;
+                continue;
+            }
+            // Both lanes iterate until one of them is done
+            while (true) {
+                double aRe2 = aRe * aRe, aIm2 = aIm * aIm;
+                double bRe2 = bRe * bRe, bIm2 = bIm * bIm;
+                if (aRe2 + aIm2 > 4) { out[ia] = aI; ia = -1; break; }
+                if (bRe2 + bIm2 > 4) { out[ib] = bI; ib = -1; break; }
+                aIm = 2 * aRe * aIm + aCIm;
+                aRe = aRe2 - aIm2 + aCRe;
+                bIm = 2 * bRe * bIm + bCIm;
+                bRe = bRe2 - bIm2 + bCRe;
+                aI++;
+                bI++;
+                if (((aRe == aOldRe) && (aIm == aOldIm)) || (aI >= maxIterations)) { out[ia] = maxIterations; ia = -1; break; }
+                if (((bRe == bOldRe) && (bIm == bOldIm)) || (bI >= maxIterations)) { out[ib] = maxIterations; ib = -1; break; }
+                if ((aI & (aI - 1)) == 0) { aOldRe = aRe; aOldIm = aIm; }
+                if ((bI & (bI - 1)) == 0) { bOldRe = bRe; bOldIm = bIm; }
+            }
+        }
+    }
+
+}
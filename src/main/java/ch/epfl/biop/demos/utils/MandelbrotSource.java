@@ -0,0 +1,309 @@
+package ch.epfl.biop.demos.utils;
+
+import bdv.BigDataViewer;
+import bdv.cache.SharedQueue;
+import bdv.util.DefaultInterpolators;
+import bdv.util.WrapVolatileSource;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.converter.Converter;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import sc.fiji.bdvpg.cache.GlobalLoaderCache;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cached multiresolution Mandelbrot set Source
+ * <p>
+ * The level 0 grid is 2^depthLog2 pixels wide and spans a square of the complex plane around
+ * a center given with arbitrary precision. Global coordinates are level 0 pixels relative to
+ * this center, so that they keep their double precision at any zoom around it.
+ * <p>
+ * Global coordinates can also be the complex plane coordinates, like the procedural Mandelbrot
+ * sources, for shallow sources only: double precision is lost far from the origin.
+ * <p>
+ * Cells are cached by their flat index in the cell grid of a level, which has to fit in a long:
+ * a level image is at most 2^{@link #MAX_LEVEL_SIZE_LOG2} pixels wide, centered on the center.
+ * Deep levels thus only cover a window around the center, the coarser levels cover the whole
+ * square: at level 0 of the default depth, the window is 2^-21 times the width of the square.
+ * <p>
+ * Pixels are the escape iteration counts, maxIterations for the points of the set, with the same
+ * convention as the procedural (slow) Mandelbrot source. Tiles are computed row by row in double
+ * precision with {@link MandelbrotKernel}, with early exits for the main cardioid, the period 2
+ * bulb and periodic orbits. When the pixel size gets too small for double precision, tiles are
+ * computed by perturbation: each pixel iterates its difference to a reference orbit computed
+ * at the center with arbitrary precision, and is rebased on the reference when the difference
+ * grows larger than the orbit.
+ */
+public class MandelbrotSource implements Source<UnsignedShortType> {
+
+    protected final DefaultInterpolators< UnsignedShortType > interpolators = new DefaultInterpolators<>();
+
+    // Seahorse valley
+    public static final BigDecimal DEFAULT_CENTER_RE = new BigDecimal("-0.743643887037158704752191506114774");
+    public static final BigDecimal DEFAULT_CENTER_IM = new BigDecimal("0.131825904205311970493132056385139");
+
+    public static final int DEFAULT_DEPTH_LOG2 = 60;
+
+    // 2^31 cells of 256 pixels per axis, their flat index fits in a long
+    public static final int MAX_LEVEL_SIZE_LOG2 = 39;
+
+    // Below this pixel size (in complex plane units), tiles are computed by perturbation
+    public static final double PERTURBATION_PIXEL_SIZE = 1e-12;
+
+    final String name;
+
+    final int nResolutionLevels;
+
+    final int depthLog2;
+
+    final double pixelSize;
+
+    final double centerRe, centerIm;
+
+    final int maxIterations;
+
+    // If true, global coordinates are complex plane coordinates instead of level 0 pixels
+    final boolean complexPlaneCoordinates;
+
+    // Reference orbit at the center, until it escapes or maxIterations
+    final double[] referenceRe, referenceIm;
+
+    final Map<Integer, RandomAccessibleInterval<UnsignedShortType>> levels = new ConcurrentHashMap<>();
+
+    /**
+     * @param width width of the complex plane square displayed at the coarsest level
+     * @param depthLog2 the level 0 grid is 2^depthLog2 pixels wide, at most 62
+     * @param maxIterations at most 65535
+     */
+    public MandelbrotSource(String name, BigDecimal centerRe, BigDecimal centerIm, double width, int depthLog2, int maxIterations) {
+        this(name, centerRe, centerIm, width, depthLog2, maxIterations, false);
+    }
+
+    /**
+     * @param complexPlaneCoordinates if true, global coordinates are complex plane coordinates
+     *                                instead of level 0 pixels relative to the center
+     */
+    public MandelbrotSource(String name, BigDecimal centerRe, BigDecimal centerIm, double width, int depthLog2, int maxIterations,
+                            boolean complexPlaneCoordinates) {
+        this.name = name;
+        this.complexPlaneCoordinates = complexPlaneCoordinates;
+        this.depthLog2 = depthLog2;
+        this.pixelSize = width / Math.pow(2, depthLog2);
+        this.centerRe = centerRe.doubleValue();
+        this.centerIm = centerIm.doubleValue();
+        this.maxIterations = maxIterations;
+        this.nResolutionLevels = depthLog2 - Integer.numberOfTrailingZeros(tileSize()) + 1;
+
+        // Enough digits to resolve a level 0 pixel
+        MathContext mc = new MathContext((int) Math.ceil(-Math.log10(pixelSize)) + 10);
+        double[] re = new double[maxIterations + 2];
+        double[] im = new double[maxIterations + 2];
+        BigDecimal zr = BigDecimal.ZERO, zi = BigDecimal.ZERO;
+        int length = 1;
+        while (length < re.length) {
+            BigDecimal zr2 = zr.multiply(zr, mc);
+            BigDecimal zi2 = zi.multiply(zi, mc);
+            BigDecimal newZi = zr.multiply(zi, mc).multiply(BigDecimal.valueOf(2), mc).add(centerIm, mc);
+            zr = zr2.subtract(zi2, mc).add(centerRe, mc);
+            zi = newZi;
+            re[length] = zr.doubleValue();
+            im[length] = zi.doubleValue();
+            length++;
+            if (re[length-1]*re[length-1] + im[length-1]*im[length-1] > 4) break;
+        }
+        this.referenceRe = Arrays.copyOf(re, length);
+        this.referenceIm = Arrays.copyOf(im, length);
+    }
+
+    public MandelbrotSource(String name, int maxIterations) {
+        this(name, DEFAULT_CENTER_RE, DEFAULT_CENTER_IM, 3, DEFAULT_DEPTH_LOG2, maxIterations);
+    }
+
+    private static int tileSize() {
+        return 256;
+    }
+
+    @Override
+    public boolean isPresent(int t) {
+        return t==0;
+    }
+
+    @Override
+    public RandomAccessibleInterval<UnsignedShortType> getSource(int t, int level) {
+        if (t!=0) throw new RuntimeException("Mandelbrot source has only one time point");
+        return levels.computeIfAbsent(level, this::buildLevel);
+    }
+
+    private RandomAccessibleInterval<UnsignedShortType> buildLevel(int level) {
+        long size = 1L << Math.min(depthLog2 - level, MAX_LEVEL_SIZE_LOG2);
+        long offset = levelOffset(level);
+        CellGrid grid = new CellGrid(new long[]{size, size, 1}, new int[]{tileSize(), tileSize(), 1});
+        LoadedCellCacheLoader<UnsignedShortType, ?> loader = LoadedCellCacheLoader.get(grid, cell -> {
+            short[] out = (short[]) cell.update(null).getCurrentStorageArray();
+            int w = (int) cell.dimension(0);
+            int h = (int) cell.dimension(1);
+            boolean perturbation = pixelSize * (1L << level) < PERTURBATION_PIXEL_SIZE;
+            double[] rowRe = new double[w];
+            double[] rowIm = new double[w];
+            int[] rowValues = new int[w];
+            for (int y = 0; y < h; y++) {
+                double dIm = delta(offset + cell.min(1) + y, level);
+                if (perturbation) {
+                    for (int x = 0; x < w; x++) {
+                        out[y * w + x] = (short) iteratePerturbed(delta(offset + cell.min(0) + x, level), dIm);
+                    }
+                } else {
+                    for (int x = 0; x < w; x++) {
+                        rowRe[x] = centerRe + delta(offset + cell.min(0) + x, level);
+                        rowIm[x] = centerIm + dIm;
+                    }
+                    MandelbrotKernel.escapeTimes(rowRe, rowIm, w, maxIterations, rowValues);
+                    for (int x = 0; x < w; x++) {
+                        out[y * w + x] = (short) rowValues[x];
+                    }
+                }
+            }
+        }, new UnsignedShortType(), AccessFlags.setOf(AccessFlags.VOLATILE));
+        Cache<Long, Cell<UnsignedShortType>> cache = (new GlobalLoaderCache(this, 0, level)).withLoader(loader);
+        return new CachedCellImg(grid, getType(), cache, ArrayDataAccessFactory.get(getType(), AccessFlags.setOf(AccessFlags.VOLATILE)));
+    }
+
+    /**
+     * Position, in pixels of this level, of the first pixel of the level image
+     */
+    long levelOffset(int level) {
+        long size = 1L << Math.min(depthLog2 - level, MAX_LEVEL_SIZE_LOG2);
+        return ((1L << (depthLog2 - level)) - size) / 2;
+    }
+
+    /**
+     * Distance to the center, in complex plane units, of the pixel at this position and level
+     * of the full square
+     */
+    double delta(long position, int level) {
+        // Exact in long, then a single rounding
+        long fromCenter = (position << level) - (1L << (depthLog2 - 1));
+        return (fromCenter + ((1L << level) - 1) / 2.0) * pixelSize;
+    }
+
+    /**
+     * Escape time of center + dc, iterating the difference to the reference orbit.
+     * Same convention as {@link MandelbrotKernel#escapeTime(double, double, int)}.
+     */
+    int iteratePerturbed(double dcRe, double dcIm) {
+        int last = referenceRe.length - 1;
+        double dRe = 0, dIm = 0;
+        int m = 0;
+        for (int i = 0; i < maxIterations; i++) {
+            double zRe = referenceRe[m], zIm = referenceIm[m];
+            // d' = 2 Z d + d^2 + dc
+            double newDRe = 2 * (zRe * dRe - zIm * dIm) + dRe * dRe - dIm * dIm + dcRe;
+            dIm = 2 * (zRe * dIm + zIm * dRe) + 2 * dRe * dIm + dcIm;
+            dRe = newDRe;
+            m++;
+            double re = referenceRe[m] + dRe;
+            double im = referenceIm[m] + dIm;
+            double mag = re * re + im * im;
+            if (mag > 4) return i;
+            if ((mag < dRe * dRe + dIm * dIm) || (m == last)) {
+                // Rebase: the pixel orbit continues from the start of the reference orbit
+                dRe = re;
+                dIm = im;
+                m = 0;
+            }
+        }
+        return maxIterations;
+    }
+
+    @Override
+    public RealRandomAccessible<UnsignedShortType> getInterpolatedSource(int t, int level, Interpolation method) {
+        return Views.interpolate( Views.extendZero(getSource( t, level )), interpolators.get(method) );
+    }
+
+    @Override
+    public void getSourceTransform(int t, int level, AffineTransform3D transform) {
+        double scale = 1L << level;
+        // Level 0 position of the first pixel of the level image, relative to the center, exact in long
+        double origin = (levelOffset(level) << level) - (1L << (depthLog2 - 1));
+        transform.identity();
+        transform.scale(scale, scale, 1);
+        transform.translate((scale - 1) / 2.0 + origin, (scale - 1) / 2.0 + origin, 0);
+        if (complexPlaneCoordinates) {
+            AffineTransform3D toComplexPlane = new AffineTransform3D();
+            toComplexPlane.scale(pixelSize, pixelSize, 1);
+            toComplexPlane.translate(centerRe, centerIm, 0);
+            transform.preConcatenate(toComplexPlane);
+        }
+    }
+
+    @Override
+    public UnsignedShortType getType() {
+        return new UnsignedShortType();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions() {
+        return new FinalVoxelDimensions("pixel", 1,1,1);
+    }
+
+    @Override
+    public int getNumMipmapLevels() {
+        return nResolutionLevels;
+    }
+
+    public static SourceAndConverter<UnsignedShortType> getSourceAndConverter(SharedQueue queue, int maxIterations) {
+        return getSourceAndConverter(queue, new MandelbrotSource("Mandelbrot Set (Cached)", maxIterations));
+    }
+
+    /**
+     * The whole set, in complex plane coordinates like the procedural Mandelbrot sources, down
+     * to pixels of 1e-11: no perturbation is needed
+     */
+    public static SourceAndConverter<UnsignedShortType> getWholeSetSourceAndConverter(SharedQueue queue, String name, int maxIterations) {
+        return getSourceAndConverter(queue, new MandelbrotSource(name, BigDecimal.valueOf(-0.5), BigDecimal.ZERO,
+                4, MAX_LEVEL_SIZE_LOG2, maxIterations, true));
+    }
+
+    static SourceAndConverter<UnsignedShortType> getSourceAndConverter(SharedQueue queue, Source<UnsignedShortType> mandelbrot) {
+
+        SourceAndConverter<UnsignedShortType> sac_out;
+
+        SourceAndConverter<?> vsac; Source<?> vsrcRsampled;
+
+        vsrcRsampled = new WrapVolatileSource<>(mandelbrot, queue);
+        Converter< ?, ARGBType> volatileConverter = BigDataViewer.createConverterToARGB((NumericType) vsrcRsampled.getType());
+        Converter< ?, ARGBType> converter = BigDataViewer.createConverterToARGB(new UnsignedShortType());
+
+        vsac = new SourceAndConverter(vsrcRsampled,volatileConverter);
+        sac_out = new SourceAndConverter(mandelbrot, converter,vsac);
+
+        return sac_out;
+    }
+
+}
@@ -0,0 +1,325 @@
+package ch.epfl.biop.demos.utils;
+
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.display.ColorConverter;
+import net.imglib2.display.LinearRange;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.embl.mobie.io.imagedata.N5ImageData;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.blosc.BloscCompression;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrReader;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrWriter;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Local OME-Zarr copies of the demo datasets, opened with {@link N5ImageData} instead of BioFormats
+ * <p>
+ * A dataset is written once, in the background, with all the resolution levels of its sources:
+ * the pyramid computed lazily by BioFormats at each run is then read from disk. Blocks are blosc
+ * compressed, with the cell size of the sources when it is known, and written in parallel.
+ * The store is written in a temporary folder which is renamed once complete. The colors and display
+ * ranges of the sources are kept as the omero metadata of the image, and set back when it is opened.
+ * <p>
+ * OME-Zarr only holds scaled and translated images: datasets with rotated or sheared
+ * sources, with several timepoints, or with sources at different locations (tiles) are not
+ * converted.
+ */
+public class MultiscaleStore {
+
+    public static final File DEFAULT_DIRECTORY = new File(new File(System.getProperty("user.home"), "CachedSamples"), "stores");
+
+    // Conversions run one at a time, each one in parallel over blocks
+    static final ExecutorService conversions = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Multiscale store conversion");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static final ExecutorService blockWriters = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "Multiscale store writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * @param options options used to open the file, for instance the plane origin convention
+     * @return the store of this file opened with these options, which may not exist yet
+     */
+    public static File getStore(File file, Object... options) {
+        StringBuilder key = new StringBuilder(file.getAbsolutePath())
+                .append('|').append(file.length())
+                .append('|').append(file.lastModified());
+        for (Object option : options) key.append('|').append(option);
+        String name = file.getName().replaceAll("\\.[^.]*$", "");
+        return new File(DEFAULT_DIRECTORY, name+"-"+Integer.toHexString(key.toString().hashCode())+".ome.zarr");
+    }
+
+    public static boolean exists(File store) {
+        return store.isDirectory();
+    }
+
+    /**
+     * Opens the sources of a store, with the colors and display ranges of the converted sources
+     */
+    public static SourceAndConverter<?>[] open(File store) {
+        N5ImageData<?> n5ImageData = new N5ImageData<>(store.getAbsolutePath());
+        SourceAndConverter<?>[] sources = n5ImageData.getSourcesAndConverters().toArray(new SourceAndConverter[0]);
+        try (N5ZarrReader n5 = new N5ZarrReader(store.getAbsolutePath())) {
+            applyOmero(n5.getAttribute("/", "omero", Omero.class), sources);
+        } catch (Exception e) {
+            System.err.println("Could not read the display settings of "+store.getAbsolutePath()+": "+e.getMessage());
+        }
+        return sources;
+    }
+
+    /**
+     * Writes the sources to the store in the background, unless it is already written
+     */
+    public static Future<?> convertInBackground(SourceAndConverter<?>[] sources, File store) {
+        return conversions.submit(() -> {
+            if (exists(store)) return;
+            try {
+                convert(sources, store);
+            } catch (Exception e) {
+                System.err.println("Could not write "+store.getAbsolutePath()+": "+e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Writes the sources as the channels of a multiscale OME-Zarr image
+     */
+    public static void convert(SourceAndConverter<?>[] sources, File store) throws Exception {
+        String unsupported = checkSupported(sources);
+        if (unsupported != null) {
+            System.out.println("Not converted to "+store.getName()+": "+unsupported);
+            return;
+        }
+        Source<?> first = sources[0].getSpimSource();
+        int nLevels = Arrays.stream(sources).mapToInt(sac -> sac.getSpimSource().getNumMipmapLevels()).min().getAsInt();
+        String unit = "micrometer";
+        if (first.getVoxelDimensions() != null) {
+            unit = first.getVoxelDimensions().unit();
+            // OME-Zarr expects UDUNITS-2 names
+            if (unit.equals("um") || unit.equals("\u00b5m") || unit.equalsIgnoreCase("micrometer")) unit = "micrometer";
+        }
+
+        File directory = store.getAbsoluteFile().getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new RuntimeException("Could not create folder "+directory.getAbsolutePath());
+        }
+        File tmp = new File(directory, store.getName()+".tmp");
+        N5ZarrWriter n5 = new N5ZarrWriter(tmp.getAbsolutePath());
+
+        List<Map<String, Object>> datasets = new ArrayList<>();
+        for (int level = 0; level < nLevels; level++) {
+            int[] cellSize = getCellSize(first.getSource(0, level));
+            int[] blockSize = {cellSize[0], cellSize[1], cellSize[2], 1};
+
+            long start = System.nanoTime();
+            RandomAccessibleInterval<?> stack = writeLevel(sources, level, n5, "s"+level, blockSize);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%s level %d: %d blocks of %s written in %.1f s (%.1f Mpixels/s)%n",
+                    store.getName(), level, numBlocks(stack, blockSize), Arrays.toString(blockSize),
+                    seconds, Intervals.numElements(stack) / seconds / 1e6);
+
+            AffineTransform3D transform = new AffineTransform3D();
+            first.getSourceTransform(0, level, transform);
+            Map<String, Object> scale = new HashMap<>();
+            scale.put("type", "scale");
+            scale.put("scale", new double[]{1, transform.get(2, 2), transform.get(1, 1), transform.get(0, 0)});
+            Map<String, Object> translation = new HashMap<>();
+            translation.put("type", "translation");
+            translation.put("translation", new double[]{0, transform.get(2, 3), transform.get(1, 3), transform.get(0, 3)});
+            Map<String, Object> dataset = new HashMap<>();
+            dataset.put("path", "s"+level);
+            dataset.put("coordinateTransformations", Arrays.asList(scale, translation));
+            datasets.add(dataset);
+        }
+
+        // OME-Zarr 0.4 metadata, axes in zarr order
+        Map<String, Object> multiscale = new HashMap<>();
+        multiscale.put("version", "0.4");
+        multiscale.put("name", first.getName());
+        multiscale.put("axes", Arrays.asList(
+                axis("c", "channel", null),
+                axis("z", "space", unit),
+                axis("y", "space", unit),
+                axis("x", "space", unit)));
+        multiscale.put("datasets", datasets);
+        n5.setAttribute("/", "multiscales", Collections.singletonList(multiscale));
+        n5.setAttribute("/", "omero", getOmero(sources));
+        n5.close();
+
+        Files.move(tmp.toPath(), store.toPath());
+    }
+
+    /**
+     * Writes a level of the sources as the channels of a single x, y, z, c dataset
+     * @return the written image
+     */
+    static <T extends NativeType<T>> RandomAccessibleInterval<T> writeLevel(SourceAndConverter<?>[] sources, int level,
+                                                                         N5Writer n5, String path, int[] blockSize) throws Exception {
+        List<RandomAccessibleInterval<T>> channels = new ArrayList<>();
+        for (SourceAndConverter<?> sac : sources) {
+            // The pixel types of the sources are of the same class, see checkSupported
+            @SuppressWarnings("unchecked")
+            RandomAccessibleInterval<T> channel = (RandomAccessibleInterval<T>) sac.getSpimSource().getSource(0, level);
+            channels.add(Views.zeroMin(channel));
+        }
+        RandomAccessibleInterval<T> stack = Views.stack(channels);
+        N5Utils.save(stack, n5, path, blockSize, new BloscCompression(), blockWriters);
+        return stack;
+    }
+
+    /**
+     * OME-Zarr 0.4 rendering settings of the image: one entry per channel
+     */
+    static class Omero {
+        List<OmeroChannel> channels = new ArrayList<>();
+        Map<String, String> rdefs = Collections.singletonMap("model", "color");
+    }
+
+    static class OmeroChannel {
+        String label;
+        String color; // RRGGBB
+        boolean active = true;
+        OmeroWindow window = new OmeroWindow();
+    }
+
+    static class OmeroWindow {
+        double min, max, start, end;
+    }
+
+    /**
+     * @return the colors and display ranges of the converters of the sources
+     */
+    static Omero getOmero(SourceAndConverter<?>[] sources) {
+        Omero omero = new Omero();
+        for (SourceAndConverter<?> sac : sources) {
+            OmeroChannel channel = new OmeroChannel();
+            channel.label = sac.getSpimSource().getName();
+            RealType<?> type = (RealType<?>) sac.getSpimSource().getType();
+            channel.window.min = type.getMinValue();
+            channel.window.max = type.getMaxValue();
+            channel.window.start = channel.window.min;
+            channel.window.end = channel.window.max;
+            channel.color = "FFFFFF";
+            Converter<?, ARGBType> converter = sac.getConverter();
+            if (converter instanceof ColorConverter) {
+                channel.color = String.format("%06X", ((ColorConverter) converter).getColor().get() & 0xFFFFFF);
+            }
+            if (converter instanceof LinearRange) {
+                channel.window.start = ((LinearRange) converter).getMin();
+                channel.window.end = ((LinearRange) converter).getMax();
+            }
+            omero.channels.add(channel);
+        }
+        return omero;
+    }
+
+    /**
+     * Sets the colors and display ranges stored in the omero metadata of the store to the
+     * converters of its sources, one source per channel
+     */
+    static void applyOmero(Omero omero, SourceAndConverter<?>[] sources) {
+        if ((omero == null) || (omero.channels == null) || (omero.channels.size() != sources.length)) return;
+        for (int c = 0; c < sources.length; c++) {
+            OmeroChannel channel = omero.channels.get(c);
+            apply(channel, sources[c].getConverter());
+            if (sources[c].asVolatile() != null) apply(channel, sources[c].asVolatile().getConverter());
+        }
+    }
+
+    static void apply(OmeroChannel channel, Converter<?, ARGBType> converter) {
+        if ((channel.color != null) && (converter instanceof ColorConverter)) {
+            int rgb = Integer.parseInt(channel.color.replace("#", ""), 16);
+            ((ColorConverter) converter).setColor(new ARGBType(rgb | 0xFF000000));
+        }
+        if ((channel.window != null) && (converter instanceof LinearRange)) {
+            ((LinearRange) converter).setMin(channel.window.start);
+            ((LinearRange) converter).setMax(channel.window.end);
+        }
+    }
+
+    /**
+     * @return why these sources cannot be stored as a single OME-Zarr image, null if they can
+     */
+    static String checkSupported(SourceAndConverter<?>[] sources) {
+        Source<?> first = sources[0].getSpimSource();
+        AffineTransform3D reference = new AffineTransform3D();
+        first.getSourceTransform(0, 0, reference);
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 3; c++) {
+                if ((r != c) && (Math.abs(reference.get(r, c)) > 1e-9 * Math.abs(reference.get(r, r)))) {
+                    return "rotated or sheared source";
+                }
+            }
+        }
+        long[] dimensions = first.getSource(0, 0).dimensionsAsLongArray();
+        for (SourceAndConverter<?> sac : sources) {
+            Source<?> source = sac.getSpimSource();
+            if (source.isPresent(1)) return "several timepoints";
+            if (!(source.getType() instanceof RealType)) return "non scalar pixel type";
+            if (!source.getType().getClass().equals(first.getType().getClass())) return "different pixel types";
+            if (!Arrays.equals(dimensions, source.getSource(0, 0).dimensionsAsLongArray())) return "different dimensions";
+            AffineTransform3D transform = new AffineTransform3D();
+            source.getSourceTransform(0, 0, transform);
+            if (!Arrays.equals(reference.getRowPackedCopy(), transform.getRowPackedCopy())) return "sources at different locations";
+        }
+        return null;
+    }
+
+    /**
+     * @return the cell size of the image if it is a cell image, 64 pixels otherwise, within its dimensions
+     */
+    static int[] getCellSize(RandomAccessibleInterval<?> rai) {
+        int[] cellSize = {64, 64, 64};
+        if (rai instanceof AbstractCellImg) {
+            ((AbstractCellImg<?, ?, ?, ?>) rai).getCellGrid().cellDimensions(cellSize);
+        }
+        for (int d = 0; d < 3; d++) {
+            cellSize[d] = (int) Math.max(1, Math.min(cellSize[d], rai.dimension(d)));
+        }
+        return cellSize;
+    }
+
+    static long numBlocks(RandomAccessibleInterval<?> rai, int[] blockSize) {
+        long n = 1;
+        for (int d = 0; d < rai.numDimensions(); d++) {
+            n *= (rai.dimension(d) + blockSize[d] - 1) / blockSize[d];
+        }
+        return n;
+    }
+
+    static Map<String, Object> axis(String name, String type, String unit) {
+        Map<String, Object> axis = new HashMap<>();
+        axis.put("name", name);
+        axis.put("type", type);
+        if (unit != null) axis.put("unit", unit);
+        return axis;
+    }
+
+}
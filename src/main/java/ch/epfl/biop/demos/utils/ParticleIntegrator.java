@@ -0,0 +1,173 @@
+package ch.epfl.biop.demos.utils;
+
+import java.util.Arrays;
+
+/**
+ * Integrates the trajectories of many particles in a vector field
+ * <p>
+ * Particle positions are stored as a structure of arrays: coordinate d of particle i is
+ * {@code position[d][i]}. The field and all the intermediate steps of the integration schemes work
+ * on whole ranges of particles over these arrays. All buffers are allocated when particles are
+ * added, a step does not allocate anything.
+ * <p>
+ * Steps can be restricted to a range of particles, for instance to integrate different
+ * particles with different schemes, or to split the work between threads as long as the ranges
+ * do not overlap.
+ */
+public class ParticleIntegrator {
+
+    /**
+     * Time derivative of the particles positions, with the same layout as the positions
+     */
+    public interface VectorField {
+        /**
+         * Writes in derivative[d][i] the derivative at position[d][i], for i in [from, to)
+         */
+        void evaluate(double[][] position, double[][] derivative, int from, int to);
+    }
+
+    // Number of fixed point iterations of the implicit Euler scheme
+    public static final int IMPLICIT_ITERATIONS = 3;
+
+    final int nDimensions;
+
+    final VectorField field;
+
+    int size = 0;
+
+    double[][] position;
+
+    // Scratch buffers: intermediate positions and the slopes of the integration schemes
+    double[][] tmp, k1, k2, k3, k4;
+
+    public ParticleIntegrator(int nDimensions, VectorField field, int initialCapacity) {
+        this.nDimensions = nDimensions;
+        this.field = field;
+        allocate(Math.max(1, initialCapacity));
+    }
+
+    private void allocate(int capacity) {
+        position = resize(position, capacity);
+        tmp = resize(tmp, capacity);
+        k1 = resize(k1, capacity);
+        k2 = resize(k2, capacity);
+        k3 = resize(k3, capacity);
+        k4 = resize(k4, capacity);
+    }
+
+    private double[][] resize(double[][] buffer, int capacity) {
+        double[][] resized = new double[nDimensions][];
+        for (int d = 0; d < nDimensions; d++) {
+            resized[d] = buffer == null ? new double[capacity] : Arrays.copyOf(buffer[d], capacity);
+        }
+        return resized;
+    }
+
+    /**
+     * Adds a particle, not thread safe with steps
+     * @return the index of the particle
+     */
+    public int add(double... coordinates) {
+        if (coordinates.length != nDimensions) {
+            throw new IllegalArgumentException("Expected "+nDimensions+" coordinates, got "+coordinates.length);
+        }
+        if (size == position[0].length) allocate(2 * size);
+        for (int d = 0; d < nDimensions; d++) {
+            position[d][size] = coordinates[d];
+        }
+        return size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int numDimensions() {
+        return nDimensions;
+    }
+
+    public double getPosition(int index, int d) {
+        return position[d][index];
+    }
+
+    public void localize(int index, double[] out) {
+        for (int d = 0; d < nDimensions; d++) {
+            out[d] = position[d][index];
+        }
+    }
+
+    /**
+     * Direct access to the positions, position[d][i] for i &lt; size()
+     */
+    public double[][] getPositions() {
+        return position;
+    }
+
+    public void explicitEulerStep(double dt) {
+        explicitEulerStep(dt, 0, size);
+    }
+
+    public void implicitEulerStep(double dt) {
+        implicitEulerStep(dt, 0, size);
+    }
+
+    public void rk4Step(double dt) {
+        rk4Step(dt, 0, size);
+    }
+
+    // Gaining energy - unstable
+    public void explicitEulerStep(double dt, int from, int to) {
+        field.evaluate(position, k1, from, to);
+        for (int d = 0; d < nDimensions; d++) {
+            double[] p = position[d], k = k1[d];
+            for (int i = from; i < to; i++) {
+                p[i] += k[i] * dt;
+            }
+        }
+    }
+
+    // Losing energy - stable. The implicit equation is solved by fixed point iterations.
+    public void implicitEulerStep(double dt, int from, int to) {
+        field.evaluate(position, k1, from, to);
+        for (int iteration = 0; iteration < IMPLICIT_ITERATIONS; iteration++) {
+            offset(k1, dt, from, to);
+            field.evaluate(tmp, k1, from, to);
+        }
+        for (int d = 0; d < nDimensions; d++) {
+            double[] p = position[d], k = k1[d];
+            for (int i = from; i < to; i++) {
+                p[i] += k[i] * dt;
+            }
+        }
+    }
+
+    // Runge Kutta 4
+    public void rk4Step(double dt, int from, int to) {
+        field.evaluate(position, k1, from, to);
+        offset(k1, dt / 2.0, from, to);
+        field.evaluate(tmp, k2, from, to);
+        offset(k2, dt / 2.0, from, to);
+        field.evaluate(tmp, k3, from, to);
+        offset(k3, dt, from, to);
+        field.evaluate(tmp, k4, from, to);
+        for (int d = 0; d < nDimensions; d++) {
+            double[] p = position[d], a = k1[d], b = k2[d], c = k3[d], e = k4[d];
+            for (int i = from; i < to; i++) {
+                p[i] += (a[i] + 2.0 * b[i] + 2.0 * c[i] + e[i]) * dt / 6.0;
+            }
+        }
+    }
+
+    /**
+     * tmp = position + slope * h
+     */
+    private void offset(double[][] slope, double h, int from, int to) {
+        for (int d = 0; d < nDimensions; d++) {
+            double[] p = position[d], k = slope[d], out = tmp[d];
+            for (int i = from; i < to; i++) {
+                out[i] = p[i] + k[i] * h;
+            }
+        }
+    }
+
+}
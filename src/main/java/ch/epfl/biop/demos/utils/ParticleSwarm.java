@@ -0,0 +1,92 @@
+package ch.epfl.biop.demos.utils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Steps a large number of particles in parallel and accumulates their positions in a histogram
+ * <p>
+ * Particles are split in chunks of contiguous indices of a {@link ParticleIntegrator}, which are
+ * integrated independently on a ForkJoinPool: chunks never overlap, so they do not share any
+ * buffer. After a burn-in period, each chunk adds the positions of its particles to the
+ * {@link DensityHistogramSource} after each step: the histogram converges to the invariant
+ * measure of the system.
+ */
+public class ParticleSwarm {
+
+    final ParticleIntegrator integrator;
+
+    final DensityHistogramSource histogram;
+
+    final ForkJoinPool pool;
+
+    final int chunkSize;
+
+    final int burnInSteps;
+
+    final AtomicLong particleSteps = new AtomicLong();
+
+    // Written by the stepping thread only, read by isBurningIn from any thread
+    volatile int step = 0;
+
+    public ParticleSwarm(ParticleIntegrator integrator, DensityHistogramSource histogram, ForkJoinPool pool, int chunkSize, int burnInSteps) {
+        this.integrator = integrator;
+        this.histogram = histogram;
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+        this.burnInSteps = burnInSteps;
+    }
+
+    /**
+     * RK4 step of all particles, returns when all chunks are done
+     */
+    public void step(double dt) {
+        boolean accumulate = step >= burnInSteps;
+        pool.invoke(new Chunk(dt, 0, integrator.size(), accumulate));
+        if (accumulate) histogram.updateNormalization();
+        particleSteps.addAndGet(integrator.size());
+        step++;
+    }
+
+    /**
+     * @return number of particle steps computed so far, one step of n particles counts n
+     */
+    public long getParticleSteps() {
+        return particleSteps.get();
+    }
+
+    public boolean isBurningIn() {
+        return step < burnInSteps;
+    }
+
+    public int size() {
+        return integrator.size();
+    }
+
+    class Chunk extends RecursiveAction {
+
+        final double dt;
+        final int from, to;
+        final boolean accumulate;
+
+        Chunk(double dt, int from, int to, boolean accumulate) {
+            this.dt = dt;
+            this.from = from;
+            this.to = to;
+            this.accumulate = accumulate;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                integrator.rk4Step(dt, from, to);
+                if (accumulate) histogram.add(integrator.getPositions(), from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Chunk(dt, from, middle, accumulate), new Chunk(dt, middle, to, accumulate));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+package ch.epfl.biop.demos.utils;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cooperative pause shared between a controller and the loaders of a source
+ * <p>
+ * Loaders call {@link #awaitResume()} at regular points of their computation: while paused,
+ * they block there instead of continuing their work, and continue when resumed.
+ */
+public class PauseToken {
+
+    private volatile boolean paused = false;
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public synchronized void pause() {
+        paused = true;
+    }
+
+    public synchronized void resume() {
+        paused = false;
+        notifyAll();
+    }
+
+    /**
+     * Returns immediately if not paused, otherwise waits until resumed
+     * @throws CancellationException if the waiting thread is interrupted
+     */
+    public void awaitResume() {
+        if (!paused) return;
+        synchronized (this) {
+            while (paused) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Interrupted while paused");
+                }
+            }
+        }
+    }
+
+}
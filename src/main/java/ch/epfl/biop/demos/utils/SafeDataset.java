@@ -1,6 +1,7 @@
 package ch.epfl.biop.demos.utils;
 
 
+import bdv.cache.SharedQueue;
 import bdv.viewer.SourceAndConverter;
 import org.embl.mobie.io.imagedata.N5ImageData;
 
@@ -9,16 +10,30 @@ import org.embl.mobie.io.imagedata.N5ImageData;
  */
 public class SafeDataset {
     public static SourceAndConverter<?>[] getPlaty() {
-        N5ImageData< ? > n5ImageData = new N5ImageData<>( "https://s3.embl.de/i2k-2020/platy-raw.ome.zarr" );
-        return new SourceAndConverter[]{n5ImageData.getSourcesAndConverters().get(0)};
+        return getPlaty(new StreamingOptions());
+    }
+
+    public static SourceAndConverter<?>[] getPlaty(StreamingOptions options) {
+        return new SourceAndConverter[]{open("https://s3.embl.de/i2k-2020/platy-raw.ome.zarr", options)[0]};
     }
 
     public static SourceAndConverter<?>[] getMacro() {
+        return getMacro(new StreamingOptions());
+    }
+
+    public static SourceAndConverter<?>[] getMacro(StreamingOptions options) {
 
         // Not working:
         // https://uk1s3.embassy.ebi.ac.uk/idr/zarr/v0.4/idr0062A/6001240.zarr
         // https://uk1s3.embassy.ebi.ac.uk/idr/zarr/v0.4/idr0062A/6001240.zarr/0
-        N5ImageData< ? > n5ImageData = new N5ImageData<>("https://sv-open.epfl.ch/ptbiop-public/omezarr_library/FV4000/DXPM_001_0003.zarr/0/");//https://uk1s3.embassy.ebi.ac.uk/idr/zarr/v0.4/idr0062A/6001240.zarr");s3://janelia-cosem-datasets/jrc_mus-hippocampus-2/jrc_mus-hippocampus-2.zarr/recon-1/em/fibsem-uint8" );
-        return n5ImageData.getSourcesAndConverters().toArray(new SourceAndConverter[0]);//new SourceAndConverter[]{n5ImageData.getSourcesAndConverters().get(0)};
+        return open("https://sv-open.epfl.ch/ptbiop-public/omezarr_library/FV4000/DXPM_001_0003.zarr/0/", options);//https://uk1s3.embassy.ebi.ac.uk/idr/zarr/v0.4/idr0062A/6001240.zarr");s3://janelia-cosem-datasets/jrc_mus-hippocampus-2/jrc_mus-hippocampus-2.zarr/recon-1/em/fibsem-uint8" );
+    }
+
+    /**
+     * Opens an N5 / OME-Zarr store, its chunks are loaded by {@link StreamingOptions#fetcherThreads} threads
+     */
+    public static SourceAndConverter<?>[] open(String uri, StreamingOptions options) {
+        N5ImageData< ? > n5ImageData = new N5ImageData<>( uri, new SharedQueue( Math.max(1, options.fetcherThreads) ) );
+        return n5ImageData.getSourcesAndConverters().toArray(new SourceAndConverter[0]);
     }
 }
@@ -0,0 +1,117 @@
+package ch.epfl.biop.demos.utils;
+
+import ch.epfl.biop.bdv.img.bioformats.command.DatasetFromBioFormatsCreateCommand;
+import mpicbg.spim.data.SpimData;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.XmlIoSpimData;
+import mpicbg.spim.data.generic.AbstractSpimData;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Persistent cache of the SpimData of the datasets opened through BioFormats
+ * <p>
+ * Opening a multi-series vsi or a large czi parses its whole metadata, which takes seconds to
+ * minutes. The resulting SpimData is saved as a bdv xml sidecar, and loaded instead on the next
+ * start: the BioFormats image loader then only opens readers when pixels are requested. The
+ * reader state itself is kept by the BioFormats memoizer (.bfmemo files).
+ * <p>
+ * A sidecar is keyed by the path, size and modification time of the file, a hash of its first
+ * and last {@link #SAMPLE_SIZE} bytes, the opening options and the version of the image loaders:
+ * a modified file or an upgrade of the loaders makes its sidecar unused.
+ */
+public class SpimDataCache {
+
+    public static final int SAMPLE_SIZE = 1 << 20;
+
+    static SpimDataCache defaultCache;
+
+    public static synchronized SpimDataCache getDefault() {
+        if (defaultCache == null) {
+            defaultCache = new SpimDataCache(new File(new File(System.getProperty("user.home"), "CachedSamples"), "spimdata"));
+        }
+        return defaultCache;
+    }
+
+    final File cacheDir;
+
+    public SpimDataCache(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * @param options options used to open the file, for instance the plane origin convention
+     * @return the cached SpimData of this file opened with these options, null if not cached
+     */
+    public AbstractSpimData<?> load(File file, Object... options) {
+        try {
+            File sidecar = getSidecar(file, options);
+            if (!sidecar.exists()) return null;
+            try {
+                return new XmlIoSpimData().load(sidecar.getAbsolutePath());
+            } catch (SpimDataException | RuntimeException e) {
+                System.err.println("Invalid metadata cache "+sidecar.getAbsolutePath()+", removed: "+e.getMessage());
+                Files.deleteIfExists(sidecar.toPath());
+                return null;
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read the metadata cache of "+file.getAbsolutePath()+": "+e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Saves the SpimData of this file opened with these options, only SpimData can be cached
+     */
+    public void save(AbstractSpimData<?> dataset, File file, Object... options) {
+        if (!(dataset instanceof SpimData)) return;
+        try {
+            if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+                throw new IOException("Could not create folder "+cacheDir.getAbsolutePath());
+            }
+            File sidecar = getSidecar(file, options);
+            // Written next to the sidecar then renamed, a concurrent load never sees a partial file
+            File tmp = new File(cacheDir, sidecar.getName()+".tmp");
+            new XmlIoSpimData().save((SpimData) dataset, tmp.getAbsolutePath());
+            Files.move(tmp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | SpimDataException | RuntimeException e) {
+            System.err.println("Could not cache the metadata of "+file.getAbsolutePath()+": "+e.getMessage());
+        }
+    }
+
+    File getSidecar(File file, Object... options) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(file.getAbsolutePath()).append('|')
+                .append(file.length()).append('|')
+                .append(file.lastModified()).append('|')
+                .append(DatasetFromBioFormatsCreateCommand.class.getPackage().getImplementationVersion());
+        for (Object option : options) key.append('|').append(option);
+        digest.update(key.toString().getBytes(StandardCharsets.UTF_8));
+        // Sampled content, cheap even for files of several Gb
+        byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, file.length())];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.readFully(sample);
+            digest.update(sample);
+            in.seek(file.length() - sample.length);
+            in.readFully(sample);
+            digest.update(sample);
+        }
+        StringBuilder name = new StringBuilder(file.getName()).append('-');
+        for (byte b : digest.digest()) name.append(String.format("%02x", b));
+        return new File(cacheDir, name.append(".xml").toString());
+    }
+
+}
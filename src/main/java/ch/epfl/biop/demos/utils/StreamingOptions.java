@@ -0,0 +1,36 @@
+package ch.epfl.biop.demos.utils;
+
+/**
+ * Loading settings of the sources streamed from N5 / OME-Zarr stores, see
+ * {@link SafeDataset#open(String, StreamingOptions)} and {@link ChunkPrefetcher}
+ */
+public class StreamingOptions {
+
+    /**
+     * Threads of the queue loading the chunks requested by BDV, each one waits for one request at
+     * a time: streaming is latency bound, more threads than cores is fine
+     */
+    public int fetcherThreads = 8;
+
+    /**
+     * Prefetch requests running at once, in addition to the ones of the fetcher threads
+     */
+    public int maxInFlightRequests = 8;
+
+    /**
+     * Maximal size of the chunks prefetched for one view, in bytes: prefetching more would
+     * evict chunks still displayed from the caches
+     */
+    public long cacheSizeBytes = 256L << 20;
+
+    /**
+     * Prefetches the displayed chunks, then the ones one screen ahead in the panning direction
+     */
+    public boolean prefetch = true;
+
+    /**
+     * Also prefetches the displayed chunks of the next timepoint
+     */
+    public boolean prefetchNextTimepoint = true;
+
+}
@@ -0,0 +1,94 @@
+package ch.epfl.biop.demos.utils;
+
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import sc.fiji.bdvpg.source.transform.SourceAffineTransformer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Creates many affine transformed copies of a few sources
+ * <p>
+ * The metadata of each base source (level 0 transform and dimensions at timepoint 0) is read
+ * once and kept: reading it again for each copy can be slow with some readers, BioFormats for
+ * instance. The copies are then created in parallel, their transforms and converters are
+ * computed by the caller from the index of the copy and the metadata of its base source.
+ */
+public class TransformedSourcesBuilder {
+
+    /**
+     * Metadata of a base source, at timepoint 0 and level 0
+     */
+    public static class BaseSource {
+        public final SourceAndConverter<?> source;
+        final AffineTransform3D location;
+        final long[] dimensions;
+
+        BaseSource(SourceAndConverter<?> source) {
+            this.source = source;
+            this.location = new AffineTransform3D();
+            source.getSpimSource().getSourceTransform(0, 0, location);
+            RandomAccessibleInterval<?> rai = source.getSpimSource().getSource(0, 0);
+            this.dimensions = new long[rai.numDimensions()];
+            rai.dimensions(dimensions);
+        }
+
+        /**
+         * @return a copy of the level 0 transform of the base source
+         */
+        public AffineTransform3D getLocation() {
+            return location.copy();
+        }
+
+        public long dimension(int d) {
+            return dimensions[d];
+        }
+    }
+
+    public interface TransformFactory {
+        /**
+         * @return the transform to apply to the base source, for the copy at this index
+         */
+        AffineTransform3D get(int index, BaseSource base);
+    }
+
+    public interface Decorator {
+        /**
+         * Sets up the copy at this index, for instance its converters, called in parallel
+         */
+        void decorate(int index, SourceAndConverter<?> source);
+    }
+
+    final Map<SourceAndConverter<?>, BaseSource> bases = new ConcurrentHashMap<>();
+
+    /**
+     * @return the metadata of this source, read on first call only
+     */
+    public BaseSource getBase(SourceAndConverter<?> source) {
+        return bases.computeIfAbsent(source, BaseSource::new);
+    }
+
+    /**
+     * Creates count transformed sources, in the order of their indices
+     * @param baseOf base source of each index
+     */
+    public List<SourceAndConverter<?>> build(int count, IntFunction<SourceAndConverter<?>> baseOf,
+                                             TransformFactory transforms, Decorator decorator) {
+        // Reads the metadata of each base source once, before going parallel
+        IntStream.range(0, count).mapToObj(baseOf).distinct().forEach(this::getBase);
+        SourceAndConverter<?>[] sources = IntStream.range(0, count).parallel().mapToObj(index -> {
+            BaseSource base = getBase(baseOf.apply(index));
+            SourceAndConverter<?> transformed = new SourceAffineTransformer<>(base.source, transforms.get(index, base)).get();
+            if (decorator != null) decorator.decorate(index, transformed);
+            return transformed;
+        }).toArray(SourceAndConverter<?>[]::new);
+        return Arrays.asList(sources);
+    }
+
+}
@@ -0,0 +1,239 @@
+package ch.epfl.biop;
+
+import ch.epfl.biop.demos.utils.DatasetFetcher;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ch.epfl.biop.HarnessChecks.check;
+import static ch.epfl.biop.HarnessChecks.deleteTemporaryFolders;
+import static ch.epfl.biop.HarnessChecks.newTemporaryFolder;
+import static ch.epfl.biop.HarnessChecks.report;
+
+/**
+ * Checks {@link DatasetFetcher} offline, against a local HTTP server serving fixture files:
+ * - parallel range download, compared byte per byte with the fixture
+ * - retry of requests cut in the middle of their range
+ * - resume of an interrupted download, without fetching the completed chunks again
+ * - checksums, given by the caller or by the Digest header of the server
+ * - servers without range requests
+ * - concurrent prefetch of several files
+ * - download again of a file deleted after its download
+ * <p>
+ * The cache folders are deleted at the end.
+ * <p>
+ * Run from IDE: right-click → Run 'DatasetFetcherHarness.main()'
+ */
+public class DatasetFetcherHarness {
+
+    static final int SIZE = 50 * 1024 * 1024 + 123;
+
+    static final long CHUNK_SIZE = 1024 * 1024;
+
+    static byte[] fixture(int seed) {
+        byte[] data = new byte[SIZE];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Serves fixture files under /files/name, with or without range requests
+     */
+    static class FixtureServer {
+
+        final HttpServer server;
+
+        final AtomicLong bytesServed = new AtomicLong();
+
+        final AtomicInteger requests = new AtomicInteger();
+
+        // Number of range requests still to cut in the middle
+        final AtomicInteger requestsToCut = new AtomicInteger();
+
+        // Range requests starting at or after this offset fail, simulates a lost connection
+        volatile long failFrom = Long.MAX_VALUE;
+
+        volatile boolean acceptRanges = true;
+
+        volatile boolean sendDigest = false;
+
+        FixtureServer(byte[]... files) throws IOException {
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.createContext("/files/", exchange -> {
+                try {
+                    String name = exchange.getRequestURI().getPath().substring("/files/".length());
+                    serve(exchange, files[Integer.parseInt(name.replace(".bin", ""))]);
+                } finally {
+                    exchange.close();
+                }
+            });
+            server.start();
+        }
+
+        String url(int index) {
+            return "http://localhost:"+server.getAddress().getPort()+"/files/"+index+".bin";
+        }
+
+        void serve(HttpExchange exchange, byte[] data) throws IOException {
+            requests.incrementAndGet();
+            if (sendDigest) {
+                exchange.getResponseHeaders().add("Digest", "md5="+Base64.getEncoder().encodeToString(md5(data)));
+            }
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (acceptRanges && (range != null)) {
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                long start = Long.parseLong(bounds[0]);
+                long end = Math.min(Long.parseLong(bounds[1]), data.length - 1);
+                if (start >= failFrom) {
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+                }
+                long length = end - start + 1;
+                exchange.getResponseHeaders().add("Content-Range", "bytes "+start+"-"+end+"/"+data.length);
+                exchange.sendResponseHeaders(206, length);
+                // Cutting the response: the client sees a premature end of stream
+                long sent = (length > 1) && (requestsToCut.getAndDecrement() > 0) ? length / 2 : length;
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(data, (int) start, (int) sent);
+                }
+                bytesServed.addAndGet(sent);
+            } else {
+                exchange.sendResponseHeaders(200, data.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(data);
+                }
+                bytesServed.addAndGet(data.length);
+            }
+        }
+
+        void stop() {
+            server.stop(0);
+            ((java.util.concurrent.ExecutorService) server.getExecutor()).shutdownNow();
+        }
+    }
+
+    static byte[] md5(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static File newCacheDir() throws IOException {
+        return newTemporaryFolder("fetcher-harness");
+    }
+
+    public static void main(String... args) throws Exception {
+        byte[][] files = {fixture(0), fixture(1), fixture(2)};
+        FixtureServer server = new FixtureServer(files);
+        try {
+            // Parallel range download
+            File dir = newCacheDir();
+            long start = System.nanoTime();
+            File file = new DatasetFetcher(dir, 4, CHUNK_SIZE).fetch(server.url(0));
+            System.out.printf("Parallel download: %.0f ms%n", (System.nanoTime() - start) / 1e6);
+            check(Arrays.equals(Files.readAllBytes(file.toPath()), files[0]), "parallel download content");
+            check(!new File(dir, "0.bin.part").exists() && !new File(dir, "0.bin.part.state").exists(), "no leftover partial files");
+
+            // Cached file, no request
+            int requests = server.requests.get();
+            new DatasetFetcher(dir, 4, CHUNK_SIZE).fetch(server.url(0));
+            check(server.requests.get() == requests, "cached file not downloaded again");
+
+            // Cut requests are retried
+            dir = newCacheDir();
+            server.requestsToCut.set(5);
+            file = new DatasetFetcher(dir, 4, CHUNK_SIZE).fetch(server.url(0));
+            check(Arrays.equals(Files.readAllBytes(file.toPath()), files[0]), "retry of cut requests");
+
+            // Resume: the second half of the file fails, then the download is resumed
+            dir = newCacheDir();
+            server.failFrom = SIZE / 2;
+            try {
+                new DatasetFetcher(dir, 4, CHUNK_SIZE).fetch(server.url(1));
+                check(false, "interrupted download reported");
+            } catch (IOException e) {
+                check(new File(dir, "1.bin.part.state").exists(), "interrupted download reported, state kept: "+e.getMessage());
+            }
+            server.failFrom = Long.MAX_VALUE;
+            long served = server.bytesServed.get();
+            file = new DatasetFetcher(dir, 4, CHUNK_SIZE).fetch(server.url(1));
+            long resumed = server.bytesServed.get() - served;
+            check(Arrays.equals(Files.readAllBytes(file.toPath()), files[1]), "resumed download content");
+            check(resumed < SIZE * 0.6, "resume fetched "+resumed+" bytes out of "+SIZE);
+
+            // Checksums given by the caller
+            String md5 = "md5:"+hex(md5(files[2]));
+            file = new DatasetFetcher(newCacheDir(), 4, CHUNK_SIZE).fetch(server.url(2), md5);
+            check(Arrays.equals(Files.readAllBytes(file.toPath()), files[2]), "matching checksum");
+            dir = newCacheDir();
+            try {
+                new DatasetFetcher(dir, 4, CHUNK_SIZE).fetch(server.url(2), "md5:"+hex(md5(files[1])));
+                check(false, "checksum mismatch reported");
+            } catch (IOException e) {
+                check(!new File(dir, "2.bin").exists() && !new File(dir, "2.bin.part").exists(),
+                        "checksum mismatch reported, corrupted file removed: "+e.getMessage());
+            }
+
+            // Checksum announced by the server
+            server.sendDigest = true;
+            file = new DatasetFetcher(newCacheDir(), 4, CHUNK_SIZE).fetch(server.url(2));
+            check(Arrays.equals(Files.readAllBytes(file.toPath()), files[2]), "server digest");
+            server.sendDigest = false;
+
+            // No range requests
+            server.acceptRanges = false;
+            file = new DatasetFetcher(newCacheDir(), 4, CHUNK_SIZE).fetch(server.url(0));
+            check(Arrays.equals(Files.readAllBytes(file.toPath()), files[0]), "server without range requests");
+            server.acceptRanges = true;
+
+            // Concurrent prefetch, then fetch waits for the ongoing downloads
+            DatasetFetcher fetcher = new DatasetFetcher(newCacheDir(), 4, CHUNK_SIZE);
+            requests = server.requests.get();
+            start = System.nanoTime();
+            List<Future<File>> prefetched = new ArrayList<>();
+            for (int i = 0; i < files.length; i++) prefetched.add(fetcher.prefetch(server.url(i)));
+            for (int i = 0; i < files.length; i++) {
+                file = fetcher.fetch(server.url(i));
+                check(file.equals(prefetched.get(i).get()), "fetch of file "+i+" reuses its prefetch");
+                check(Arrays.equals(Files.readAllBytes(file.toPath()), files[i]), "prefetched content of file "+i);
+            }
+            System.out.printf("Concurrent prefetch of %d files: %.0f ms%n", files.length, (System.nanoTime() - start) / 1e6);
+            int chunks = (int) ((SIZE + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            check(server.requests.get() - requests == files.length * (chunks + 1), "one request per chunk and one probe per file");
+
+            // A completed download whose file was deleted is done again
+            Files.delete(prefetched.get(0).get().toPath());
+            file = fetcher.fetch(server.url(0));
+            check(file.exists() && Arrays.equals(Files.readAllBytes(file.toPath()), files[0]), "deleted file downloaded again");
+        } finally {
+            server.stop();
+            deleteTemporaryFolders();
+        }
+        report();
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) builder.append(String.format("%02x", b));
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,107 @@
+package ch.epfl.biop;
+
+import ch.epfl.biop.demos.utils.GameOfLifeSource;
+import ch.epfl.biop.demos.utils.GameOfLifeSourcev1;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the tile computation of the Game of Life sources:
+ * - v0: nine shifted cursors ({@link GameOfLifeSource})
+ * - v1: {@link net.imglib2.algorithm.neighborhood.RectangleShape} neighborhoods ({@link GameOfLifeSourcev1})
+ * - primitive: {@link GameOfLifeSource} with a byte[] tile and halo
+ * <p>
+ * Each invocation computes one fresh generation of a 512x512 board (8x8 tiles of 64x64 pixels).
+ * The throughput is reported in pixels per second; divide by 4096 to get tiles per second.
+ * <p>
+ * Run from IDE: right-click → Run 'GameOfLifeBenchmark.main()'
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GameOfLifeBenchmark {
+
+    static final int SIZE = 512;
+
+    RandomAccessibleInterval<UnsignedByteType> seed;
+
+    RandomAccessibleInterval<UnsignedByteType> v0, v1, primitive;
+
+    @Setup(Level.Trial)
+    public void createSeed() {
+        Random random = new Random(42);
+        ArrayImg<UnsignedByteType, ByteArray> img = ArrayImgs.unsignedBytes(SIZE, SIZE, 1);
+        for (UnsignedByteType pixel : img) {
+            pixel.set(random.nextBoolean() ? 16 : 0);
+        }
+        seed = img;
+    }
+
+    // New sources at each invocation, otherwise the tiles are read from the cache
+    @Setup(Level.Invocation)
+    public void createSources() {
+        v0 = new GameOfLifeSource("v0", seed).getSource(0, 0);
+        v1 = new GameOfLifeSourcev1("v1", seed).getSource(0, 0);
+        primitive = new GameOfLifeSource("primitive", seed, true).getSource(0, 0);
+    }
+
+    static long computeAllTiles(RandomAccessibleInterval<UnsignedByteType> rai) {
+        long sum = 0;
+        for (UnsignedByteType pixel : Views.flatIterable(rai)) {
+            sum += pixel.get();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE * SIZE)
+    public long nineCursors() {
+        return computeAllTiles(v0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE * SIZE)
+    public long rectangleShape() {
+        return computeAllTiles(v1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE * SIZE)
+    public long primitiveArrays() {
+        return computeAllTiles(primitive);
+    }
+
+    public static void main(String... args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(GameOfLifeBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,72 @@
+package ch.epfl.biop;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Pass / fail checks and temporary folders shared by the harnesses run from their main method
+ * <p>
+ * A harness calls {@link #check(boolean, String)} for each expectation, creates its temporary
+ * folders with {@link #newTemporaryFolder(String)}, then calls {@link #deleteTemporaryFolders()}
+ * in a finally block and {@link #report()} at the end, which exits with 1 if a check failed.
+ */
+public class HarnessChecks {
+
+    static int failures = 0;
+
+    static final List<File> temporaryFolders = new ArrayList<>();
+
+    public static void check(boolean condition, String message) {
+        System.out.println((condition ? "OK   " : "FAIL ")+message);
+        if (!condition) failures++;
+    }
+
+    /**
+     * @return a new empty folder, deleted with its content by {@link #deleteTemporaryFolders()}
+     */
+    public static File newTemporaryFolder(String prefix) throws IOException {
+        File folder = Files.createTempDirectory(prefix).toFile();
+        synchronized (temporaryFolders) {
+            temporaryFolders.add(folder);
+        }
+        return folder;
+    }
+
+    /**
+     * Deletes the temporary folders and their content, and checks that none is left
+     */
+    public static void deleteTemporaryFolders() throws IOException {
+        List<File> folders;
+        synchronized (temporaryFolders) {
+            folders = new ArrayList<>(temporaryFolders);
+            temporaryFolders.clear();
+        }
+        for (File folder : folders) deleteRecursively(folder);
+        check(folders.stream().noneMatch(File::exists), folders.size()+" temporary folder(s) deleted");
+    }
+
+    public static void deleteRecursively(File root) throws IOException {
+        if (!root.exists()) return;
+        try (Stream<Path> paths = Files.walk(root.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Prints the result of the checks, exits with 1 if any failed
+     */
+    public static void report() {
+        System.out.println(failures == 0 ? "All checks passed" : failures+" check(s) failed");
+        if (failures > 0) System.exit(1);
+    }
+
+}
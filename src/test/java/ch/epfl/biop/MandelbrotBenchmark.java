@@ -0,0 +1,115 @@
+package ch.epfl.biop;
+
+import ch.epfl.biop.demos.utils.MandelbrotKernel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+/**
+ * Compares the evaluation of a 256x256 tile covering the whole Mandelbrot set:
+ * - perPixelLambda: the function of the slow Mandelbrot dataset, called with one position array per pixel
+ * - perPixelKernel: {@link MandelbrotKernel#escapeTime(double, double, int)}, with the cardioid, bulb and cycle checks
+ * - rowKernel: {@link MandelbrotKernel#escapeTimes(double[], double[], int, int, int[])}, two orbits at a time
+ * <p>
+ * The throughput is reported in pixels per second.
+ * <p>
+ * Run from IDE: right-click → Run 'MandelbrotBenchmark.main()'
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MandelbrotBenchmark {
+
+    static final int SIZE = 256;
+
+    static final int MAX_ITERATIONS = 2500;
+
+    // Same as DemoDatasetHelper SLOW_MANDELBROT_SET
+    final ToIntFunction<double[]> slowMandelbrot = p -> {
+        double re = p[0];
+        double im = p[1];
+        int i = 0;
+        for (; i < MAX_ITERATIONS; ++i) {
+            final double squre = re * re;
+            final double squim = im * im;
+            if (squre + squim > 4) break;
+            im = 2 * re * im + p[1];
+            re = squre - squim + p[0];
+        }
+        return i;
+    };
+
+    final int[] values = new int[SIZE * SIZE];
+
+    static double re(int x) {
+        return -2.2 + 3.0 * x / SIZE;
+    }
+
+    static double im(int y) {
+        return -1.5 + 3.0 * y / SIZE;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE * SIZE)
+    public int[] perPixelLambda() {
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                values[y * SIZE + x] = slowMandelbrot.applyAsInt(new double[]{re(x), im(y), 0});
+            }
+        }
+        return values;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE * SIZE)
+    public int[] perPixelKernel() {
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                values[y * SIZE + x] = MandelbrotKernel.escapeTime(re(x), im(y), MAX_ITERATIONS);
+            }
+        }
+        return values;
+    }
+
+    final double[] rowRe = new double[SIZE], rowIm = new double[SIZE];
+    final int[] rowValues = new int[SIZE];
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE * SIZE)
+    public int[] rowKernel() {
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                rowRe[x] = re(x);
+                rowIm[x] = im(y);
+            }
+            MandelbrotKernel.escapeTimes(rowRe, rowIm, SIZE, MAX_ITERATIONS, rowValues);
+            System.arraycopy(rowValues, 0, values, y * SIZE, SIZE);
+        }
+        return values;
+    }
+
+    public static void main(String... args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(MandelbrotBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+}
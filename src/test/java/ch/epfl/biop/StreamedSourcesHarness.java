@@ -0,0 +1,235 @@
+package ch.epfl.biop;
+
+import bdv.util.RandomAccessibleIntervalSource;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.demos.utils.ChunkPrefetcher;
+import ch.epfl.biop.demos.utils.MultiscaleStore;
+import ch.epfl.biop.demos.utils.SafeDataset;
+import ch.epfl.biop.demos.utils.StreamingOptions;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ch.epfl.biop.HarnessChecks.check;
+import static ch.epfl.biop.HarnessChecks.deleteTemporaryFolders;
+import static ch.epfl.biop.HarnessChecks.newTemporaryFolder;
+import static ch.epfl.biop.HarnessChecks.report;
+
+/**
+ * Measures the time to full resolution during a pan over a streamed OME-Zarr, with and without
+ * {@link ChunkPrefetcher}
+ * <p>
+ * A 4096x4096 UINT16 fixture is written as a local OME-Zarr in a temporary folder, deleted at the
+ * end, and served over HTTP with the path layout of an S3 bucket and a fixed latency per request.
+ * The view pans to the right by a quarter of the screen at each step, and stays there
+ * {@link #DWELL_MS} ms. The time to full resolution of a step is the time to load all the displayed
+ * chunks of the highest resolution, with as many threads as BDV. Each run opens the store again:
+ * caches start empty. The harness fails if prefetching does not lower the mean time to full
+ * resolution of the steps after the first one.
+ * <p>
+ * Only HTTP access is covered: the store is opened through an http:// url, as the demos read public
+ * buckets through their https:// endpoint. s3:// uris, signed requests and the listing api of S3
+ * are not exercised.
+ * <p>
+ * Run from IDE: right-click → Run 'StreamedSourcesHarness.main()'
+ */
+public class StreamedSourcesHarness {
+
+    static final int SIZE = 4096;
+
+    static final int WIDTH = 1024, HEIGHT = 768;
+
+    static final int STEP = 256, N_STEPS = 12;
+
+    static final long LATENCY_MS = 30, DWELL_MS = 200;
+
+    static final int CHUNK_SIZE = 64;
+
+    /**
+     * Serves the files of a folder over HTTP as the objects of a bucket, path-style: GET and HEAD
+     * of /bucket/key, missing keys answer the 404 NoSuchKey error of S3
+     */
+    static class HttpBucket {
+
+        final HttpServer server;
+
+        final AtomicInteger requests = new AtomicInteger();
+
+        final ExecutorService executor = Executors.newCachedThreadPool();
+
+        HttpBucket(String bucket, File root, long latencyMs) throws IOException {
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.setExecutor(executor);
+            server.createContext("/"+bucket+"/", exchange -> {
+                try {
+                    requests.incrementAndGet();
+                    Thread.sleep(latencyMs);
+                    String key = exchange.getRequestURI().getPath().substring(bucket.length() + 2);
+                    serve(exchange, new File(root, key));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    exchange.close();
+                }
+            });
+            server.start();
+        }
+
+        String url(String bucket, String key) {
+            return "http://localhost:"+server.getAddress().getPort()+"/"+bucket+"/"+key;
+        }
+
+        void serve(HttpExchange exchange, File file) throws IOException {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            boolean head = method.equals("HEAD");
+            if (!file.isFile()) {
+                byte[] error = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                        "<Error><Code>NoSuchKey</Code><Message>The specified key does not exist.</Message></Error>")
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/xml");
+                exchange.sendResponseHeaders(404, head ? -1 : error.length);
+                if (!head) {
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(error);
+                    }
+                }
+                return;
+            }
+            byte[] content = Files.readAllBytes(file.toPath());
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.getResponseHeaders().set("ETag", "\""+Integer.toHexString(Arrays.hashCode(content))+"\"");
+            if (head) {
+                exchange.getResponseHeaders().set("Content-Length", Long.toString(content.length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(content);
+            }
+        }
+
+        void stop() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    static File writeFixture(File directory) throws Exception {
+        ArrayImg<UnsignedShortType, ShortArray> img = ArrayImgs.unsignedShorts(SIZE, SIZE, 1);
+        Cursor<UnsignedShortType> cursor = img.localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            cursor.get().set((cursor.getIntPosition(0) ^ cursor.getIntPosition(1)) & 0xFFFF);
+        }
+        Source<UnsignedShortType> source = new RandomAccessibleIntervalSource<>(img, new UnsignedShortType(), "fixture");
+        File store = new File(directory, "fixture.ome.zarr");
+        MultiscaleStore.convert(new SourceAndConverter[]{new SourceAndConverter<>(source, null)}, store);
+        return store;
+    }
+
+    /**
+     * Pans over the store, once opened
+     * @return the time to full resolution of each step, in ms
+     */
+    static long[] pan(String url, StreamingOptions options) throws Exception {
+        SourceAndConverter<?>[] sources = SafeDataset.open(url, options);
+        Source<?> source = sources[0].getSpimSource();
+        ChunkPrefetcher prefetcher = options.prefetch ? new ChunkPrefetcher(sources, options) : null;
+        ExecutorService fetchers = Executors.newFixedThreadPool(options.fetcherThreads);
+        long[] times = new long[N_STEPS];
+        try {
+            for (int step = 0; step < N_STEPS; step++) {
+                int x = step * STEP, y = (SIZE - HEIGHT) / 2;
+                AffineTransform3D view = new AffineTransform3D();
+                view.translate(-x, -y, 0);
+                if (prefetcher != null) prefetcher.prefetch(view, WIDTH, HEIGHT, 0);
+                long start = System.nanoTime();
+                loadDisplayedChunks(source.getSource(0, 0), x, y, fetchers);
+                times[step] = (System.nanoTime() - start) / 1_000_000;
+                Thread.sleep(DWELL_MS);
+            }
+        } finally {
+            if (prefetcher != null) prefetcher.stop();
+            fetchers.shutdownNow();
+        }
+        return times;
+    }
+
+    static void loadDisplayedChunks(RandomAccessibleInterval<?> image, int x, int y, ExecutorService fetchers) throws Exception {
+        List<Future<?>> loads = new ArrayList<>();
+        for (long cy = y / CHUNK_SIZE; cy <= Math.min(image.max(1), y + HEIGHT - 1) / CHUNK_SIZE; cy++) {
+            for (long cx = x / CHUNK_SIZE; cx <= Math.min(image.max(0), x + WIDTH - 1) / CHUNK_SIZE; cx++) {
+                long[] position = {cx * CHUNK_SIZE + CHUNK_SIZE / 2, cy * CHUNK_SIZE + CHUNK_SIZE / 2, 0};
+                loads.add(fetchers.submit(() -> {
+                    RandomAccess<?> access = image.randomAccess();
+                    access.setPosition(position);
+                    return ((RealType<?>) access.get()).getRealDouble();
+                }));
+            }
+        }
+        for (Future<?> load : loads) load.get();
+    }
+
+    public static void main(String... args) throws Exception {
+        File root = newTemporaryFolder("streamed-sources");
+        HttpBucket server = null;
+        double[] meanAfterFirstStep = new double[2];
+        try {
+            writeFixture(root);
+            server = new HttpBucket("bucket", root, LATENCY_MS);
+            String url = server.url("bucket", "fixture.ome.zarr");
+            for (boolean prefetch : new boolean[]{false, true}) {
+                StreamingOptions options = new StreamingOptions();
+                options.prefetch = prefetch;
+                int requestsBefore = server.requests.get();
+                long[] times = pan(url, options);
+                long total = 0;
+                StringBuilder steps = new StringBuilder();
+                for (long time : times) {
+                    total += time;
+                    steps.append(time).append(' ');
+                }
+                meanAfterFirstStep[prefetch ? 1 : 0] = (total - times[0]) / (double) (N_STEPS - 1);
+                System.out.println("Prefetch "+(prefetch ? "on " : "off")+": time to full resolution per step (ms): "+steps);
+                System.out.printf("    total %d ms, mean %.1f ms, mean after the first step %.1f ms, %d requests%n",
+                        total, total / (double) N_STEPS, meanAfterFirstStep[prefetch ? 1 : 0],
+                        server.requests.get() - requestsBefore);
+            }
+        } finally {
+            if (server != null) server.stop();
+            deleteTemporaryFolders();
+        }
+        check(meanAfterFirstStep[1] < meanAfterFirstStep[0],
+                String.format("prefetch lowers the mean time to full resolution after the first step: %.1f ms instead of %.1f ms",
+                        meanAfterFirstStep[1], meanAfterFirstStep[0]));
+        report();
+    }
+}